@@ -0,0 +1,110 @@
+package com.yahoo.platform.yui.compressor;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * BuildManifest lists the files a batch run compressed, with the name of
+ * their output, digest included, and their sizes before and after, and
+ * sums the statistics of the run, so that the runs of the shards of a
+ * tree, made on different machines, can be merged into one manifest. It
+ * is saved as lines of tab-separated input, output, input size and output
+ * size, sorted by input, followed by the statistics, each one on a line
+ * starting with @:
+ * <pre>
+ * lib/dom.js	lib/dom-1a2b3c.js	5120	2048
+ * &#64;removed-declarations	4
+ * </pre>
+ */
+public final class BuildManifest {
+
+    private final Map<String, String[]> files = new TreeMap<>();
+    private final Map<String, Long> stats = new TreeMap<>();
+
+    public BuildManifest() {
+    }
+
+    /**
+     * Adds a compressed file.
+     *
+     * @param input       the path of the input, relative to the input directory
+     * @param output      the path of the output, relative to the output directory
+     * @param inputBytes  the size of the input
+     * @param outputBytes the size of the output
+     * @throws IllegalArgumentException if the input was already added
+     */
+    public void addFile(String input, String output, long inputBytes, long outputBytes) {
+        if (files.putIfAbsent(input, new String[]{output, Long.toString(inputBytes), Long.toString(outputBytes)}) != null) {
+            throw new IllegalArgumentException("The file " + input + " was compressed twice");
+        }
+        addStat("files", 1);
+        addStat("input-bytes", inputBytes);
+        addStat("output-bytes", outputBytes);
+    }
+
+    /**
+     * Adds a value to a statistic.
+     */
+    public void addStat(String name, long value) {
+        stats.merge(name, value, Long::sum);
+    }
+
+    /**
+     * Returns the value of a statistic, or 0 if it was never added to.
+     */
+    public long getStat(String name) {
+        return stats.getOrDefault(name, 0L);
+    }
+
+    /**
+     * Merges a manifest saved by {@link #write(Writer)} into this one.
+     * Blank lines and the lines starting with # are ignored.
+     *
+     * @throws IOException if a line cannot be read, or lists a file
+     *                     already added
+     */
+    public void read(Reader in) throws IOException {
+        BufferedReader reader = new BufferedReader(in);
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.isBlank() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\t");
+            try {
+                if (line.startsWith("@") && fields.length == 2) {
+                    addStat(fields[0].substring(1), Long.parseLong(fields[1]));
+                } else if (fields.length == 4) {
+                    String[] file = {fields[1], Long.toString(Long.parseLong(fields[2])),
+                            Long.toString(Long.parseLong(fields[3]))};
+                    if (files.putIfAbsent(fields[0], file) != null) {
+                        throw new IOException("The file " + fields[0] + " on line " + lineNumber + " is listed twice");
+                    }
+                } else {
+                    throw new IOException("Expected a file or a statistic on line " + lineNumber);
+                }
+            } catch (NumberFormatException e) {
+                throw new IOException("Expected a size on line " + lineNumber, e);
+            }
+        }
+    }
+
+    /**
+     * Writes the files, sorted by input, then the statistics.
+     */
+    public void write(Writer out) throws IOException {
+        for (Map.Entry<String, String[]> file : files.entrySet()) {
+            out.write(file.getKey() + "\t" + String.join("\t", file.getValue()) + "\n");
+        }
+        for (Map.Entry<String, Long> stat : stats.entrySet()) {
+            out.write("@" + stat.getKey() + "\t" + stat.getValue() + "\n");
+        }
+        out.flush();
+    }
+}
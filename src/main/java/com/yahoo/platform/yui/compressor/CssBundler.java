@@ -0,0 +1,259 @@
+package com.yahoo.platform.yui.compressor;
+
+import org.mozilla.javascript.ErrorReporter;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * CssBundler replaces the @import rules of a stylesheet with the local
+ * stylesheets they import, recursively, so that a page fetches a single
+ * stylesheet instead of a chain of them. An import with a media query is
+ * replaced with an @media block; the relative URLs of the imported
+ * stylesheets are rewritten to be relative to the one bundled.
+ * <p>
+ * The imports of remote stylesheets, of missing files and the ones with a
+ * layer() or supports() condition are kept. Since an @import must come
+ * before the rules of a stylesheet, the imports before a kept one are kept
+ * as well, with a warning, and so is the import of a stylesheet keeping
+ * some of its own: the stylesheets still apply in the order they are
+ * imported. A stylesheet imported several times is bundled each time, and
+ * the copies are left to the removal of the duplicate rules, which keeps
+ * the last one, the one that applies. An import cycle is broken where it
+ * closes, with a warning. The @charset rules of the imported stylesheets
+ * are dropped, since they are all read with the same charset.
+ */
+final class CssBundler {
+
+    private static final Pattern URL = Pattern.compile("(?i)url\\(\\s*([\"']?)([^\"')]*)\\1\\s*\\)");
+
+    // URLs that are not relative to the stylesheet
+    private static final Pattern ABSOLUTE = Pattern.compile("(?i)^(?:[a-z][a-z0-9+.-]*:|/|#|$)");
+
+    private final Charset charset;
+    private ErrorReporter reporter;
+
+    private Path dir;
+    private final Set<Path> open = new HashSet<>();
+    // Whether the last stylesheet bundled kept some of its imports
+    private boolean keeps;
+    private int inlined;
+
+    CssBundler(Charset charset) {
+        this.charset = charset;
+    }
+
+    void setErrorReporter(ErrorReporter reporter) {
+        this.reporter = reporter;
+    }
+
+    /**
+     * Returns the number of imports replaced by the last bundle.
+     */
+    int getInlined() {
+        return inlined;
+    }
+
+    /**
+     * Reads a stylesheet and the stylesheets it imports.
+     */
+    String bundle(Path file) throws IOException {
+        file = file.toAbsolutePath().normalize();
+        dir = file.getParent();
+        open.clear();
+        inlined = 0;
+        return inline(file, Files.readString(file, charset), true);
+    }
+
+    /*
+     * Replaces the imports at the top of a stylesheet, but the ones up to
+     * the last one that cannot be.
+     */
+    private String inline(Path file, String css, boolean entry) throws IOException {
+        open.add(file);
+        // The text before each import, and the import bundled, or null to keep it
+        List<String> before = new ArrayList<>();
+        List<String> statements = new ArrayList<>();
+        List<String> bundled = new ArrayList<>();
+        List<Integer> counts = new ArrayList<>();
+        int lastKept = -1;
+        int copied = 0;
+        int i = 0;
+        while (true) {
+            i = skipSpaceAndComments(css, i);
+            boolean charsetRule = css.regionMatches(true, i, "@charset", 0, 8);
+            boolean importRule = css.regionMatches(true, i, "@import", 0, 7);
+            if (!charsetRule && !importRule && !css.regionMatches(true, i, "@layer", 0, 6)) {
+                break;
+            }
+            int end = CssMerger.skip(css, i, css.length(), true);
+            if (end < 0 || end == css.length() || css.charAt(end) != ';') {
+                break;
+            }
+            if (charsetRule && !entry || importRule) {
+                String statement = css.substring(i, end + 1);
+                before.add(rewriteUrls(file, css.substring(copied, i)));
+                statements.add(importRule ? keep(file, statement) : "");
+                int inlinedBefore = inlined;
+                String imported = importRule ? importRule(file, css.substring(i + 7, end).trim(), statement) : "";
+                if (imported == null) {
+                    lastKept = bundled.size();
+                }
+                bundled.add(imported);
+                counts.add(inlined - inlinedBefore);
+                copied = end + 1;
+            }
+            i = end + 1;
+        }
+
+        StringBuilder sb = new StringBuilder(css.length());
+        for (int k = 0; k < bundled.size(); k++) {
+            sb.append(before.get(k));
+            if (k <= lastKept) {
+                if (bundled.get(k) != null && !statements.get(k).isEmpty()) {
+                    warn("The " + statements.get(k) + " of " + file + " is kept, since an @import after it cannot be bundled");
+                    inlined -= counts.get(k);
+                }
+                sb.append(statements.get(k));
+            } else {
+                sb.append(bundled.get(k));
+            }
+        }
+        sb.append(rewriteUrls(file, css.substring(copied)));
+        open.remove(file);
+        keeps = lastKept >= 0;
+        return sb.toString();
+    }
+
+    /*
+     * Returns the stylesheet an import is replaced with, or null if the
+     * import is to be kept.
+     */
+    private String importRule(Path file, String rule, String statement) throws IOException {
+        String[] parts = parse(rule);
+        if (parts == null) {
+            return null;
+        }
+        String target = parts[0];
+        String conditions = parts[1];
+
+        String lowerCase = conditions.toLowerCase(Locale.ROOT);
+        if (ABSOLUTE.matcher(target).find() || lowerCase.startsWith("layer") || lowerCase.startsWith("supports(")) {
+            return null;
+        }
+
+        Path imported = file.getParent().resolve(strip(target)).normalize();
+        if (open.contains(imported)) {
+            warn("Circular @import of " + imported + " in " + file + ", left out");
+            return "";
+        }
+        if (!Files.isRegularFile(imported)) {
+            warn("Cannot find " + imported + " imported by " + file + ", the @import is kept");
+            return null;
+        }
+
+        int inlinedBefore = inlined;
+        String css = inline(imported, Files.readString(imported, charset), false);
+        if (keeps) {
+            // Its kept imports could not come after the rules bundled so far
+            warn("The " + statement + " of " + file + " is kept, since " + imported + " keeps some of its imports");
+            inlined = inlinedBefore;
+            return null;
+        }
+        inlined++;
+        return conditions.isEmpty() ? css : "@media " + conditions + "{" + css + "}";
+    }
+
+    /*
+     * Returns an import kept, with its URL relative to the bundled stylesheet.
+     */
+    private String keep(Path file, String statement) {
+        String[] parts = parse(statement.substring(7, statement.length() - 1).trim());
+        if (parts == null) {
+            return statement;
+        }
+        return "@import url(\"" + rewrite(file, parts[0]) + "\")" + (parts[1].isEmpty() ? "" : " " + parts[1]) + ";";
+    }
+
+    /*
+     * Returns the URL and the conditions of an import, or null if it
+     * cannot be read.
+     */
+    private static String[] parse(String rule) {
+        Matcher m = URL.matcher(rule);
+        if (m.lookingAt()) {
+            return new String[]{m.group(2).trim(), rule.substring(m.end()).trim()};
+        }
+        if (rule.startsWith("\"") || rule.startsWith("'")) {
+            int end = CssMerger.skipString(rule, 0, rule.length());
+            if (end >= 0) {
+                return new String[]{rule.substring(1, end - 1), rule.substring(end).trim()};
+            }
+        }
+        return null;
+    }
+
+    private String rewriteUrls(Path file, String css) {
+        if (file.getParent().equals(dir) || css.isEmpty()) {
+            return css;
+        }
+        return URL.matcher(css).replaceAll(m -> {
+            String url = m.group(2).trim();
+            return Matcher.quoteReplacement("url(" + m.group(1) + rewrite(file, url) + m.group(1) + ")");
+        });
+    }
+
+    /*
+     * Makes a URL relative to a stylesheet relative to the bundled one.
+     */
+    private String rewrite(Path file, String url) {
+        if (ABSOLUTE.matcher(url).find() || file.getParent().equals(dir)) {
+            return url;
+        }
+        String path = strip(url);
+        String rest = url.substring(path.length());
+        Path target = file.getParent().resolve(path).normalize();
+        return dir.relativize(target).toString().replace('\\', '/') + rest;
+    }
+
+    // The URL without its query and fragment
+    private static String strip(String url) {
+        int end = url.length();
+        for (int i = 0; i < url.length(); i++) {
+            if (url.charAt(i) == '?' || url.charAt(i) == '#') {
+                end = i;
+                break;
+            }
+        }
+        return url.substring(0, end);
+    }
+
+    private static int skipSpaceAndComments(String css, int i) {
+        while (i < css.length()) {
+            if (Character.isWhitespace(css.charAt(i))) {
+                i++;
+            } else if (css.startsWith("/*", i)) {
+                int end = css.indexOf("*/", i + 2);
+                i = end < 0 ? css.length() : end + 2;
+            } else {
+                break;
+            }
+        }
+        return i;
+    }
+
+    private void warn(String message) {
+        if (reporter != null) {
+            reporter.warning(message, null, -1, null, -1);
+        }
+    }
+}
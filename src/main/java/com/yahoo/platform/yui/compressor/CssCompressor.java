@@ -11,22 +11,286 @@
  */
 package com.yahoo.platform.yui.compressor;
 
+import org.mozilla.javascript.ErrorReporter;
+
 import java.io.IOException;
 import java.io.Reader;
+import java.io.StringWriter;
 import java.io.Writer;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 public class CssCompressor {
 
-    private StringBuffer srcsb = new StringBuffer();
+    private static final Pattern CALC = Pattern.compile("calc\\([^\\)]*\\)");
+    private static final Pattern CALC_PLUS = Pattern.compile("(?<=[-|%|px|em|rem|vw|\\d]+)\\+");
+    private static final Pattern CALC_MINUS = Pattern.compile("(?<=[-|%|px|em|rem|vw|\\d]+)\\-");
+    private static final Pattern CALC_TIMES = Pattern.compile("(?<=[-|%|px|em|rem|vw|\\d]+)\\*");
+    private static final Pattern CALC_DIVIDE = Pattern.compile("(?<=[-|%|px|em|rem|vw|\\d]+)\\/");
+
+    private final StringBuffer srcsb = new StringBuffer();
+
+    // Working storage recycled across calls to compress()
+    private final StringBuffer work = new StringBuffer();
+    private final ArrayList<String> preservedTokens = new ArrayList<>();
+    private final ArrayList<String> comments = new ArrayList<>();
+
+    private boolean singlePass;
+    private CssMinifier minifier;
+
+    // Stylesheets are not cut into chunks shorter than this
+    static final int PARALLEL_MIN_CHUNK_LENGTH = 64 * 1024;
+    private boolean parallel;
+    private int parallelChunkLength = PARALLEL_MIN_CHUNK_LENGTH;
+
+    // Data URIs longer than the threshold are kept off the heap
+    private int dataUriThreshold = -1;
+    private OffHeapTokens offHeapTokens;
+
+    // Merges the rules of the compressed stylesheet when not null
+    private CssMerger merger;
+    private boolean mergeRules;
+    private boolean removeDuplicateRules;
+
+    // Removes the selectors the templates do not use when not null
+    private CssPruner pruner;
+
+    // Renames the class names and ids when not null
+    private CssNameMangler nameMangler;
+
+    // Bounds the time the regular expressions take, see compress()
+    private final RegexBudget budget = new RegexBudget();
+    private ErrorReporter reporter;
+
+    private List<CssRule> rules = defaultRules();
+
+    /**
+     * Creates a compressor without any input. Call {@link #reset(Reader)}
+     * before each compression; this lets a single instance be reused for
+     * many stylesheets.
+     */
+    public CssCompressor() {
+    }
 
     public CssCompressor(Reader in) throws IOException {
+        reset(in);
+    }
+
+    /**
+     * Loads a new stylesheet into this compressor. The buffers grown by the
+     * previous compression are kept, so compressing many small stylesheets
+     * with one instance does not reallocate them every time. An instance
+     * must not be used by several threads at the same time.
+     *
+     * @param in the stylesheet to compress
+     */
+    public void reset(Reader in) throws IOException {
+        srcsb.setLength(0);
+
         // Read the stream...
-        int c;
-        while ((c = in.read()) != -1) {
-            srcsb.append((char) c);
+        char[] buf = new char[4096];
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            srcsb.append(buf, 0, n);
+        }
+    }
+
+    /**
+     * Selects the single-pass engine, which tokenizes the stylesheet once
+     * instead of running each regular expression over the whole of it. Its
+     * output is the same for well-formed stylesheets.
+     *
+     * @param singlePass true to use the single-pass engine
+     */
+    public void setSinglePass(boolean singlePass) {
+        this.singlePass = singlePass;
+    }
+
+    /**
+     * Lets the single-pass engine compress large stylesheets in chunks
+     * concurrently on the common fork-join pool. The stylesheet is cut after
+     * top-level rules, outside of strings, comments and nested blocks, and
+     * the chunks are put back together in order. The output is identical to
+     * the one produced sequentially; this only speeds up the compression of
+     * very large files on multi-core machines. The compression stays
+     * sequential when a line break position is given, since the breaks
+     * depend on everything written before them, and when a @charset rule
+     * would have to be moved to the top from a later chunk.
+     *
+     * @param parallel whether to use several threads for a single stylesheet
+     */
+    public void setParallel(boolean parallel) {
+        setParallel(parallel, PARALLEL_MIN_CHUNK_LENGTH);
+    }
+
+    void setParallel(boolean parallel, int minChunkLength) {
+        this.parallel = parallel;
+        this.parallelChunkLength = minChunkLength;
+    }
+
+    /**
+     * Keeps the data URIs longer than the specified number of characters out
+     * of the working text. They are copied to a direct buffer, outside of the
+     * Java heap, as soon as they are found, and written from there to the
+     * output, so that stylesheets embedding large fonts or images do not
+     * carry them through every pass. The output is the same.
+     *
+     * @param threshold the length above which a data URI is moved, or -1 to
+     *                  keep all of them on the heap
+     */
+    public void setDataUriThreshold(int threshold) {
+        this.dataUriThreshold = threshold;
+    }
+
+    /**
+     * Merges the rules of the compressed stylesheet that have the same
+     * selector or the same declarations, and the @media and @supports
+     * blocks that have the same condition, when no rule between them could
+     * be overridden differently once they are merged. This changes the order
+     * of the declarations in the stylesheet, but not the ones that apply.
+     * The rules are not merged when the stylesheet is compressed from a
+     * reader, one window at a time.
+     *
+     * @param mergeRules whether to merge the rules
+     * @see #getMergedRules()
+     * @see #getMergeSavings()
+     */
+    public void setMergeRules(boolean mergeRules) {
+        this.mergeRules = mergeRules;
+        this.merger = mergeRules || removeDuplicateRules ? new CssMerger(mergeRules) : null;
+    }
+
+    /**
+     * Removes the rules and @media blocks repeated word for word further in
+     * the compressed stylesheet, such as the ones of a stylesheet imported
+     * by several others in a bundle. Only the last copy, which overrides
+     * the others, is kept. This is also done when merging rules.
+     *
+     * @param removeDuplicateRules whether to remove the repeated rules
+     * @see #getMergedRules()
+     */
+    public void setRemoveDuplicateRules(boolean removeDuplicateRules) {
+        this.removeDuplicateRules = removeDuplicateRules;
+        this.merger = mergeRules || removeDuplicateRules ? new CssMerger(mergeRules) : null;
+    }
+
+    /**
+     * Returns the number of rules and blocks merged into others, or removed
+     * because they were repeated, by this compressor.
+     */
+    public long getMergedRules() {
+        return merger != null ? merger.getMerged() : 0;
+    }
+
+    /**
+     * Returns the number of characters saved by merging rules and blocks.
+     */
+    public long getMergeSavings() {
+        return merger != null ? merger.getSaved() : 0;
+    }
+
+    /**
+     * Adds a template or script to the ones the selectors of the compressed
+     * stylesheet are checked against. Once one is added, the selectors that
+     * need a class name, id or tag name found in none of them, nor in the
+     * safelist, are removed, as are the rules and @media blocks left empty.
+     * A name counts as found wherever it appears as a whole word, so names
+     * built at run time must be safelisted. Selectors are not removed when
+     * the stylesheet is compressed from a reader, one window at a time.
+     *
+     * @param in the template or script
+     * @see #setSafelist(List)
+     * @see #getPrunedSelectors()
+     */
+    public void addTemplate(Reader in) throws IOException {
+        if (pruner == null) {
+            pruner = new CssPruner();
+        }
+        pruner.index(in);
+    }
+
+    /**
+     * Sets the class names, ids and tag names kept even if no template uses
+     * them. A name ending with '*' stands for all the names it starts.
+     */
+    public void setSafelist(List<String> names) {
+        if (pruner == null) {
+            pruner = new CssPruner();
+        }
+        pruner.setSafelist(names);
+    }
+
+    /**
+     * Returns the selectors removed because no template uses them, in the
+     * order they were found.
+     */
+    public List<String> getPrunedSelectors() {
+        return pruner != null ? pruner.getPruned() : Collections.emptyList();
+    }
+
+    /**
+     * Returns the number of characters saved by removing unused selectors.
+     */
+    public long getPruneSavings() {
+        return pruner != null ? pruner.getSaved() : 0;
+    }
+
+    /**
+     * Renames the class names and ids in the selectors of the compressed
+     * stylesheet to the short names given by the specified map, giving
+     * short names to the new names that match its pattern. The names are
+     * not renamed when the stylesheet is compressed from a reader, one
+     * window at a time.
+     *
+     * @param names the map, or null not to rename anything
+     * @see JavaScriptCompressor#setSelectorNames(SelectorNames)
+     */
+    public void setSelectorNames(SelectorNames names) {
+        nameMangler = names != null ? new CssNameMangler(names) : null;
+    }
+
+    /**
+     * Compresses a stylesheet read from the specified reader one window of
+     * rules at a time, writing the result as it goes, so that the memory
+     * taken does not grow with the size of the stylesheet. The windows are
+     * compressed by the single-pass engine and the stylesheet loaded with
+     * {@link #reset(Reader)}, if any, is discarded.
+     * <p>
+     * The output is the same as the one of {@link #compress(Writer, int)},
+     * except that only the @charset rule the stylesheet starts with is kept,
+     * and that line breaks can fall elsewhere in stylesheets with many
+     * strings or comments.
+     *
+     * @param in the stylesheet to compress
+     * @param out where to write the compressed stylesheet
+     * @param linebreakpos the column after which to break lines, or -1
+     */
+    public void compress(Reader in, Writer out, int linebreakpos) throws IOException {
+        compress(in, out, linebreakpos, CssStreamer.WINDOW);
+    }
+
+    void compress(Reader in, Writer out, int linebreakpos, int windowLength) throws IOException {
+        if (minifier == null) {
+            minifier = new CssMinifier();
+        }
+        prepareOffHeapTokens();
+        minifier.setOffHeapTokens(offHeapTokens, dataUriThreshold);
+        new CssStreamer(minifier, offHeapTokens, this, windowLength).compress(in, out, linebreakpos);
+    }
+
+    private void prepareOffHeapTokens() {
+        if (dataUriThreshold >= 0) {
+            if (offHeapTokens == null) {
+                offHeapTokens = new OffHeapTokens();
+            }
+            offHeapTokens.clear();
+        } else {
+            offHeapTokens = null;
         }
     }
 
@@ -47,7 +311,7 @@ public class CssCompressor {
         StringBuffer sb = new StringBuffer();
 
         Pattern p = Pattern.compile(tokenRegex);
-        Matcher m = p.matcher(css);
+        Matcher m = budget.matcher(p, css);
 
         while (m.find()) {
             int startIndex = m.start() + (preservedToken.length() + 1);
@@ -82,10 +346,17 @@ public class CssCompressor {
             sb.append(css.substring(appendIndex, m.start()));
 
             if (foundTerminator) {
-                String token = css.substring(startIndex, endIndex);
-                if(removeWhiteSpace)
-                    token = token.replaceAll("\\s+", "");
-                preservedTokens.add(token);
+                if (removeWhiteSpace && offHeapTokens != null && endIndex - startIndex > dataUriThreshold
+                        && OffHeapTokens.isOpaque(css, startIndex, endIndex)) {
+                    // the token stays off the heap, see writeTokens
+                    offHeapTokens.add(preservedTokens.size(), css, startIndex, endIndex);
+                    preservedTokens.add(null);
+                } else {
+                    String token = css.substring(startIndex, endIndex);
+                    if(removeWhiteSpace)
+                        token = token.replaceAll("\\s+", "");
+                    preservedTokens.add(token);
+                }
 
                 String preserver = preservedToken + "(___YUICSSMIN_PRESERVED_TOKEN_" + (preservedTokens.size() - 1) + "___)";
                 sb.append(preserver);
@@ -103,28 +374,377 @@ public class CssCompressor {
         return sb.toString();
     }
 
+    /*
+     * Replaces the placeholders made of the specified prefix, a token index
+     * and "___" with their tokens, in a single pass over the text. The
+     * inserted tokens are not scanned for placeholders again, and the ones
+     * kept off the heap (null) are left as they are.
+     */
+    private static String restoreTokens(String css, String prefix, ArrayList<String> tokens) {
+        int startIndex = css.indexOf(prefix);
+        if (startIndex < 0) {
+            return css;
+        }
+
+        StringBuilder sb = new StringBuilder(css.length());
+        int appendIndex = 0;
+        while (startIndex >= 0) {
+            int index = placeholderIndex(css, startIndex + prefix.length(), tokens.size());
+            if (index < 0 || tokens.get(index) == null) {
+                startIndex = css.indexOf(prefix, startIndex + 1);
+                continue;
+            }
+            sb.append(css, appendIndex, startIndex).append(tokens.get(index));
+            appendIndex = startIndex + prefix.length() + placeholderDigits(index) + 3;
+            startIndex = css.indexOf(prefix, appendIndex);
+        }
+        sb.append(css, appendIndex, css.length());
+        return sb.toString();
+    }
+
+    /*
+     * Returns the token index of the placeholder whose number starts at the
+     * specified offset, or -1 if there is no placeholder for one of the
+     * tokens there.
+     */
+    private static int placeholderIndex(String css, int start, int count) {
+        int end = start;
+        int index = 0;
+        while (end < css.length() && end - start < 9) {
+            char c = css.charAt(end);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            index = index * 10 + (c - '0');
+            end++;
+        }
+        if (end == start || end - start > 1 && css.charAt(start) == '0' ||
+                index >= count || !css.startsWith("___", end)) {
+            return -1;
+        }
+        return index;
+    }
+
+    /*
+     * Writes the compressed stylesheet, taking the tokens kept off the heap
+     * from there.
+     */
+    private void writeTokens(String css, Writer out) throws IOException {
+        final String prefix = "___YUICSSMIN_PRESERVED_TOKEN_";
+        int appendIndex = 0;
+        int startIndex = css.indexOf(prefix);
+        while (startIndex >= 0) {
+            int index = placeholderIndex(css, startIndex + prefix.length(), preservedTokens.size());
+            if (index < 0 || preservedTokens.get(index) != null || !offHeapTokens.contains(index)) {
+                startIndex = css.indexOf(prefix, startIndex + 1);
+                continue;
+            }
+            out.write(css, appendIndex, startIndex - appendIndex);
+            offHeapTokens.writeTo(index, out);
+            appendIndex = startIndex + prefix.length() + placeholderDigits(index) + 3;
+            startIndex = css.indexOf(prefix, appendIndex);
+        }
+        out.write(css, appendIndex, css.length() - appendIndex);
+    }
+
+    /*
+     * Returns the end of the string starting with the quote at the specified
+     * offset, after the first quote not escaped by a backslash, or -1 if
+     * there is none. The text between the quotes and backslashes is skipped
+     * with indexOf() rather than a character at a time. Like the regular
+     * expression this replaces, an unterminated string ends at the last
+     * escaped quote, its backtracking point, if there is one.
+     */
+    static int stringEnd(String css, int start) {
+        char quote = css.charAt(start);
+        int lastQuote = -1;
+        int j = start + 1;
+        int q = css.indexOf(quote, j);
+        while (q >= 0) {
+            int backslash = css.indexOf('\\', j);
+            if (backslash < 0 || backslash > q) {
+                return q + 1;
+            }
+            if (backslash + 1 == q) {
+                lastQuote = q;
+            }
+            // The backslash escapes the character after it
+            j = backslash + 2;
+            if (j > q) {
+                q = css.indexOf(quote, j);
+            }
+        }
+        return lastQuote < 0 ? -1 : lastQuote + 1;
+    }
+
+    private static int placeholderDigits(int index) {
+        int digits = 1;
+        while (index >= 10) {
+            index /= 10;
+            digits++;
+        }
+        return digits;
+    }
+
+    /*
+     * Decides what becomes of the specified comment and returns the index of
+     * the next comment to decide. The replacement of a placeholder is left
+     * null when the comment is to be removed. The text preceding the
+     * placeholder is given when it is still in the stylesheet.
+     */
+    private int wrestleComment(int i, StringBuffer preceding, String[] replacements) {
+        String token = comments.get(i);
+
+        // ! in the first position of the comment means preserve
+        // so push to the preserved tokens while stripping the !
+        if (token.startsWith("!")) {
+            preservedTokens.add(token);
+            replacements[i] = "___YUICSSMIN_PRESERVED_TOKEN_" + (preservedTokens.size() - 1) + "___";
+            return i + 1;
+        }
+
+        // \ in the last position looks like hack for Mac/IE5
+        // shorten that to /*\*/ and the next one to /**/
+        if (token.endsWith("\\")) {
+            preservedTokens.add("\\");
+            replacements[i] = "___YUICSSMIN_PRESERVED_TOKEN_" + (preservedTokens.size() - 1) + "___";
+            preservedTokens.add("");
+            if (i + 1 < replacements.length) {
+                replacements[i + 1] = "___YUICSSMIN_PRESERVED_TOKEN_" + (preservedTokens.size() - 1) + "___";
+            }
+            return i + 2;
+        }
+
+        // keep empty comments after child selectors (IE7 hack)
+        // e.g. html >/**/ body
+        if (token.length() == 0 && preceding != null && preceding.length() > 2 &&
+                preceding.charAt(preceding.length() - 3) == '>') {
+            preservedTokens.add("");
+            replacements[i] = "___YUICSSMIN_PRESERVED_TOKEN_" + (preservedTokens.size() - 1) + "___";
+        }
+        return i + 1;
+    }
+
+    /**
+     * Sets where to report the stylesheets that could not be compressed as
+     * usual, or null.
+     */
+    public void setErrorReporter(ErrorReporter reporter) {
+        this.reporter = reporter;
+    }
+
+    /**
+     * Returns the rules the regular expression engine applies, in order.
+     */
+    public List<CssRule> getRules() {
+        return Collections.unmodifiableList(rules);
+    }
+
+    /**
+     * Sets the rules the regular expression engine applies, in order, for
+     * instance to leave out or reorder some of {@link #defaultRules()}. The
+     * single-pass engine always applies the default rules.
+     */
+    public void setRules(List<CssRule> rules) {
+        this.rules = new ArrayList<>(rules);
+    }
+
+    /**
+     * Compresses the stylesheet loaded with {@link #reset(Reader)}.
+     * <p>
+     * The regular expressions are limited to reading a multiple of the length
+     * of the stylesheet, so that malformed or generated stylesheets that
+     * would make them backtrack for minutes take linear time. Past the limit,
+     * a warning is reported and the stylesheet is compressed by the
+     * single-pass engine instead, or written as it is if that engine does
+     * not accept it.
+     *
+     * @param out where to write the compressed stylesheet
+     * @param linebreakpos the column after which to break lines, or -1
+     * @see #setMergeRules(boolean)
+     * @see #addTemplate(Reader)
+     */
     public void compress(Writer out, int linebreakpos)
             throws IOException {
 
-        Pattern p;
-        Matcher m;
+        if (merger != null || pruner != null || nameMangler != null) {
+            // The lines are broken once the rules are pruned, renamed and merged
+            StringWriter buffer = new StringWriter(srcsb.length());
+            compressStylesheet(buffer, -1);
+            String css = buffer.toString();
+            if (pruner != null) {
+                css = pruner.prune(css);
+            }
+            if (nameMangler != null) {
+                String renamed = nameMangler.mangle(css);
+                if (renamed != null) {
+                    css = renamed;
+                } else if (reporter != null) {
+                    reporter.warning("Class names and ids not renamed, since the stylesheet cannot be read as a list of rules",
+                            null, -1, null, -1);
+                }
+            }
+            if (merger != null) {
+                css = merger.merge(css, -1);
+            }
+            out.write(linebreakpos >= 0 ? CssMerger.breakLines(css, linebreakpos) : css);
+        } else {
+            compressStylesheet(out, linebreakpos);
+        }
+    }
+
+    private void compressStylesheet(Writer out, int linebreakpos) throws IOException {
         String css = srcsb.toString();
 
+        prepareOffHeapTokens();
+
+        if (singlePass && CssMinifier.accepts(css)) {
+            minify(css, out, linebreakpos);
+            return;
+        }
+
+        String result;
+        try {
+            budget.reset(css.length());
+            result = compressWithRegexes(css, linebreakpos);
+        } catch (RegexBudget.Exceeded | StackOverflowError e) {
+            boolean accepted = CssMinifier.accepts(css);
+            if (reporter != null) {
+                reporter.warning("Stylesheet too complex for the regular expressions, "
+                        + (accepted ? "compressed by the single-pass engine" : "left as it is"), null, -1, null, -1);
+            }
+            if (accepted) {
+                prepareOffHeapTokens();
+                minify(css, out, linebreakpos);
+            } else {
+                out.write(css);
+            }
+            return;
+        } finally {
+            budget.clear();
+        }
+
+        // Write the output...
+        if (offHeapTokens != null && offHeapTokens.size() > 0) {
+            writeTokens(result, out);
+        } else {
+            out.write(result);
+        }
+    }
+
+    private void minify(String css, Writer out, int linebreakpos) throws IOException {
+        if (minifier == null) {
+            minifier = new CssMinifier();
+        }
+        minifier.setOffHeapTokens(offHeapTokens, dataUriThreshold);
+        if (parallel && linebreakpos < 0 && css.length() >= 2 * parallelChunkLength
+                && minifyInParallel(css, out)) {
+            return;
+        }
+        minifier.minify(css, linebreakpos, out);
+    }
+
+    /*
+     * Cuts a large stylesheet where CssMinifier can pick up again as if the
+     * part before had just been minified, and minifies the chunks
+     * concurrently, each with its own minifier and data URI storage. The
+     * chunks are written in order once all of them are done. Returns false,
+     * having written nothing, when there is no cut or when a @charset rule
+     * follows the first one, since it would have to be moved to the top.
+     */
+    private boolean minifyInParallel(final String css, Writer out) throws IOException {
+        ArrayList<int[]> cuts = minifier.split(css, parallelChunkLength);
+        if (cuts.isEmpty() || hasCharset(css, cuts.get(0)[0])) {
+            return false;
+        }
+
+        ArrayList<CssMinifier> minifiers = new ArrayList<>();
+        ArrayList<ForkJoinTask<String>> parts = new ArrayList<>();
+        for (int i = 0; i <= cuts.size(); i++) {
+            final int start = i > 0 ? cuts.get(i - 1)[0] : 0;
+            final int end = i < cuts.size() ? cuts.get(i)[0] : css.length();
+            final boolean nested = i > 0 && cuts.get(i - 1)[1] != 0;
+            final boolean first = i == 0;
+            final CssMinifier chunkMinifier = new CssMinifier();
+            if (offHeapTokens != null) {
+                chunkMinifier.setOffHeapTokens(new OffHeapTokens(), dataUriThreshold);
+            }
+            minifiers.add(chunkMinifier);
+            parts.add(ForkJoinPool.commonPool().submit(() -> {
+                String chunk = css.substring(start, end);
+                return first ? chunkMinifier.minify(chunk, -1)
+                        : chunkMinifier.minifyAfterCut(chunk, -1, nested);
+            }));
+        }
+
+        String[] results = new String[parts.size()];
+        for (int i = 0; i < results.length; i++) {
+            results[i] = parts.get(i).join();
+        }
+
+        // The semicolons that end a chunk and start the next are one
+        boolean semicolon = false;
+        for (int i = 0; i < results.length; i++) {
+            String result = results[i];
+            int start = 0;
+            while (semicolon && start < result.length() && result.charAt(start) == ';') {
+                start++;
+            }
+            result = result.substring(start);
+            if (!result.isEmpty()) {
+                minifiers.get(i).write(result, out);
+                semicolon = result.charAt(result.length() - 1) == ';';
+            }
+        }
+        return true;
+    }
+
+    private static boolean hasCharset(String css, int from) {
+        for (int i = css.indexOf('@', from); i >= 0; i = css.indexOf('@', i + 1)) {
+            if (css.regionMatches(true, i, "@charset", 0, "@charset".length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String compressWithRegexes(String css, int linebreakpos) {
+
+        Matcher m;
         int startIndex = 0;
         int endIndex = 0;
-        int i = 0;
-        int max = 0;
-        ArrayList<String> preservedTokens = new ArrayList<>(0);
-        ArrayList<String> comments = new ArrayList<>(0);
+        ArrayList<String> preservedTokens = this.preservedTokens;
+        ArrayList<String> comments = this.comments;
+        preservedTokens.clear();
+        comments.clear();
         String token;
         int totallen = css.length();
-        String placeholder;
 
 
-        StringBuffer sb = new StringBuffer(css);
+        StringBuffer sb = work;
+        sb.setLength(0);
+
+        // collect all comment blocks, copying the text around them only once
+        int appendIndex = 0;
+        while ((startIndex = css.indexOf("/*", startIndex)) >= 0) {
+            endIndex = css.indexOf("*/", startIndex + 2);
+            if (endIndex < 0) {
+                break;
+            }
+
+            comments.add(css.substring(startIndex + 2, endIndex));
+            sb.append(css, appendIndex, startIndex + 2);
+            sb.append("___YUICSSMIN_PRESERVE_CANDIDATE_COMMENT_").append(comments.size() - 1).append("___");
+            appendIndex = endIndex;
+            startIndex = endIndex + 1;
+        }
+        sb.append(css, appendIndex, totallen);
+        if (startIndex >= 0) {
+            // an unterminated comment runs to the end of the original length
+            startIndex = sb.length() - (totallen - startIndex);
+        }
 
-        // collect all comment blocks...
-        while ((startIndex = sb.indexOf("/*", startIndex)) >= 0) {
+        while (startIndex >= 0 && (startIndex = sb.indexOf("/*", startIndex)) >= 0) {
             endIndex = sb.indexOf("*/", startIndex + 2);
             if (endIndex < 0) {
                 endIndex = totallen;
@@ -144,72 +764,86 @@ public class CssCompressor {
 
 
         // preserve strings so their content doesn't get accidentally minified
-        sb = new StringBuffer();
-        p = Pattern.compile("(\"([^\\\\\"]|\\\\.|\\\\)*\")|(\'([^\\\\\']|\\\\.|\\\\)*\')");
-        m = p.matcher(css);
-        while (m.find()) {
-            token = m.group();
-            char quote = token.charAt(0);
-            token = token.substring(1, token.length() - 1);
+        sb.setLength(0);
+        appendIndex = 0;
+        int doubleQuote = css.indexOf('"');
+        int singleQuote = css.indexOf('\'');
+        while (doubleQuote >= 0 || singleQuote >= 0) {
+            startIndex = doubleQuote < 0 || singleQuote >= 0 && singleQuote < doubleQuote ? singleQuote : doubleQuote;
+            endIndex = stringEnd(css, startIndex);
+            int from = endIndex < 0 ? startIndex + 1 : endIndex;
+            if (doubleQuote >= 0 && doubleQuote < from) {
+                doubleQuote = css.indexOf('"', from);
+            }
+            if (singleQuote >= 0 && singleQuote < from) {
+                singleQuote = css.indexOf('\'', from);
+            }
+            if (endIndex < 0) {
+                continue;
+            }
+
+            char quote = css.charAt(startIndex);
+            token = css.substring(startIndex + 1, endIndex - 1);
 
             // maybe the string contains a comment-like substring?
             // one, maybe more? put'em back then
-            if (token.indexOf("___YUICSSMIN_PRESERVE_CANDIDATE_COMMENT_") >= 0) {
-                for (i = 0, max = comments.size(); i < max; i += 1) {
-                    token = token.replace("___YUICSSMIN_PRESERVE_CANDIDATE_COMMENT_" + i + "___", comments.get(i).toString());
-                }
-            }
+            token = restoreTokens(token, "___YUICSSMIN_PRESERVE_CANDIDATE_COMMENT_", comments);
 
             // minify alpha opacity in filter strings
             token = token.replaceAll("(?i)progid:DXImageTransform.Microsoft.Alpha\\(Opacity=", "alpha(opacity=");
 
             preservedTokens.add(token);
-            String preserver = quote + "___YUICSSMIN_PRESERVED_TOKEN_" + (preservedTokens.size() - 1) + "___" + quote;
-            m.appendReplacement(sb, preserver);
+            sb.append(css, appendIndex, startIndex);
+            appendIndex = endIndex;
+            sb.append(quote).append("___YUICSSMIN_PRESERVED_TOKEN_").append(preservedTokens.size() - 1)
+                    .append("___").append(quote);
         }
-        m.appendTail(sb);
+        sb.append(css, appendIndex, css.length());
         css = sb.toString();
 
 
-        // strings are safe, now wrestle the comments
-        for (i = 0, max = comments.size(); i < max; i += 1) {
-
-            token = comments.get(i).toString();
-            placeholder = "___YUICSSMIN_PRESERVE_CANDIDATE_COMMENT_" + i + "___";
-
-            // ! in the first position of the comment means preserve
-            // so push to the preserved tokens while stripping the !
-            if (token.startsWith("!")) {
-                preservedTokens.add(token);
-                css = css.replace(placeholder,  "___YUICSSMIN_PRESERVED_TOKEN_" + (preservedTokens.size() - 1) + "___");
-                continue;
-            }
+        // strings are safe, now wrestle the comments, in a single pass: each
+        // placeholder still in the text is settled in order, along with the
+        // comments before it that ended up inside strings
+        if (!comments.isEmpty()) {
+            final String candidate = "___YUICSSMIN_PRESERVE_CANDIDATE_COMMENT_";
+            // the \ hack below may also settle the comment after the last one
+            String[] replacements = new String[comments.size() + 1];
+            int next = 0;
+            sb.setLength(0);
+            appendIndex = 0;
+            startIndex = css.indexOf(candidate);
+            while (startIndex >= 0) {
+                int n = placeholderIndex(css, startIndex + candidate.length(), replacements.length);
+                if (n < 0) {
+                    startIndex = css.indexOf(candidate, startIndex + 1);
+                    continue;
+                }
+                sb.append(css, appendIndex, startIndex);
+                appendIndex = startIndex + candidate.length() + placeholderDigits(n) + 3;
 
-            // \ in the last position looks like hack for Mac/IE5
-            // shorten that to /*\*/ and the next one to /**/
-            if (token.endsWith("\\")) {
-                preservedTokens.add("\\");
-                css = css.replace(placeholder,  "___YUICSSMIN_PRESERVED_TOKEN_" + (preservedTokens.size() - 1) + "___");
-                i = i + 1; // attn: advancing the loop
-                preservedTokens.add("");
-                css = css.replace("___YUICSSMIN_PRESERVE_CANDIDATE_COMMENT_" + i + "___",  "___YUICSSMIN_PRESERVED_TOKEN_" + (preservedTokens.size() - 1) + "___");
-                continue;
-            }
+                while (next <= n && next < comments.size()) {
+                    next = wrestleComment(next, next == n ? sb : null, replacements);
+                }
 
-            // keep empty comments after child selectors (IE7 hack)
-            // e.g. html >/**/ body
-            if (token.length() == 0) {
-                startIndex = css.indexOf(placeholder);
-                if (startIndex > 2) {
-                    if (css.charAt(startIndex - 3) == '>') {
-                        preservedTokens.add("");
-                        css = css.replace(placeholder,  "___YUICSSMIN_PRESERVED_TOKEN_" + (preservedTokens.size() - 1) + "___");
-                    }
+                if (replacements[n] != null) {
+                    sb.append(replacements[n]);
+                } else if (n < comments.size() && css.startsWith("*/", appendIndex) && sb.length() >= 2
+                        && sb.charAt(sb.length() - 2) == '/' && sb.charAt(sb.length() - 1) == '*') {
+                    // in all other cases kill the comment
+                    sb.setLength(sb.length() - 2);
+                    appendIndex += 2;
+                } else {
+                    sb.append(css, startIndex, appendIndex);
                 }
+                startIndex = css.indexOf(candidate, appendIndex);
             }
+            sb.append(css, appendIndex, css.length());
+            css = sb.toString();
 
-            // in all other cases kill the comment
-            css = css.replace("/*" + placeholder + "*/", "");
+            while (next < comments.size()) {
+                next = wrestleComment(next, null, replacements);
+            }
         }
 
         // preserve \9 IE hack
@@ -219,198 +853,163 @@ public class CssCompressor {
             css = css.replace(backslash9,  "___YUICSSMIN_PRESERVED_TOKEN_" + (preservedTokens.size() - 1) + "___");
      	}
         
-        // Normalize all whitespace strings to single spaces. Easier to work with that way.
-        css = css.replaceAll("\\s+", " ");
+        for (CssRule rule : rules) {
+            css = rule.apply(css, budget, linebreakpos);
+        }
 
-        // Remove the spaces before the things that should not have spaces before them.
-        // But, be careful not to turn "p :link {...}" into "p:link{...}"
-        // Swap out any pseudo-class colons with the token, and then swap back.
-        sb = new StringBuffer();
-        p = Pattern.compile("(^|\\})((^|([^\\{:])+):)+([^\\{]*\\{)");
-        m = p.matcher(css);
+        // restore preserved comments and strings
+        css = restoreTokens(css, "___YUICSSMIN_PRESERVED_TOKEN_", preservedTokens);
+        
+        // Add spaces back in between operators for css calc function
+        // https://developer.mozilla.org/en-US/docs/Web/CSS/calc
+        // Added by Eric Arnol-Martin (earnolmartin@gmail.com)
+        sb.setLength(0);
+        m = budget.matcher(CALC, css);
         while (m.find()) {
             String s = m.group();
-            s = s.replaceAll(":", "___YUICSSMIN_PSEUDOCLASSCOLON___");
-            s = s.replaceAll( "\\\\", "\\\\\\\\" ).replaceAll( "\\$", "\\\\\\$" );
+            
+            s = CALC_PLUS.matcher(s).replaceAll(" + ");
+            s = CALC_MINUS.matcher(s).replaceAll(" - ");
+            s = CALC_TIMES.matcher(s).replaceAll(" * ");
+            s = CALC_DIVIDE.matcher(s).replaceAll(" / ");
+            
             m.appendReplacement(sb, s);
         }
         m.appendTail(sb);
-        css = sb.toString();
-        // Remove spaces before the things that should not have spaces before them.
-        css = css.replaceAll("\\s+([!{};:>+\\(\\)\\],])", "$1");
-        // Restore spaces for !important
-        css = css.replaceAll("!important", " !important");
-        // bring back the colon
-        css = css.replaceAll("___YUICSSMIN_PSEUDOCLASSCOLON___", ":");
+        css = sb.toString(); 
+
+        // Trim the final string (for any leading or trailing white spaces)
+        return css.trim();
+    }
+
+    /**
+     * Returns new instances of the rules the regular expression engine
+     * applies by default, in order.
+     */
+    public static List<CssRule> defaultRules() {
+        List<CssRule> rules = new ArrayList<>();
+
+        // Normalize all whitespace strings to single spaces. Easier to work with that way.
+        rules.add(CssRule.replace("whitespace", "\\s+", " "));
+
+        // Remove the spaces before the things that should not have spaces before them.
+        // But, be careful not to turn "p :link {...}" into "p:link{...}"
+        // Swap out any pseudo-class colons with the token, and then swap back.
+        Pattern pseudoClasses = Pattern.compile("(^|\\})((^|([^\\{:])+):)+([^\\{]*\\{)");
+        Pattern spacesBefore = Pattern.compile("\\s+([!{};:>+\\(\\)\\],])");
+        Pattern important = Pattern.compile("!important");
+        Pattern pseudoClassColon = Pattern.compile("___YUICSSMIN_PSEUDOCLASSCOLON___");
+        rules.add(new CssRule("spaces-before", (rule, css, budget, linebreakpos) -> {
+            css = budget.matcher(pseudoClasses, css).replaceAll(m ->
+                    Matcher.quoteReplacement(m.group().replace(":", "___YUICSSMIN_PSEUDOCLASSCOLON___")));
+            css = budget.matcher(spacesBefore, css).replaceAll(m -> {
+                rule.hit();
+                return "$1";
+            });
+            // Restore spaces for !important
+            css = budget.matcher(important, css).replaceAll(" !important");
+            // bring back the colon
+            return budget.matcher(pseudoClassColon, css).replaceAll(":");
+        }));
 
         // retain space for special IE6 cases
-        sb = new StringBuffer();
-        p = Pattern.compile("(?i):first\\-(line|letter)(\\{|,)");
-        m = p.matcher(css);
-        while (m.find()) {
-            m.appendReplacement(sb, ":first-" + m.group(1).toLowerCase() + " " + m.group(2));
-        }
-        m.appendTail(sb);
-        css = sb.toString();
+        rules.add(CssRule.replace("first-line-space", "(?i):first\\-(line|letter)(\\{|,)",
+                m -> ":first-" + m.group(1).toLowerCase() + " " + m.group(2)));
 
         // no space after the end of a preserved comment
-        css = css.replaceAll("\\*/ ", "*/");
+        rules.add(CssRule.replace("comment-space", "\\*/ ", "*/"));
 
         // If there are multiple @charset directives, push them to the top of the file.
-        sb = new StringBuffer();
-        p = Pattern.compile("(?i)^(.*)(@charset)( \"[^\"]*\";)");
-        m = p.matcher(css);
-        while (m.find()) {
-            String s = m.group(1).replaceAll("\\\\", "\\\\\\\\").replaceAll("\\$", "\\\\\\$");
-            m.appendReplacement(sb, m.group(2).toLowerCase() + m.group(3) + s);
-        }
-        m.appendTail(sb);
-        css = sb.toString();
+        rules.add(CssRule.replace("charset-to-top", "(?i)^(.*)(@charset)( \"[^\"]*\";)", m ->
+                m.group(2).toLowerCase() + m.group(3) + m.group(1).replaceAll("\\\\", "\\\\\\\\").replaceAll("\\$", "\\\\\\$")));
 
         // When all @charset are at the top, remove the second and after (as they are completely ignored).
-        sb = new StringBuffer();
-        p = Pattern.compile("(?i)^((\\s*)(@charset)( [^;]+;\\s*))+");
-        m = p.matcher(css);
-        while (m.find()) {
-            m.appendReplacement(sb, m.group(2) + m.group(3).toLowerCase() + m.group(4));
-        }
-        m.appendTail(sb);
-        css = sb.toString();
+        rules.add(CssRule.replace("single-charset", "(?i)^((\\s*)(@charset)( [^;]+;\\s*))+",
+                m -> m.group(2) + m.group(3).toLowerCase() + m.group(4)));
 
         // lowercase some popular @directives (@charset is done right above)
-        sb = new StringBuffer();
-        p = Pattern.compile("(?i)@(font-face|import|(?:-(?:atsc|khtml|moz|ms|o|wap|webkit)-)?keyframe|media|page|namespace)");
-        m = p.matcher(css);
-        while (m.find()) {
-            m.appendReplacement(sb, '@' + m.group(1).toLowerCase());
-        }
-        m.appendTail(sb);
-        css = sb.toString();
+        rules.add(CssRule.replace("lowercase-at-rules",
+                "(?i)@(font-face|import|(?:-(?:atsc|khtml|moz|ms|o|wap|webkit)-)?keyframe|media|page|namespace)",
+                m -> '@' + m.group(1).toLowerCase()));
 
         // lowercase some more common pseudo-elements
-        sb = new StringBuffer();
-        p = Pattern.compile("(?i):(active|after|before|checked|disabled|empty|enabled|first-(?:child|of-type)|focus|hover|last-(?:child|of-type)|link|only-(?:child|of-type)|root|:selection|target|visited)");
-        m = p.matcher(css);
-        while (m.find()) {
-            m.appendReplacement(sb, ':' + m.group(1).toLowerCase());
-        }
-        m.appendTail(sb);
-        css = sb.toString();
+        rules.add(CssRule.replace("lowercase-pseudo-classes",
+                "(?i):(active|after|before|checked|disabled|empty|enabled|first-(?:child|of-type)|focus|hover|last-(?:child|of-type)|link|only-(?:child|of-type)|root|:selection|target|visited)",
+                m -> ':' + m.group(1).toLowerCase()));
 
         // lowercase some more common functions
-        sb = new StringBuffer();
-        p = Pattern.compile("(?i):(lang|not|nth-child|nth-last-child|nth-last-of-type|nth-of-type|(?:-(?:moz|webkit)-)?any)\\(");
-        m = p.matcher(css);
-        while (m.find()) {
-            m.appendReplacement(sb, ':' + m.group(1).toLowerCase() + '(');
-        }
-        m.appendTail(sb);
-        css = sb.toString();
+        rules.add(CssRule.replace("lowercase-pseudo-functions",
+                "(?i):(lang|not|nth-child|nth-last-child|nth-last-of-type|nth-of-type|(?:-(?:moz|webkit)-)?any)\\(",
+                m -> ':' + m.group(1).toLowerCase() + '('));
 
         // lower case some common function that can be values
         // NOTE: rgb() isn't useful as we replace with #hex later, as well as and() is already done for us right after this
-        sb = new StringBuffer();
-        p = Pattern.compile("(?i)([:,\\( ]\\s*)(attr|color-stop|from|rgba|to|url|(?:-(?:atsc|khtml|moz|ms|o|wap|webkit)-)?(?:calc|max|min|(?:repeating-)?(?:linear|radial)-gradient)|-webkit-gradient)");
-        m = p.matcher(css);
-        while (m.find()) {
-            m.appendReplacement(sb, m.group(1) + m.group(2).toLowerCase());
-        }
-        m.appendTail(sb);
-        css = sb.toString();
+        rules.add(CssRule.replace("lowercase-functions",
+                "(?i)([:,\\( ]\\s*)(attr|color-stop|from|rgba|to|url|(?:-(?:atsc|khtml|moz|ms|o|wap|webkit)-)?(?:calc|max|min|(?:repeating-)?(?:linear|radial)-gradient)|-webkit-gradient)",
+                m -> m.group(1) + m.group(2).toLowerCase()));
 
         // Put the space back in some cases, to support stuff like
         // @media screen and (-webkit-min-device-pixel-ratio:0){
-        css = css.replaceAll("(?i)\\band\\(", "and (");
+        rules.add(CssRule.replace("and-space", "(?i)\\band\\(", "and ("));
 
         // Remove the spaces after the things that should not have spaces after them.
-        css = css.replaceAll("([!{}:;>+\\(\\[,])\\s+", "$1");
+        rules.add(CssRule.replace("spaces-after", "([!{}:;>+\\(\\[,])\\s+", "$1"));
 
         // remove unnecessary semicolons
-        css = css.replaceAll(";+}", "}");
+        rules.add(CssRule.replace("last-semicolons", ";+}", "}"));
+
+        // Drop the zeros that end a fraction: 1.50 becomes 1.5 and 1.0 becomes 1
+        rules.add(CssRule.replace("trailing-zeros",
+                "(?:^|(?<=[:,( /{};]))([-+]?)([0-9]*)\\.([0-9]*?)0+(?![0-9.])",
+                m -> m.group(1) + CssValues.trimFraction(m.group(2), m.group(3))));
 
         // Replace 0(px,em) with 0. (don't replace seconds are they are needed for transitions to be valid)
-        String oldCss;
-        p = Pattern.compile("(?i)(^|: ?)((?:[0-9a-z-.]+ )*?)?(?:0?\\.)?0(?:px|em|in|cm|mm|pc|pt|ex|deg|g?rad|k?hz)");
-        do {
-          oldCss = css;
-          m = p.matcher(css);
-          css = m.replaceAll("$1$20");
-        } while (!(css.equals(oldCss)));
-        
+        rules.add(CssRule.repeat("zero-units",
+                "(?i)(^|: ?)((?:[0-9a-z-.]+ )*?)?(?:0?\\.)?0(?:px|em|in|cm|mm|pc|pt|ex|deg|g?rad|k?hz)", "$1$20"));
+
         // We do the same with % but don't replace the 0% in keyframes
-//        String oldCss;
-        p = Pattern.compile("(?i)(: ?)((?:[0-9a-z-.]+ )*?)?(?:0?\\.)?0(?:%)");
-        do {
-          oldCss = css;
-          m = p.matcher(css);
-          css = m.replaceAll("$1$20");
-        } while (!(css.equals(oldCss)));
-        
-        //Replace the keyframe 100% step with 'to' which is shorter
-        // Does not work
-//        p = Pattern.compile("(?i)(^|,|{) ?(?:100% ?{)");
-//        do {
-//          oldCss = css;
-//          m = p.matcher(css);
-//          css = m.replaceAll("$1to{");
-//        } while (!(css.equals(oldCss)));
+        rules.add(CssRule.repeat("zero-percentages", "(?i)(: ?)((?:[0-9a-z-.]+ )*?)?(?:0?\\.)?0(?:%)", "$1$20"));
 
         // Replace 0(px,em,%) with 0 inside groups (e.g. -MOZ-RADIAL-GRADIENT(CENTER 45DEG, CIRCLE CLOSEST-SIDE, ORANGE 0%, RED 100%))
-        p = Pattern.compile("(?i)\\( ?((?:[0-9a-z-.]+[ ,])*)?(?:0?\\.)?0(?:px|em|%|in|cm|mm|pc|pt|ex|deg|g?rad|m?s|k?hz)");
-        do {
-          oldCss = css;
-          m = p.matcher(css);
-          css = m.replaceAll("($10");
-        } while (!(css.equals(oldCss)));
+        rules.add(CssRule.repeat("zero-units-in-groups",
+                "(?i)\\( ?((?:[0-9a-z-.]+[ ,])*)?(?:0?\\.)?0(?:px|em|%|in|cm|mm|pc|pt|ex|deg|g?rad|m?s|k?hz)", "($10"));
 
         // Replace x.0(px,em,%) with x(px,em,%).
-        css = css.replaceAll("([0-9])\\.0(px|em|%|in|cm|mm|pc|pt|ex|deg|m?s|g?rad|k?hz| |;)", "$1$2");
-
-        // Replace 0 0 0 0; with 0.
-        css = css.replaceAll(":0 0 0 0(;|})", ":0$1");
-        css = css.replaceAll(":0 0 0(;|})", ":0$1");
-        css = css.replaceAll("(?<!flex):0 0(;|})", ":0$1");
+        rules.add(CssRule.replace("zero-decimals",
+                "([0-9])\\.0(px|em|%|in|cm|mm|pc|pt|ex|deg|m?s|g?rad|k?hz| |;)", "$1$2"));
 
+        // Replace 0 0 0 0; with 0, as well as 0 0 0; and 0 0; in the same scan
+        rules.add(CssRule.replace("zero-shorthands", "(?::0 0 0 0|:0 0 0|(?<!flex):0 0)(;|})", ":0$1"));
 
         // Replace background-position:0; with background-position:0 0;
         // same for transform-origin
-        sb = new StringBuffer();
-        p = Pattern.compile("(?i)(background-position|webkit-mask-position|transform-origin|webkit-transform-origin|moz-transform-origin|o-transform-origin|ms-transform-origin):0(;|})");
-        m = p.matcher(css);
-        while (m.find()) {
-            m.appendReplacement(sb, m.group(1).toLowerCase() + ":0 0" + m.group(2));
-        }
-        m.appendTail(sb);
-        css = sb.toString();
+        rules.add(CssRule.replace("zero-positions",
+                "(?i)(background-position|webkit-mask-position|transform-origin|webkit-transform-origin|moz-transform-origin|o-transform-origin|ms-transform-origin):0(;|})",
+                m -> m.group(1).toLowerCase() + ":0 0" + m.group(2)));
 
         // Replace 0.6 to .6, but only when preceded by : or a white-space
-        css = css.replaceAll("(:|\\s)0+\\.(\\d+)", "$1.$2");
+        rules.add(CssRule.replace("leading-zeros", "(:|\\s)0+\\.(\\d+)", "$1.$2"));
 
-        // Shorten colors from rgb(51,102,153) to #336699
-        // This makes it more likely that it'll get further compressed in the next step.
-        p = Pattern.compile("rgb\\s*\\(\\s*([0-9,\\s]+)\\s*\\)");
-        m = p.matcher(css);
-        sb = new StringBuffer();
-        while (m.find()) {
-            String[] rgbcolors = m.group(1).split(",");
-            StringBuffer hexcolor = new StringBuffer("#");
-            for (i = 0; i < rgbcolors.length; i++) {
-                int val = Integer.parseInt(rgbcolors[i]);
-                if (val < 16) {
-                    hexcolor.append("0");
-                }
+        // Write times in the shorter of seconds and milliseconds: 500ms becomes .5s
+        rules.add(CssRule.replace("time-units",
+                "(?i)(?:^|(?<=[:,( /{};]))([-+]?)([0-9]*\\.?[0-9]+)(ms|s)(?![\\w-])", m -> {
+                    String time = CssValues.shortestTime(m.group(2), m.group(3));
+                    return time == null ? m.group() : m.group(1) + time;
+                }));
 
-                // If someone passes an RGB value that's too big to express in two characters, round down.
-                // Probably should throw out a warning here, but generating valid CSS is a bigger concern.
-                if (val > 255) {
-                    val = 255;
-                }
-                hexcolor.append(Integer.toHexString(val));
-            }
-            m.appendReplacement(sb, hexcolor.toString());
-        }
-        m.appendTail(sb);
-        css = sb.toString();
+        // Shorten colors from rgb(51,102,153), hsl(210,50%,40%) and opaque
+        // rgba() and hsla() to #336699.
+        // This makes it more likely that it'll get further compressed in the next step.
+        Pattern colorFunctions = Pattern.compile("(?i)(rgba?|hsla?)\\(([^()]*)\\)");
+        rules.add(new CssRule("color-functions", (rule, css, budget, linebreakpos) ->
+                budget.matcher(colorFunctions, css).replaceAll(m -> {
+                    String hex = CssValues.toHex(m.group(1), m.group(2));
+                    if (hex == null) {
+                        return Matcher.quoteReplacement(m.group());
+                    }
+                    rule.hit();
+                    return hex;
+                })));
 
         // Shorten colors from #AABBCC to #ABC. Note that we want to make sure
         // the color is not preceded by either ", " or =. Indeed, the property
@@ -420,129 +1019,114 @@ public class CssCompressor {
         // which makes the filter break in IE.
         // We also want to make sure we're only compressing #AABBCC patterns inside { }, not id selectors ( #FAABAC {} )
         // We also want to avoid compressing invalid values (e.g. #AABBCCD to #ABCD)
-        p = Pattern.compile("(\\=\\s*?[\"']?)?" + "#([0-9a-fA-F])([0-9a-fA-F])([0-9a-fA-F])([0-9a-fA-F])([0-9a-fA-F])([0-9a-fA-F])" + "(:?\\}|[^0-9a-fA-F{][^{]*?\\})");
-
-        m = p.matcher(css);
-        sb = new StringBuffer();
-        int index = 0;
+        Pattern hexColors = Pattern.compile("(\\=\\s*?[\"']?)?" + "#([0-9a-fA-F])([0-9a-fA-F])([0-9a-fA-F])([0-9a-fA-F])([0-9a-fA-F])([0-9a-fA-F])" + "(:?\\}|[^0-9a-fA-F{][^{]*?\\})");
+        rules.add(new CssRule("hex-colors", (rule, css, budget, linebreakpos) -> {
+            Matcher m = budget.matcher(hexColors, css);
+            StringBuilder sb = new StringBuilder(css.length());
+            int index = 0;
 
-        while (m.find(index)) {
+            while (m.find(index)) {
 
-            sb.append(css.substring(index, m.start()));
+                sb.append(css, index, m.start());
 
-            boolean isFilter = (m.group(1) != null && !"".equals(m.group(1)));
+                boolean isFilter = (m.group(1) != null && !"".equals(m.group(1)));
 
-            if (isFilter) {
-                // Restore, as is. Compression will break filters
-                sb.append(m.group(1) + "#" + m.group(2) + m.group(3) + m.group(4) + m.group(5) + m.group(6) + m.group(7));
-            } else {
-                if( m.group(2).equalsIgnoreCase(m.group(3)) &&
-                    m.group(4).equalsIgnoreCase(m.group(5)) &&
-                    m.group(6).equalsIgnoreCase(m.group(7))) {
+                if (isFilter) {
+                    // Restore, as is. Compression will break filters
+                    sb.append(m.group(1) + "#" + m.group(2) + m.group(3) + m.group(4) + m.group(5) + m.group(6) + m.group(7));
+                } else {
+                    if( m.group(2).equalsIgnoreCase(m.group(3)) &&
+                        m.group(4).equalsIgnoreCase(m.group(5)) &&
+                        m.group(6).equalsIgnoreCase(m.group(7))) {
 
-                    // #AABBCC pattern
-                    sb.append("#" + (m.group(3) + m.group(5) + m.group(7)).toLowerCase());
+                        // #AABBCC pattern
+                        sb.append("#" + (m.group(3) + m.group(5) + m.group(7)).toLowerCase());
+                        rule.hit();
 
-                } else {
+                    } else {
 
-                    // Non-compressible color, restore, but lower case.
-                    sb.append("#" + (m.group(2) + m.group(3) + m.group(4) + m.group(5) + m.group(6) + m.group(7)).toLowerCase());
+                        // Non-compressible color, restore, but lower case.
+                        sb.append("#" + (m.group(2) + m.group(3) + m.group(4) + m.group(5) + m.group(6) + m.group(7)).toLowerCase());
+                    }
                 }
-            }
 
-            index = m.end(7);
-        }
-
-        sb.append(css.substring(index));
-        css = sb.toString();
+                index = m.end(7);
+            }
 
-        // Replace #f00 -> red
-        css = css.replaceAll("(:|\\s)(#f00)(;|})", "$1red$3");
-        // Replace other short color keywords
-        css = css.replaceAll("(:|\\s)(#000080)(;|})", "$1navy$3");
-        css = css.replaceAll("(:|\\s)(#808080)(;|})", "$1gray$3");
-        css = css.replaceAll("(:|\\s)(#808000)(;|})", "$1olive$3");
-        css = css.replaceAll("(:|\\s)(#800080)(;|})", "$1purple$3");
-        css = css.replaceAll("(:|\\s)(#c0c0c0)(;|})", "$1silver$3");
-        css = css.replaceAll("(:|\\s)(#008080)(;|})", "$1teal$3");
-        css = css.replaceAll("(:|\\s)(#ffa500)(;|})", "$1orange$3");
-        css = css.replaceAll("(:|\\s)(#800000)(;|})", "$1maroon$3");
+            sb.append(css, index, css.length());
+            return sb.toString();
+        }));
+
+        // Replace #f00 -> red, and the other colors with shorter names, in a single scan
+        rules.add(CssRule.table("color-names", "(:|\\s)", "(;|})", CssValues.shorterNames()));
+
+        // Replace white -> #fff, and the other names with shorter values, in
+        // the values of the properties that take colors
+        Pattern declarations = Pattern.compile("(?:^|(?<=[{};]))([A-Za-z-]+):([^;{}]*)");
+        rules.add(new CssRule("color-keywords", (rule, css, budget, linebreakpos) ->
+                budget.matcher(declarations, css).replaceAll(m -> {
+                    String value = m.group(2);
+                    if (CssValues.isColorProperty(m.group(1))) {
+                        String shorter = CssValues.shortenColorNames(value);
+                        if (shorter != value) {
+                            rule.hit();
+                            value = shorter;
+                        }
+                    }
+                    return Matcher.quoteReplacement(m.group(1) + ":" + value);
+                })));
 
         // border: none -> border:0
-        sb = new StringBuffer();
-        p = Pattern.compile("(?i)(border|border-top|border-right|border-bottom|border-left|outline|background):none(;|})");
-        m = p.matcher(css);
-        while (m.find()) {
-            m.appendReplacement(sb, m.group(1).toLowerCase() + ":0" + m.group(2));
-        }
-        m.appendTail(sb);
-        css = sb.toString();
+        rules.add(CssRule.replace("none-borders",
+                "(?i)(border|border-top|border-right|border-bottom|border-left|outline|background):none(;|})",
+                m -> m.group(1).toLowerCase() + ":0" + m.group(2)));
 
         // shorter opacity IE filter
-        css = css.replaceAll("(?i)progid:DXImageTransform.Microsoft.Alpha\\(Opacity=", "alpha(opacity=");
-
-        // Find a fraction that is used for Opera's -o-device-pixel-ratio query
-        // Add token to add the "\" back in later
-        css = css.replaceAll("\\(([\\-A-Za-z]+):([0-9]+)\\/([0-9]+)\\)", "($1:$2___YUI_QUERY_FRACTION___$3)");
+        rules.add(CssRule.replace("alpha-opacity", "(?i)progid:DXImageTransform.Microsoft.Alpha\\(Opacity=", "alpha(opacity="));
 
         // Remove empty rules.
-        css = css.replaceAll("[^\\}\\{/;]+\\{\\}", "");
-
-        // Add "\" back to fix Opera -o-device-pixel-ratio query
-        css = css.replaceAll("___YUI_QUERY_FRACTION___", "/");
+        Pattern queryFractions = Pattern.compile("\\(([\\-A-Za-z]+):([0-9]+)\\/([0-9]+)\\)");
+        Pattern emptyRules = Pattern.compile("[^\\}\\{/;]+\\{\\}");
+        Pattern queryFraction = Pattern.compile("___YUI_QUERY_FRACTION___");
+        rules.add(new CssRule("empty-rules", (rule, css, budget, linebreakpos) -> {
+            // Find a fraction that is used for Opera's -o-device-pixel-ratio query
+            // Add token to add the "\" back in later
+            css = budget.matcher(queryFractions, css).replaceAll("($1:$2___YUI_QUERY_FRACTION___$3)");
+            css = budget.matcher(emptyRules, css).replaceAll(m -> {
+                rule.hit();
+                return "";
+            });
+            // Add "\" back to fix Opera -o-device-pixel-ratio query
+            return budget.matcher(queryFraction, css).replaceAll("/");
+        }));
 
         // TODO: Should this be after we re-insert tokens. These could alter the break points. However then
         // we'd need to make sure we don't break in the middle of a string etc.
-        if (linebreakpos >= 0) {
+        rules.add(new CssRule("line-breaks", (rule, css, budget, linebreakpos) -> {
+            if (linebreakpos < 0) {
+                return css;
+            }
             // Some source control tools don't like it when files containing lines longer
             // than, say 8000 characters, are checked in. The linebreak option is used in
             // that case to split long lines after a specific column.
-            i = 0;
             int linestartpos = 0;
-            sb = new StringBuffer(css);
-            while (i < sb.length()) {
-                char c = sb.charAt(i++);
-                if (c == '}' && i - linestartpos > linebreakpos) {
-                    sb.insert(i, '\n');
-                    linestartpos = i;
+            StringBuilder sb = new StringBuilder(css.length());
+            for (int i = 0; i < css.length(); i++) {
+                char c = css.charAt(i);
+                sb.append(c);
+                if (c == '}' && sb.length() - linestartpos > linebreakpos) {
+                    linestartpos = sb.length();
+                    sb.append('\n');
+                    rule.hit();
                 }
             }
-
-            css = sb.toString();
-        }
+            return sb.toString();
+        }));
 
         // Replace multiple semi-colons in a row by a single one
         // See SF bug #1980989
-        css = css.replaceAll(";;+", ";");
-
-        // restore preserved comments and strings
-        for(i = 0, max = preservedTokens.size(); i < max; i++) {
-            css = css.replace("___YUICSSMIN_PRESERVED_TOKEN_" + i + "___", preservedTokens.get(i).toString());
-        }
-        
-        // Add spaces back in between operators for css calc function
-        // https://developer.mozilla.org/en-US/docs/Web/CSS/calc
-        // Added by Eric Arnol-Martin (earnolmartin@gmail.com)
-        sb = new StringBuffer();
-        p = Pattern.compile("calc\\([^\\)]*\\)");
-        m = p.matcher(css);
-        while (m.find()) {
-            String s = m.group();
-            
-            s = s.replaceAll("(?<=[-|%|px|em|rem|vw|\\d]+)\\+", " + ");
-            s = s.replaceAll("(?<=[-|%|px|em|rem|vw|\\d]+)\\-", " - ");
-            s = s.replaceAll("(?<=[-|%|px|em|rem|vw|\\d]+)\\*", " * ");
-            s = s.replaceAll("(?<=[-|%|px|em|rem|vw|\\d]+)\\/", " / ");
-            
-            m.appendReplacement(sb, s);
-        }
-        m.appendTail(sb);
-        css = sb.toString(); 
+        rules.add(CssRule.replace("semicolon-runs", ";;+", ";"));
 
-        // Trim the final string (for any leading or trailing white spaces)
-        css = css.trim();
-
-        // Write the output...
-        out.write(css);
+        return rules;
     }
 }
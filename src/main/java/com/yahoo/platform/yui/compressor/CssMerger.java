@@ -0,0 +1,526 @@
+package com.yahoo.platform.yui.compressor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * CssMerger merges the parts of a compressed stylesheet that repeat one
+ * another: rules with the same selector, rules with the same declarations,
+ * and @media or @supports blocks with the same condition. It also drops the
+ * declarations repeated further in the same rule.
+ * <p>
+ * A rule or block is only merged into an earlier one when none of the rules
+ * between them sets a property of the same family (margin and margin-top,
+ * top and inset, font and line-height...), so that moving its declarations
+ * up cannot change which of them wins the cascade. Comments, nested rules,
+ * @import, @layer and the other at-rules this class does not know stop the
+ * search, and rules whose selector has a vendor prefix are not grouped with
+ * others, since a selector list is dropped by the browsers that do not
+ * understand one of its selectors.
+ * <p>
+ * A merger can also be limited to removing the rules and blocks repeated
+ * word for word further in the same block, which is always safe since the
+ * later copy overrides everything the earlier one sets.
+ * <p>
+ * A stylesheet that cannot be read as a list of rules, such as one with an
+ * unterminated string or block, is left as it is. An instance counts the
+ * merges over all the stylesheets it went through and must not be used by
+ * several threads at the same time.
+ */
+final class CssMerger {
+
+    private static final int RULE = 0;
+    private static final int GROUP = 1;
+    private static final int OPAQUE = 2;
+    private static final int BARRIER = 3;
+
+    // How far back to look for a rule to merge into, which keeps the merge
+    // linear in the number of rules
+    private static final int MAX_DISTANCE = 500;
+
+    // Conflicts with every property
+    private static final String ANY = "*";
+
+    // Properties whose families overlap, by the first word of their names
+    private static final Map<String, String> FAMILIES = new HashMap<>();
+
+    static {
+        String[][] families = {
+                {"inset", "top", "right", "bottom", "left"},
+                {"align", "place", "justify"},
+                {"grid", "gap", "row", "column", "columns"},
+                {"font", "line"},
+                {"overflow", "word"},
+                {"text", "white"},
+                {"size", "width", "height", "inline", "block"},
+                {"break", "page"},
+        };
+        for (String[] family : families) {
+            for (String word : family) {
+                FAMILIES.put(word, family[0]);
+            }
+        }
+        FAMILIES.put("all", ANY);
+    }
+
+    private static final class Item {
+        final int kind;
+        String raw;
+        String prelude;
+        List<String> declarations;
+        List<Item> items;
+        final Set<String> families = new HashSet<>();
+
+        Item(int kind, String raw) {
+            this.kind = kind;
+            this.raw = raw;
+        }
+    }
+
+    private final boolean join;
+    private long merged;
+    private long saved;
+
+    CssMerger() {
+        this(true);
+    }
+
+    /**
+     * @param join false to only remove the repeated rules and blocks
+     */
+    CssMerger(boolean join) {
+        this.join = join;
+    }
+
+    /**
+     * Merges the rules of a stylesheet compressed without line breaks.
+     *
+     * @param css the compressed stylesheet
+     * @param linebreakpos the column after which to break lines, or -1
+     * @return the stylesheet with its rules merged
+     */
+    String merge(String css, int linebreakpos) {
+        List<Item> items = parse(css, 0, css.length());
+        String result = css;
+        if (items != null) {
+            merge(items);
+            StringBuilder sb = new StringBuilder(css.length());
+            write(items, sb);
+            result = sb.toString();
+            saved += css.length() - result.length();
+        }
+        return linebreakpos >= 0 ? breakLines(result, linebreakpos) : result;
+    }
+
+    /**
+     * Returns the number of rules and blocks merged into others, or removed
+     * because they were repeated.
+     */
+    long getMerged() {
+        return merged;
+    }
+
+    /**
+     * Returns the number of characters the merges saved.
+     */
+    long getSaved() {
+        return saved;
+    }
+
+    /*
+     * Reads the rules between two positions, or returns null if they are
+     * not well-formed.
+     */
+    private static List<Item> parse(String css, int from, int to) {
+        List<Item> items = new ArrayList<>();
+        int i = from;
+        while (i < to) {
+            if (css.startsWith("/*", i)) {
+                int end = css.indexOf("*/", i + 2);
+                if (end < 0 || end + 2 > to) {
+                    return null;
+                }
+                items.add(new Item(BARRIER, css.substring(i, end + 2)));
+                i = end + 2;
+                continue;
+            }
+
+            int open = skip(css, i, to, true);
+            if (open < 0) {
+                return null;
+            }
+            if (open == to) {
+                items.add(new Item(BARRIER, css.substring(i, to)));
+                break;
+            }
+            if (css.charAt(open) == ';') {
+                items.add(new Item(BARRIER, css.substring(i, open + 1)));
+                i = open + 1;
+                continue;
+            }
+            int close = skip(css, open + 1, to, false);
+            if (close < 0 || close == to) {
+                return null;
+            }
+            Item item = item(css, i, open, close);
+            if (item == null) {
+                return null;
+            }
+            items.add(item);
+            i = close + 1;
+        }
+        return items;
+    }
+
+    private static Item item(String css, int start, int open, int close) {
+        String prelude = css.substring(start, open);
+        String block = css.substring(open + 1, close);
+        Item item;
+        if (prelude.startsWith("@")) {
+            String name = atKeyword(prelude);
+            if (name.equals("media") || name.equals("supports")) {
+                List<Item> items = parse(css, open + 1, close);
+                if (items == null) {
+                    return null;
+                }
+                item = new Item(GROUP, css.substring(start, close + 1));
+                item.items = items;
+                for (Item child : items) {
+                    item.families.addAll(child.kind == BARRIER ? Collections.singleton(ANY) : child.families);
+                }
+            } else if (name.equals("font-face") || name.endsWith("keyframes") || name.equals("page")
+                    || name.equals("counter-style") || name.equals("font-feature-values") || name.equals("property")) {
+                // Not applied to elements, so no rule can override them
+                item = new Item(OPAQUE, css.substring(start, close + 1));
+            } else {
+                item = new Item(BARRIER, css.substring(start, close + 1));
+            }
+        } else if (prelude.contains("/*") || block.contains("/*") || block.indexOf('{') >= 0) {
+            item = new Item(BARRIER, css.substring(start, close + 1));
+        } else {
+            item = new Item(RULE, css.substring(start, close + 1));
+            item.declarations = split(block);
+            for (String declaration : item.declarations) {
+                item.families.add(family(declaration));
+            }
+            if (dropRepeated(item)) {
+                item.raw = null;
+            }
+        }
+        item.prelude = prelude;
+        return item;
+    }
+
+    private static String atKeyword(String prelude) {
+        int i = 1;
+        while (i < prelude.length() && (Character.isLetterOrDigit(prelude.charAt(i)) || prelude.charAt(i) == '-')) {
+            i++;
+        }
+        return prelude.substring(1, i).toLowerCase(Locale.ROOT);
+    }
+
+    /*
+     * Returns the position of the first '{' or ';' (or '}' when looking for
+     * the end of a block) outside of strings, parentheses and brackets, the
+     * end if there is none, or -1 if a string is not terminated.
+     */
+    static int skip(String css, int i, int to, boolean prelude) {
+        int depth = 0;
+        int braces = 0;
+        while (i < to) {
+            char c = css.charAt(i);
+            if (c == '"' || c == '\'') {
+                i = skipString(css, i, to);
+                if (i < 0) {
+                    return -1;
+                }
+                continue;
+            }
+            if (c == '/' && css.startsWith("/*", i)) {
+                int end = css.indexOf("*/", i + 2);
+                if (end < 0 || end + 2 > to) {
+                    return -1;
+                }
+                i = end + 2;
+                continue;
+            }
+            if (c == '\\') {
+                i += 2;
+                continue;
+            }
+            if (c == '(' || c == '[') {
+                depth++;
+            } else if (c == ')' || c == ']') {
+                depth--;
+            } else if (depth <= 0) {
+                if (prelude && (c == '{' || c == ';')) {
+                    return i;
+                }
+                if (!prelude && c == '{') {
+                    braces++;
+                } else if (!prelude && c == '}' && braces-- == 0) {
+                    return i;
+                }
+            }
+            i++;
+        }
+        return to;
+    }
+
+    static int skipString(String css, int start, int to) {
+        char quote = css.charAt(start);
+        for (int i = start + 1; i < to; i++) {
+            char c = css.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == quote) {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    /*
+     * Splits a block into its declarations, at the semi-colons outside of
+     * strings and parentheses.
+     */
+    private static List<String> split(String block) {
+        List<String> declarations = new ArrayList<>();
+        int depth = 0;
+        int start = 0;
+        for (int i = 0; i < block.length(); i++) {
+            char c = block.charAt(i);
+            if (c == '"' || c == '\'') {
+                i = skipString(block, i, block.length()) - 1;
+            } else if (c == '\\') {
+                i++;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == ';' && depth <= 0) {
+                if (i > start) {
+                    declarations.add(block.substring(start, i));
+                }
+                start = i + 1;
+            }
+        }
+        if (block.length() > start) {
+            declarations.add(block.substring(start));
+        }
+        return declarations;
+    }
+
+    /*
+     * Returns the family of the property a declaration sets, which is the
+     * first word of its name, without hacks or vendor prefix.
+     */
+    private static String family(String declaration) {
+        int colon = declaration.indexOf(':');
+        if (colon <= 0) {
+            return ANY;
+        }
+        String property = declaration.substring(0, colon).toLowerCase(Locale.ROOT);
+        int i = 0;
+        while (i < property.length() && (property.charAt(i) == '*' || property.charAt(i) == '_')) {
+            i++;
+        }
+        property = property.substring(i);
+        if (property.startsWith("--")) {
+            return property;
+        }
+        if (property.startsWith("-")) {
+            int dash = property.indexOf('-', 1);
+            property = dash > 0 ? property.substring(dash + 1) : property;
+        }
+        int dash = property.indexOf('-');
+        String word = dash > 0 ? property.substring(0, dash) : property;
+        return FAMILIES.getOrDefault(word, word);
+    }
+
+    private static boolean conflict(Set<String> a, Set<String> b) {
+        if (a.isEmpty() || b.isEmpty()) {
+            return false;
+        }
+        if (a.contains(ANY) || b.contains(ANY)) {
+            return true;
+        }
+        for (String family : b) {
+            if (a.contains(family)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Merges each rule or block into the closest earlier one it can join,
+     * then the rules inside the blocks. Returns true if anything changed.
+     */
+    private boolean merge(List<Item> items) {
+        boolean changed = dropDuplicates(items);
+        List<Item> kept = new ArrayList<>(items.size());
+        for (Item b : items) {
+            boolean joined = false;
+            if (join && (b.kind == RULE || b.kind == GROUP)) {
+                for (int i = kept.size() - 1; i >= Math.max(kept.size() - MAX_DISTANCE, 0); i--) {
+                    Item a = kept.get(i);
+                    if (a.kind == BARRIER) {
+                        break;
+                    }
+                    if (a.kind == b.kind && join(a, b)) {
+                        joined = true;
+                        break;
+                    }
+                    if (conflict(a.families, b.families)) {
+                        break;
+                    }
+                }
+            }
+            if (joined) {
+                merged++;
+                changed = true;
+            } else {
+                kept.add(b);
+            }
+        }
+        if (changed) {
+            items.clear();
+            items.addAll(kept);
+        }
+        for (Item item : items) {
+            if (item.kind == GROUP && merge(item.items)) {
+                item.raw = null;
+                changed = true;
+            }
+            changed |= item.raw == null;
+        }
+        return changed;
+    }
+
+    /*
+     * Removes the rules and blocks written again further in the list.
+     * Returns true if any was.
+     */
+    private boolean dropDuplicates(List<Item> items) {
+        Set<String> seen = new HashSet<>();
+        List<Item> kept = new ArrayList<>(items.size());
+        for (int i = items.size() - 1; i >= 0; i--) {
+            Item item = items.get(i);
+            if ((item.kind == RULE || item.kind == GROUP) && !seen.add(text(item))) {
+                merged++;
+            } else {
+                kept.add(item);
+            }
+        }
+        if (kept.size() == items.size()) {
+            return false;
+        }
+        Collections.reverse(kept);
+        items.clear();
+        items.addAll(kept);
+        return true;
+    }
+
+    private static String text(Item item) {
+        if (item.raw != null) {
+            return item.raw;
+        }
+        StringBuilder sb = new StringBuilder();
+        write(Collections.singletonList(item), sb);
+        return sb.toString();
+    }
+
+    /*
+     * Merges b into a, which comes before it, if they have the same
+     * selector or condition, or the same declarations.
+     */
+    private static boolean join(Item a, Item b) {
+        if (a.prelude.equals(b.prelude)) {
+            if (a.kind == RULE) {
+                a.declarations.addAll(b.declarations);
+                dropRepeated(a);
+            } else {
+                a.items.addAll(b.items);
+            }
+        } else if (a.kind == RULE && a.declarations.equals(b.declarations)
+                && !a.prelude.contains(":-") && !b.prelude.contains(":-")) {
+            a.prelude = a.prelude + "," + b.prelude;
+        } else {
+            return false;
+        }
+        a.families.addAll(b.families);
+        a.raw = null;
+        return true;
+    }
+
+    /*
+     * Removes the declarations repeated, word for word, further in the
+     * rule. Returns true if any was.
+     */
+    private static boolean dropRepeated(Item rule) {
+        Set<String> seen = new HashSet<>();
+        List<String> kept = new ArrayList<>();
+        for (int i = rule.declarations.size() - 1; i >= 0; i--) {
+            String declaration = rule.declarations.get(i);
+            if (seen.add(declaration)) {
+                kept.add(declaration);
+            }
+        }
+        if (kept.size() == rule.declarations.size()) {
+            return false;
+        }
+        Collections.reverse(kept);
+        rule.declarations = kept;
+        return true;
+    }
+
+    private static void write(List<Item> items, StringBuilder sb) {
+        for (Item item : items) {
+            if (item.raw != null) {
+                sb.append(item.raw);
+            } else if (item.kind == RULE) {
+                sb.append(item.prelude).append('{').append(String.join(";", item.declarations)).append('}');
+            } else {
+                sb.append(item.prelude).append('{');
+                write(item.items, sb);
+                sb.append('}');
+            }
+        }
+    }
+
+    /*
+     * Breaks the lines after the closing braces past the given column, as
+     * CssCompressor does.
+     */
+    static String breakLines(String css, int linebreakpos) {
+        StringBuilder sb = new StringBuilder(css.length() + css.length() / Math.max(linebreakpos, 1) + 16);
+        int lineStart = 0;
+        int i = 0;
+        while (i < css.length()) {
+            char c = css.charAt(i);
+            int next = i + 1;
+            if (c == '"' || c == '\'') {
+                next = skipString(css, i, css.length());
+            } else if (c == '/' && css.startsWith("/*", i)) {
+                next = css.indexOf("*/", i + 2) + 2;
+            }
+            if (next <= i) {
+                next = css.length();
+            }
+            sb.append(css, i, next);
+            i = next;
+            if (c == '}' && sb.length() - lineStart > linebreakpos) {
+                sb.append('\n');
+                lineStart = sb.length();
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,1952 @@
+package com.yahoo.platform.yui.compressor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * CssMinifier makes the same transformations as the regular expressions of
+ * {@link CssCompressor}, but reads the stylesheet once and writes the result
+ * in a single emit.
+ * <p>
+ * The tokenizer replaces comments, strings, data URLs, calc() expressions,
+ * matrix filters and \9 hacks by a marker character, drops the comments that
+ * are not kept and collapses white space. The emitter then walks that text
+ * one segment at a time, a segment being whatever lies between two braces or
+ * semi-colons (a selector, a declaration or an at-rule prelude), and applies
+ * to it the rewrites of the regular expression engine in the same order,
+ * looking at the surrounding delimiters where the expressions look past the
+ * segment. The preserved tokens are put back in one final merge.
+ * <p>
+ * The output is the same as the one of the regular expression engine for
+ * well-formed stylesheets. The two differ on some inputs that the regular
+ * expressions mangle, such as strings containing "calc(" or "url(data:",
+ * which are left alone here.
+ * <p>
+ * Data URLs longer than a threshold can be kept off the heap in
+ * {@link OffHeapTokens}. The result then holds the key of each of them
+ * between two markers, and {@link #minify(String, int, Writer)} writes them
+ * from there.
+ * <p>
+ * An instance keeps its buffers between calls and must not be used by
+ * several threads at the same time.
+ */
+final class CssMinifier {
+
+    // Stands for a preserved token in the working text. The markers are
+    // control characters, which keeps the buffers compact for ASCII input.
+    private static final char TOKEN = '\u0001';
+
+    // A space that was there when CssCompressor removed the spaces before
+    // punctuation, and so is kept, and the place a @charset rule was moved
+    // from (see moveCharsetsToTop)
+    private static final char KEPT_SPACE = '\u0002';
+    private static final char SEAM = '\u0003';
+
+    // Kinds of preserved tokens, in the order CssCompressor numbers them
+    private static final int URL = 0;
+    private static final int CALC = 1;
+    private static final int PROGID = 2;
+    private static final int STRING = 3;
+    private static final int COMMENT = 4;
+    private static final int HACK = 5;
+
+    private static final String MATRIX = "progid:DXImageTransform.Microsoft.Matrix";
+    private static final String LOWER_MATRIX = MATRIX.toLowerCase();
+    private static final String ALPHA = "progid:DXImageTransform.Microsoft.Alpha(Opacity=";
+    private static final String LOWER_ALPHA = ALPHA.toLowerCase();
+
+    private static final String[] DIRECTIVES = {
+            "font-face", "import", "keyframe", "media", "page", "namespace"
+    };
+    private static final String[] VENDORS = {
+            "atsc", "khtml", "moz", "ms", "o", "wap", "webkit"
+    };
+    private static final String[] PSEUDO_CLASSES = {
+            "active", "after", "before", "checked", "disabled", "empty", "enabled",
+            "first-child", "first-of-type", "focus", "hover", "last-child", "last-of-type",
+            "link", "only-child", "only-of-type", "root", ":selection", "target", "visited"
+    };
+    private static final String[] PSEUDO_FUNCTIONS = {
+            "lang", "not", "nth-child", "nth-last-child", "nth-last-of-type", "nth-of-type",
+            "any", "-moz-any", "-webkit-any"
+    };
+    private static final String[] VALUE_WORDS = {
+            "attr", "color-stop", "from", "rgba", "to", "url"
+    };
+    private static final String[] MATH_FUNCTIONS = {
+            "calc", "max", "min"
+    };
+    private static final String[] GRADIENTS = {
+            "linear-gradient", "radial-gradient"
+    };
+    private static final String[] UNITS = {
+            "px", "em", "in", "cm", "mm", "pc", "pt", "ex", "deg", "grad", "rad", "khz", "hz"
+    };
+    private static final String[] PERCENT = {
+            "%"
+    };
+    private static final String[] GROUP_UNITS = {
+            "px", "em", "%", "in", "cm", "mm", "pc", "pt", "ex", "deg", "grad", "rad",
+            "ms", "s", "khz", "hz"
+    };
+    private static final String[] POINT_ZERO_UNITS = {
+            "px", "em", "%", "in", "cm", "mm", "pc", "pt", "ex", "deg", "ms", "s",
+            "grad", "rad", "khz", "hz", " "
+    };
+    private static final String[] ORIGIN_PROPERTIES = {
+            "background-position", "webkit-mask-position", "transform-origin",
+            "webkit-transform-origin", "moz-transform-origin", "o-transform-origin",
+            "ms-transform-origin"
+    };
+    private static final String[] NONE_PROPERTIES = {
+            "border", "border-top", "border-right", "border-bottom", "border-left",
+            "outline", "background"
+    };
+
+    // Tokenizer output: the working text and the preserved tokens, in order
+    private final StringBuilder text = new StringBuilder();
+    private final ArrayList<String> tokens = new ArrayList<>();
+    private int[] kinds = new int[64];
+    private int[] ranks = new int[64];
+    private int[] widths = new int[64];
+
+    // Tokenizer state
+    private char last;
+    private boolean hasLast;
+    private boolean inSpace;
+    private boolean backslash;
+    private int commentCount;
+    private int commentTokens;
+    private boolean hackNext;
+    private int hackRank;
+    private final int[] kindCounts = new int[6];
+
+    // The functions found before the strings: start, content start, content
+    // end and kind, sorted
+    private final ArrayList<int[]> functions = new ArrayList<>();
+    private final ArrayList<int[]> candidates = new ArrayList<>();
+    private int cursor;
+
+    // Emitter state
+    private final StringBuilder out = new StringBuilder();
+    private final StringBuilder seg = new StringBuilder();
+    private final StringBuilder work = new StringBuilder();
+    private int[] outTokens = new int[64];
+    private int outTokenCount;
+    private int nextToken;
+    private int nextBrace;
+    private int barrier;
+    private int semicolons;
+
+    // The length of the line the result continues and of the one it ends
+    // with, and whether it ends with a line break, which the final trim
+    // removes (see CssStreamer)
+    private int lineLength;
+    private boolean endsWithBreak;
+
+    // Whether the stylesheet follows a part, whose closing brace has been
+    // put in front of it for the rewrites that look behind
+    private boolean continued;
+    private boolean previousNested;
+
+    // Cutting a stylesheet read in part (see minifyPart): the offset a cut
+    // may start from, or -1, and the first place more text could change.
+    // Then the last cut found and the tokenizer state there.
+    private int cutFrom = -1;
+    private int open;
+    private int depth;
+    private boolean closed;
+    private boolean colonAfterClose;
+    private int cut;
+    private boolean cutNested;
+    private int cutText;
+    private int cutTokens;
+    private final int[] cutKindCounts = new int[6];
+    private ArrayList<int[]> splits;
+    private int splitLength;
+
+    // Where the long data URLs go, if anywhere
+    private OffHeapTokens offHeapTokens;
+    private int offHeapThreshold;
+
+    /**
+     * Minifies a stylesheet.
+     *
+     * @param css the stylesheet, which must be accepted by {@link #accepts}
+     * @param linebreakpos the column after which to break lines, or -1
+     * @return the minified stylesheet
+     */
+    String minify(String css, int linebreakpos) {
+        return minify(css, linebreakpos, 0, false);
+    }
+
+    /**
+     * Minifies a part of a stylesheet, which continues a line of the
+     * specified length. {@link #lineLength()} then tells the length of the
+     * line the result ends with.
+     * <p>
+     * A part that follows another is minified as it would be in the whole
+     * stylesheet, except that the @charset rule that would be moved to the
+     * top of the stylesheet is dropped.
+     *
+     * @param css the stylesheet, which must be accepted by {@link #accepts}
+     * @param linebreakpos the column after which to break lines, or -1
+     * @param lineLength the length of the line already written
+     * @param continued true if the part follows the one last minified by
+     *            {@link #minifyPart}
+     * @return the minified stylesheet
+     */
+    String minify(String css, int linebreakpos, int lineLength, boolean continued) {
+        if (!accepts(css)) {
+            throw new IllegalArgumentException("Unexpected control character in stylesheet");
+        }
+        return minify(css, linebreakpos, lineLength, continued, continued && cutNested);
+    }
+
+    /**
+     * Minifies a part of a stylesheet that starts at one of the places
+     * listed by {@link #split}, as {@link #minify(String, int, int, boolean)}
+     * would after the part before it.
+     *
+     * @param css the part, which must be accepted by {@link #accepts}
+     * @param linebreakpos the column after which to break lines, or -1
+     * @param nested true if the rule the part follows ends with a nested
+     *            block, as listed by {@link #split}
+     * @return the minified part
+     */
+    String minifyAfterCut(String css, int linebreakpos, boolean nested) {
+        if (!accepts(css)) {
+            throw new IllegalArgumentException("Unexpected control character in stylesheet");
+        }
+        return minify(css, linebreakpos, 0, true, nested);
+    }
+
+    private String minify(String css, int linebreakpos, int lineLength, boolean continued, boolean nested) {
+        this.lineLength = lineLength;
+        this.continued = continued;
+        previousNested = nested;
+        tokenize(continued ? "}" + css : css);
+        moveCharsetsToTop();
+        emit();
+        return merge(linebreakpos);
+    }
+
+    /**
+     * Minifies the beginning of a stylesheet that has not been read in full,
+     * up to the last place past the specified length where it can be cut
+     * without changing the result: after the closing brace of a top-level
+     * rule, before any comment, string or function that more text could
+     * end elsewhere. {@link #partLength()} then tells where the part ends.
+     *
+     * @param css the stylesheet read so far, which must be accepted by
+     *            {@link #accepts}
+     * @param minLength the length the part must at least have
+     * @param linebreakpos the column after which to break lines, or -1
+     * @param lineLength the length of the line already written
+     * @param continued true if the stylesheet follows the part last
+     *            minified
+     * @return the minified part, or null if the stylesheet cannot be cut
+     */
+    String minifyPart(String css, int minLength, int linebreakpos, int lineLength, boolean continued) {
+        if (!accepts(css)) {
+            throw new IllegalArgumentException("Unexpected control character in stylesheet");
+        }
+        this.lineLength = lineLength;
+        this.continued = continued;
+        previousNested = continued && cutNested;
+        cutFrom = continued ? minLength + 1 : minLength;
+        try {
+            tokenize(continued ? "}" + css : css);
+        } finally {
+            cutFrom = -1;
+        }
+        if (cut < 0) {
+            return null;
+        }
+        moveCharsetsToTop();
+        emit();
+        return merge(linebreakpos);
+    }
+
+    /**
+     * Lists the places where a stylesheet can be cut into parts that are
+     * minified one after the other as the whole would be, each part but the
+     * last being at least the specified length: after the closing brace of
+     * a top-level rule, outside of any comment, string or function. Each
+     * place is given as its position and whether the rule before it ends
+     * with a nested block (1) or not (0). A stylesheet holding a comment,
+     * string or function that is never closed is not cut at all.
+     *
+     * @param css the stylesheet, which must be accepted by {@link #accepts}
+     * @param minLength the length each part must at least have
+     * @return the places, in order
+     */
+    ArrayList<int[]> split(String css, int minLength) {
+        if (!accepts(css)) {
+            throw new IllegalArgumentException("Unexpected control character in stylesheet");
+        }
+        splits = new ArrayList<>();
+        splitLength = minLength;
+        cutFrom = minLength;
+        try {
+            tokenize(css);
+            if (open < css.length()) {
+                // What an unterminated comment leaves in the result depends
+                // on the comments before it
+                splits.clear();
+            }
+            return splits;
+        } finally {
+            cutFrom = -1;
+            splits = null;
+        }
+    }
+
+    /**
+     * Returns the length of the stylesheet the last part minified by
+     * {@link #minifyPart} took.
+     */
+    int partLength() {
+        return continued ? cut - 1 : cut;
+    }
+
+    /**
+     * Minifies a stylesheet and writes the result, taking the data URLs kept
+     * off the heap from there.
+     *
+     * @param css the stylesheet, which must be accepted by {@link #accepts}
+     * @param linebreakpos the column after which to break lines, or -1
+     * @param out where to write the minified stylesheet
+     */
+    void minify(String css, int linebreakpos, Writer out) throws IOException {
+        write(minify(css, linebreakpos), out);
+    }
+
+    /**
+     * Writes a result of {@link #minify}, taking the data URLs kept off the
+     * heap from there.
+     */
+    void write(String result, Writer out) throws IOException {
+        int start = 0;
+        for (int i = result.indexOf(TOKEN); i >= 0; i = result.indexOf(TOKEN, start)) {
+            int end = result.indexOf(TOKEN, i + 1);
+            out.write(result, start, i - start);
+            offHeapTokens.writeTo(Integer.parseInt(result, i + 1, end, 10), out);
+            start = end + 1;
+        }
+        out.write(result, start, result.length() - start);
+    }
+
+    /**
+     * Returns the length of the line the last result ends with, counting
+     * preserved tokens the way the line breaks do.
+     */
+    int lineLength() {
+        return lineLength;
+    }
+
+    /**
+     * Tells whether the last result ended with a line break, which is not
+     * part of it.
+     */
+    boolean endsWithBreak() {
+        return endsWithBreak;
+    }
+
+    /**
+     * Keeps the data URLs longer than the specified number of characters in
+     * the specified storage rather than in the result. The storage is not
+     * cleared between stylesheets.
+     *
+     * @param tokens the storage, or null to keep all tokens on the heap
+     * @param threshold the length above which a data URL is moved
+     */
+    void setOffHeapTokens(OffHeapTokens tokens, int threshold) {
+        this.offHeapTokens = tokens;
+        this.offHeapThreshold = threshold;
+    }
+
+    /**
+     * Tells whether a stylesheet can be minified by this class, that is
+     * whether it is free of the control characters used as markers.
+     */
+    static boolean accepts(String css) {
+        return css.indexOf(TOKEN) < 0 && css.indexOf(KEPT_SPACE) < 0 && css.indexOf(SEAM) < 0;
+    }
+
+    private static boolean isSpace(char c) {
+        // \s in a regular expression
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    private static boolean isLineTerminator(char c) {
+        // What '.' does not match in a regular expression
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    private static boolean isWordChar(char c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '_' || c == TOKEN;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isHexDigit(char c) {
+        return c >= '0' && c <= '9' || c >= 'a' && c <= 'f' || c >= 'A' && c <= 'F';
+    }
+
+    private static char toLower(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    /*
+     * Tells whether the text at the given position matches the pattern,
+     * ignoring the case of ASCII letters. A '.' in the pattern matches any
+     * character but a line terminator when dotIsWildcard is set.
+     */
+    private static boolean matches(CharSequence s, int at, String pattern, boolean dotIsWildcard) {
+        int n = pattern.length();
+        if (at < 0 || at + n > s.length()) {
+            return false;
+        }
+        for (int i = 0; i < n; i++) {
+            char p = pattern.charAt(i);
+            char c = s.charAt(at + i);
+            if (p == '.' && dotIsWildcard) {
+                if (isLineTerminator(c)) {
+                    return false;
+                }
+            } else if (toLower(c) != p) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean matches(CharSequence s, int at, String pattern) {
+        return matches(s, at, pattern, false);
+    }
+
+    private static boolean matchesExactly(CharSequence s, int at, String pattern) {
+        int n = pattern.length();
+        if (at < 0 || at + n > s.length()) {
+            return false;
+        }
+        for (int i = 0; i < n; i++) {
+            if (s.charAt(at + i) != pattern.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void lowerCase(StringBuilder sb, int from, int to) {
+        for (int i = from; i < to; i++) {
+            sb.setCharAt(i, toLower(sb.charAt(i)));
+        }
+    }
+
+    private static void trimEnd(StringBuilder sb) {
+        // Moving a @charset rule may leave two spaces in a row
+        int n = sb.length();
+        while (n > 0 && sb.charAt(n - 1) == ' ') {
+            n--;
+        }
+        sb.setLength(n);
+    }
+
+    /*
+     * Returns the length of the first of the alternatives found at the given
+     * position, ignoring case, or 0.
+     */
+    private static int matchAny(CharSequence s, int at, String[] alternatives) {
+        for (String alternative : alternatives) {
+            if (matches(s, at, alternative)) {
+                return alternative.length();
+            }
+        }
+        return 0;
+    }
+
+    /*
+     * Returns the length of an optional vendor prefix such as "-moz-".
+     */
+    private static int matchVendor(CharSequence s, int at) {
+        if (at < s.length() && s.charAt(at) == '-') {
+            for (String vendor : VENDORS) {
+                if (matches(s, at + 1, vendor) && matches(s, at + 1 + vendor.length(), "-")) {
+                    return vendor.length() + 2;
+                }
+            }
+        }
+        return 0;
+    }
+
+    // ------------------------------------------------------------------
+    // Tokenizer
+    // ------------------------------------------------------------------
+
+    private void tokenize(String css) {
+        text.setLength(0);
+        text.ensureCapacity(css.length());
+        tokens.clear();
+        last = 0;
+        hasLast = false;
+        inSpace = false;
+        backslash = false;
+        commentCount = 0;
+        commentTokens = 0;
+        hackNext = false;
+        for (int k = 0; k < kindCounts.length; k++) {
+            kindCounts[k] = 0;
+        }
+        open = css.length();
+        depth = 0;
+        closed = true;
+        colonAfterClose = false;
+        cut = -1;
+
+        // CssCompressor preserves the functions before looking for strings
+        findFunctions(css);
+
+        int n = css.length();
+        int f = 0;
+        int i = 0;
+        while (i < n) {
+            char c = css.charAt(i);
+            int next = -1;
+            if (c == '/' && i + 1 < n && css.charAt(i + 1) == '*') {
+                next = comment(css, i);
+            } else if (f < functions.size() && functions.get(f)[0] == i) {
+                next = function(css, functions.get(f++));
+            } else if (c == '"' || c == '\'') {
+                next = string(css, i, c);
+            }
+
+            if (next < 0) {
+                raw(c);
+                i++;
+                if (cutFrom >= 0) {
+                    findCut(c, i);
+                }
+            } else {
+                i = next;
+                while (f < functions.size() && functions.get(f)[0] < i) {
+                    // Taken in a string
+                    f++;
+                }
+            }
+        }
+
+        if (cut >= 0) {
+            text.setLength(cutText);
+            tokens.subList(cutTokens, tokens.size()).clear();
+            System.arraycopy(cutKindCounts, 0, kindCounts, 0, kindCounts.length);
+        }
+
+        // Number the tokens the way CssCompressor does, for the line breaks
+        int[] base = new int[kindCounts.length];
+        for (int k = 1; k < base.length; k++) {
+            base[k] = base[k - 1] + kindCounts[k - 1];
+        }
+        for (int t = 0; t < tokens.size(); t++) {
+            int index = base[kinds[t]] + ranks[t];
+            widths[t] = "___YUICSSMIN_PRESERVED_TOKEN_".length() + Integer.toString(index).length() + 3;
+        }
+    }
+
+    private void raw(char c) {
+        if (isSpace(c)) {
+            if (!inSpace) {
+                text.append(' ');
+                inSpace = true;
+            }
+            backslash = false;
+        } else if (c == '9' && backslash) {
+            // The \9 hack, found once the comments are gone
+            text.setCharAt(text.length() - 1, TOKEN);
+            addToken(HACK, 0, "\\9");
+            backslash = false;
+        } else {
+            text.append(c);
+            inSpace = false;
+            backslash = c == '\\';
+        }
+        last = c;
+        hasLast = true;
+    }
+
+    /*
+     * Follows the braces outside of the tokens, and takes note of the state
+     * of the tokenizer after the closing brace of a top-level rule, if the
+     * stylesheet can be cut there. It cannot if the pseudo-class colons
+     * that CssCompressor protects between a closing brace and the next
+     * opening one reach over the cut, or between the two comments of the
+     * Mac/IE5 hack.
+     */
+    private void findCut(char c, int end) {
+        if (c == '{') {
+            depth++;
+            closed = false;
+            colonAfterClose = false;
+        } else if (c == ':') {
+            colonAfterClose |= closed;
+        } else if (c == '}') {
+            boolean nested = closed;
+            closed = true;
+            if (depth > 0 && --depth == 0 && !colonAfterClose && !hackNext &&
+                    end >= cutFrom && end <= open) {
+                cut = end;
+                cutNested = nested;
+                cutText = text.length();
+                cutTokens = tokens.size();
+                System.arraycopy(kindCounts, 0, cutKindCounts, 0, kindCounts.length);
+                if (splits != null) {
+                    splits.add(new int[]{end, nested ? 1 : 0});
+                    cutFrom = end + splitLength;
+                }
+            }
+        }
+    }
+
+    private void rawString(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            raw(s.charAt(i));
+        }
+    }
+
+    private void addToken(int kind, int rank, String value) {
+        int t = tokens.size();
+        if (t == kinds.length) {
+            kinds = Arrays.copyOf(kinds, t * 2);
+            ranks = Arrays.copyOf(ranks, t * 2);
+            widths = Arrays.copyOf(widths, t * 2);
+        }
+        tokens.add(value);
+        kinds[t] = kind;
+        ranks[t] = rank;
+        if (kind == COMMENT) {
+            kindCounts[COMMENT] = commentTokens;
+        } else if (kind == HACK) {
+            kindCounts[HACK] = 1;
+        } else {
+            kindCounts[kind]++;
+        }
+        inSpace = false;
+        backslash = false;
+    }
+
+    private void addToken(int kind, String value) {
+        addToken(kind, kindCounts[kind], value);
+    }
+
+    /*
+     * Handles a comment outside of any other token. Returns the position
+     * following it.
+     */
+    private int comment(String css, int start) {
+        int end = css.indexOf("*/", start + 2);
+        boolean terminated = end >= 0;
+        String content = css.substring(start + 2, terminated ? end : css.length());
+        int index = commentCount++;
+
+        String kept = null;
+        int rank = 0;
+        if (hackNext) {
+            // Second half of the Mac/IE5 hack
+            hackNext = false;
+            kept = "";
+            rank = hackRank;
+        } else if (content.startsWith("!")) {
+            kept = content;
+            rank = commentTokens++;
+        } else if (content.endsWith("\\")) {
+            kept = "\\";
+            rank = commentTokens;
+            hackRank = commentTokens + 1;
+            commentTokens += 2;
+            hackNext = true;
+        } else if (content.isEmpty() && hasLast && last == '>') {
+            kept = "";
+            rank = commentTokens++;
+        }
+
+        if (!terminated) {
+            open = Math.min(open, start);
+        }
+        if (kept != null) {
+            text.append("/*").append(TOKEN);
+            addToken(COMMENT, rank, kept);
+            if (terminated) {
+                text.append("*/");
+                last = '/';
+            } else {
+                last = '_';
+            }
+            hasLast = true;
+        } else if (!terminated) {
+            // CssCompressor leaves the placeholder of such a comment behind
+            rawString("/*___YUICSSMIN_PRESERVE_CANDIDATE_COMMENT_" + index + "___");
+        }
+
+        return terminated ? end + 2 : css.length();
+    }
+
+    /*
+     * Accounts for a comment found inside another token, where it is kept
+     * as it is but still takes its turn in the handling of comments.
+     */
+    private void embeddedComment(String content) {
+        commentCount++;
+        if (hackNext) {
+            hackNext = false;
+        } else if (content.startsWith("!")) {
+            commentTokens++;
+        } else if (content.endsWith("\\")) {
+            commentTokens += 2;
+            hackNext = true;
+        }
+        kindCounts[COMMENT] = commentTokens;
+    }
+
+    private void embeddedComments(String css, int from, int to) {
+        for (int i = from; i < to - 1; i++) {
+            if (css.charAt(i) == '/' && css.charAt(i + 1) == '*') {
+                int end = css.indexOf("*/", i + 2);
+                if (end < 0) {
+                    end = css.length();
+                }
+                embeddedComment(css.substring(i + 2, end));
+                i = end + 1;
+            }
+        }
+    }
+
+    private static boolean startsComment(String css, int i) {
+        return i + 1 < css.length() && css.charAt(i) == '/' && css.charAt(i + 1) == '*';
+    }
+
+    /*
+     * Finds url(data:...), calc(...) and matrix filters the way
+     * CssCompressor.preserveToken does, one kind after the other: the content
+     * runs up to the first unescaped closing parenthesis, or up to the
+     * closing quote and then the next parenthesis. Comments and the contents
+     * of the functions found before are skipped.
+     */
+    private void findFunctions(String css) {
+        functions.clear();
+        candidates.clear();
+        int n = css.length();
+        for (int i = 0; i < n; i++) {
+            char c = css.charAt(i);
+            if (c == '/' && startsComment(css, i)) {
+                int end = css.indexOf("*/", i + 2);
+                if (end < 0) {
+                    open = Math.min(open, i);
+                    break;
+                }
+                i = end + 1;
+            } else if ((c == 'u' || c == 'U') && matches(css, i, "url(")) {
+                candidates.add(new int[]{i, URL});
+            } else if ((c == 'c' || c == 'C') && matches(css, i, "calc(")) {
+                candidates.add(new int[]{i, CALC});
+            } else if ((c == 'p' || c == 'P') && matches(css, i, LOWER_MATRIX, true)) {
+                candidates.add(new int[]{i, PROGID});
+            }
+        }
+        if (candidates.isEmpty()) {
+            return;
+        }
+        findFunctions(css, URL);
+        findFunctions(css, CALC);
+        findFunctions(css, PROGID);
+    }
+
+    private void findFunctions(String css, int kind) {
+        ArrayList<int[]> found = new ArrayList<>();
+        int n = css.length();
+        int from = 0;
+        int previous = 0;
+        // Where the searches for ), " and ' found none, so that the searches
+        // from further on do not run to the end again
+        int[] none = {n, n, n};
+        for (int[] candidate : candidates) {
+            int i = candidate[0];
+            if (candidate[1] != kind || i < from) {
+                continue;
+            }
+            while (previous < functions.size() && functions.get(previous)[2] < i) {
+                previous++;
+            }
+            if (previous < functions.size() && functions.get(previous)[1] <= i) {
+                // In the content of a function of another kind
+                continue;
+            }
+
+            int contentStart;
+            int j;
+            if (kind == PROGID) {
+                contentStart = i + MATRIX.length() + 1;
+                j = i + MATRIX.length();
+            } else {
+                contentStart = i + (kind == URL ? 4 : 5);
+                j = contentStart;
+            }
+            while (j < n && isSpace(css.charAt(j))) {
+                j++;
+            }
+            char quote = j < n && (css.charAt(j) == '"' || css.charAt(j) == '\'') ? css.charAt(j) : 0;
+            int matchEnd = quote != 0 ? j + 1 : j;
+            if (kind == URL) {
+                if (!matches(css, matchEnd, "data:")) {
+                    continue;
+                }
+                matchEnd += 5;
+            }
+
+            char terminator = quote != 0 ? quote : ')';
+            int slot = terminator == ')' ? 0 : terminator == '"' ? 1 : 2;
+            int end = matchEnd;
+            while (true) {
+                end = matchEnd >= none[slot] ? -1 : indexOf(css, terminator, end);
+                if (end <= 0) {
+                    none[slot] = Math.min(none[slot], matchEnd);
+                    break;
+                }
+                if (css.charAt(end - 1) != '\\') {
+                    if (quote != 0) {
+                        int quoteEnd = end;
+                        end = quoteEnd >= none[0] ? -1 : indexOf(css, ')', quoteEnd);
+                        if (end < 0) {
+                            none[0] = Math.min(none[0], quoteEnd);
+                        }
+                    }
+                    break;
+                }
+                end++;
+            }
+
+            if (end < 0) {
+                from = matchEnd;
+                open = Math.min(open, i);
+            } else {
+                found.add(new int[]{i, contentStart, end, kind});
+                from = end + 1;
+            }
+        }
+
+        functions.addAll(found);
+        functions.sort((a, b) -> a[0] - b[0]);
+    }
+
+    private void seek(int i) {
+        int low = 0;
+        int high = functions.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (functions.get(mid)[1] < i) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        cursor = low;
+    }
+
+    /*
+     * Returns where a scan that reached i goes on: after a comment, at the
+     * closing parenthesis of a function content, or at i itself.
+     */
+    private int skip(String css, int i) {
+        if (css.charAt(i) == '/' && startsComment(css, i)) {
+            int end = css.indexOf("*/", i + 2);
+            return end < 0 ? css.length() : end + 2;
+        }
+        while (cursor < functions.size() && functions.get(cursor)[1] < i) {
+            cursor++;
+        }
+        if (cursor < functions.size() && functions.get(cursor)[1] == i) {
+            return functions.get(cursor++)[2];
+        }
+        return i;
+    }
+
+    /*
+     * Finds a character, skipping over comments and function contents.
+     */
+    private int indexOf(String css, char c, int from) {
+        int n = css.length();
+        seek(from);
+        int i = from;
+        while (i < n) {
+            int next = skip(css, i);
+            if (next != i) {
+                i = next;
+            } else if (css.charAt(i) == c) {
+                return i;
+            } else {
+                i++;
+            }
+        }
+        return -1;
+    }
+
+    private int function(String css, int[] function) {
+        int kind = function[3];
+        embeddedComments(css, function[1], function[2]);
+        String value;
+        if (kind == URL && offHeapTokens != null && function[2] - function[1] > offHeapThreshold
+                && OffHeapTokens.isOpaque(css, function[1], function[2])) {
+            int key = offHeapTokens.size();
+            offHeapTokens.add(key, css, function[1], function[2]);
+            value = TOKEN + Integer.toString(key) + TOKEN;
+        } else {
+            value = css.substring(function[1], function[2]);
+            if (kind == URL) {
+                value = removeSpaces(value);
+            }
+        }
+        text.append(kind == URL ? "url" : kind == CALC ? "calc" : MATRIX).append('(').append(TOKEN).append(')');
+        addToken(kind, value);
+        last = ')';
+        hasLast = true;
+        return function[2] + 1;
+    }
+
+    private static String removeSpaces(String s) {
+        int i = 0;
+        while (i < s.length() && !isSpace(s.charAt(i))) {
+            i++;
+        }
+        if (i == s.length()) {
+            return s;
+        }
+        char[] chars = s.toCharArray();
+        int n = i;
+        for (; i < chars.length; i++) {
+            if (!isSpace(chars[i])) {
+                chars[n++] = chars[i];
+            }
+        }
+        return new String(chars, 0, n);
+    }
+
+    /*
+     * Handles a quoted string. Returns the position following it, or -1 if
+     * the quote does not start a string.
+     */
+    private int string(String css, int start, char quote) {
+        int n = css.length();
+        int lastQuote = -1;
+        seek(start + 1);
+        int j = start + 1;
+        while (j < n) {
+            int next = skip(css, j);
+            if (next != j) {
+                j = next;
+                continue;
+            }
+            char c = css.charAt(j);
+            if (c == quote) {
+                break;
+            }
+            if (c == '\\' && j + 1 < n && !isLineTerminator(css.charAt(j + 1)) && !startsComment(css, j + 1)) {
+                if (css.charAt(j + 1) == quote) {
+                    lastQuote = j + 1;
+                }
+                j += 2;
+            } else {
+                j++;
+            }
+        }
+        if (j >= n) {
+            // The regular expression backtracks to the last quote it can reach
+            open = Math.min(open, start);
+            j = lastQuote;
+            if (j < 0) {
+                return -1;
+            }
+        }
+
+        embeddedComments(css, start + 1, j);
+        String value = replaceAlpha(css.substring(start + 1, j));
+        text.append(quote).append(TOKEN).append(quote);
+        addToken(STRING, value);
+        last = quote;
+        hasLast = true;
+        return j + 1;
+    }
+
+    private static String replaceAlpha(String s) {
+        int i = indexOfAlpha(s, 0);
+        if (i < 0) {
+            return s;
+        }
+        StringBuilder sb = new StringBuilder(s);
+        while (i >= 0) {
+            sb.replace(i, i + ALPHA.length(), "alpha(opacity=");
+            i = indexOfAlpha(sb, i + "alpha(opacity=".length());
+        }
+        return sb.toString();
+    }
+
+    private static int indexOfAlpha(CharSequence s, int from) {
+        for (int i = from; i + LOWER_ALPHA.length() <= s.length(); i++) {
+            char c = s.charAt(i);
+            if ((c == 'p' || c == 'P') && matches(s, i, LOWER_ALPHA, true)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // ------------------------------------------------------------------
+    // @charset
+    // ------------------------------------------------------------------
+
+    /*
+     * Moves the last @charset "..."; to the top, then keeps only the last
+     * of the @charset rules found at the top.
+     */
+    private void moveCharsetsToTop() {
+        int at = indexOfCharset(0);
+        if (at < 0) {
+            return;
+        }
+
+        int limit = text.length();
+        for (int i = 0; i < limit; i++) {
+            char c = text.charAt(i);
+            if (c == '\u0085' || c == '\u2028' || c == '\u2029') {
+                limit = i;
+            }
+        }
+        int found = -1;
+        int foundEnd = -1;
+        for (int k = at; k >= 0 && k < limit; k = indexOfCharset(k + 1)) {
+            int p = k + "@charset".length();
+            if (matchesExactly(text, p, " \"" + TOKEN + "\"")) {
+                p += 4;
+                if (p < text.length() && text.charAt(p) == ' ') {
+                    p++;
+                }
+                if (p < text.length() && text.charAt(p) == ';') {
+                    found = k;
+                    foundEnd = p + 1;
+                }
+            }
+        }
+        if (found >= 0) {
+            int t = countTokens(0, found);
+            String token = tokens.remove(t);
+            int width = widths[t];
+            if (continued) {
+                System.arraycopy(widths, t + 1, widths, t, tokens.size() - t);
+            } else {
+                System.arraycopy(widths, 0, widths, 1, t);
+                tokens.add(0, token);
+                widths[0] = width;
+            }
+            // CssCompressor moves it once the spaces before punctuation and
+            // after comments are gone, so the spaces around it stay as they
+            // were then and it leaves a seam the latter cannot cross
+            text.replace(found, foundEnd, String.valueOf(SEAM));
+            if (found > 0 && text.charAt(found - 1) == ' ') {
+                if (found >= 3 && text.charAt(found - 3) == '*' && text.charAt(found - 2) == '/') {
+                    text.deleteCharAt(found - 1);
+                } else {
+                    text.setCharAt(found - 1, KEPT_SPACE);
+                }
+            }
+            if (!continued) {
+                text.insert(0, "@charset \"" + TOKEN + "\";");
+            }
+        }
+
+        int p = 0;
+        int ws = -1;
+        int item = -1;
+        int itemEnd = -1;
+        int len = text.length();
+        while (true) {
+            int s = p;
+            while (p < len && isBlank(text.charAt(p))) {
+                p++;
+            }
+            if (!matches(text, p, "@charset ") || p + 9 >= len || text.charAt(p + 9) == ';') {
+                break;
+            }
+            int semi = p + 9;
+            while (semi < len && text.charAt(semi) != ';') {
+                semi++;
+            }
+            if (semi == len) {
+                break;
+            }
+            int e = semi + 1;
+            while (e < len && isBlank(text.charAt(e))) {
+                e++;
+            }
+            ws = s;
+            item = p;
+            itemEnd = e;
+            p = e;
+        }
+        if (item >= 0) {
+            int dropped = countTokens(0, item);
+            for (int t = 0; t < dropped; t++) {
+                tokens.remove(0);
+            }
+            System.arraycopy(widths, dropped, widths, 0, tokens.size());
+            String kept = text.substring(ws, item) + "@charset" + text.substring(item + 8, itemEnd);
+            text.replace(0, itemEnd, kept);
+        }
+    }
+
+    private static boolean isBlank(char c) {
+        return c == ' ' || c == KEPT_SPACE || c == SEAM;
+    }
+
+    private int indexOfCharset(int from) {
+        for (int i = text.indexOf("@", from); i >= 0; i = text.indexOf("@", i + 1)) {
+            if (matches(text, i, "@charset")) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int countTokens(int from, int to) {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if (text.charAt(i) == TOKEN) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // ------------------------------------------------------------------
+    // Emitter
+    // ------------------------------------------------------------------
+
+    private void emit() {
+        out.setLength(0);
+        out.ensureCapacity(text.length());
+        outTokenCount = 0;
+        nextToken = 0;
+        nextBrace = -1;
+        barrier = 0;
+        semicolons = 0;
+
+        int len = text.length();
+        int lastOpen = text.lastIndexOf("{");
+
+        // Pseudo-class colons are found from the start of the text or from a
+        // closing brace up to the next opening brace (see CssCompressor)
+        boolean startOk = true;
+        boolean startHasChars = true;
+        boolean protect = false;
+
+        char prevDelim = 0;
+        int pos = 0;
+        while (true) {
+            // Copy the segment, removing the spaces before the characters
+            // that do not need them
+            seg.setLength(0);
+            int end = pos;
+            for (; end < len; end++) {
+                char c = text.charAt(end);
+                if (c == '{' || c == '}' || c == ';') {
+                    break;
+                }
+                if (c == SEAM) {
+                    seg.append(c);
+                    continue;
+                }
+                boolean pseudoColon = false;
+                if (protect) {
+                    pseudoColon = c == ':';
+                } else if (c == ':') {
+                    if (startOk && startHasChars && end < lastOpen) {
+                        protect = true;
+                        pseudoColon = true;
+                    } else {
+                        startOk = false;
+                    }
+                } else if (startOk) {
+                    startHasChars = true;
+                }
+
+                if (!pseudoColon && isNoSpaceBefore(c)) {
+                    trimEnd(seg);
+                }
+                if (c == '!' && matchesExactly(text, end + 1, "important")) {
+                    seg.append(' ');
+                }
+                seg.append(c);
+            }
+
+            char delim = end < len ? text.charAt(end) : 0;
+            if (delim != 0) {
+                trimEnd(seg);
+            }
+            if (delim == '{') {
+                protect = false;
+                startOk = false;
+            } else if (!protect && (delim == '}' || delim == ';')) {
+                if (continued && end == 0) {
+                    // The closing brace of the part before, which a match
+                    // can go through if it follows another one
+                    startOk = true;
+                    startHasChars = previousNested;
+                } else if (startOk) {
+                    startHasChars = true;
+                } else if (delim == '}') {
+                    startOk = true;
+                    startHasChars = false;
+                }
+            }
+
+            if (seg.length() > 0) {
+                rewriteSegment(prevDelim, delim);
+                rewriteValues(pos == 0, delim, end);
+            }
+            append(seg);
+
+            if (delim == 0) {
+                break;
+            }
+            appendDelimiter(delim, seg.length() == 0);
+            prevDelim = delim;
+            pos = end + 1;
+        }
+    }
+
+    private static boolean isNoSpaceBefore(char c) {
+        switch (c) {
+            case '!': case '{': case '}': case ';': case ':': case '>':
+            case '+': case '(': case ')': case ']': case ',':
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isNoSpaceAfter(char c) {
+        switch (c) {
+            case '!': case '{': case '}': case ':': case ';': case '>':
+            case '+': case '(': case '[': case ',':
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /*
+     * Lowercases the common at-rules, pseudo-classes and functions, puts
+     * the space back after :first-letter and :first-line and in "and (",
+     * and removes the spaces that follow the characters that do not need
+     * them. This reads the segment from seg and writes it back.
+     */
+    private void rewriteSegment(char prevDelim, char delim) {
+        StringBuilder a = work;
+        a.setLength(0);
+        a.append(seg);
+        StringBuilder b = seg;
+        b.setLength(0);
+
+        // The character before, as the lowercasing expressions see it
+        char prev = prevDelim;
+        boolean dropSpaces = false;
+        int n = a.length();
+        int k = 0;
+        while (k < n) {
+            char c = a.charAt(k);
+            if (c == KEPT_SPACE) {
+                c = ' ';
+            } else if (c == SEAM) {
+                k++;
+                continue;
+            }
+
+            if (c == ' ') {
+                if (k >= 2 && a.charAt(k - 1) == '/' && a.charAt(k - 2) == '*') {
+                    // No space after the end of a preserved comment
+                    k++;
+                    continue;
+                }
+                dropSpaces = isNoSpaceAfter(prev) || prev == ' ' && dropSpaces;
+                if (!dropSpaces) {
+                    b.append(' ');
+                }
+                prev = ' ';
+                k++;
+                continue;
+            }
+
+            int m = 0;
+            if (c == ':') {
+                m = matchFirstLineOrLetter(a, k, delim);
+                if (m > 0) {
+                    int start = b.length();
+                    b.append(a, k, k + m);
+                    lowerCase(b, start, b.length());
+                    b.append(' ');
+                    prev = ' ';
+                    k += m;
+                    continue;
+                }
+                m = matchAny(a, k + 1, PSEUDO_CLASSES);
+                if (m == 0) {
+                    m = matchAny(a, k + 1, PSEUDO_FUNCTIONS);
+                    if (m > 0 && !matchesExactly(a, k + 1 + m, "(")) {
+                        m = 0;
+                    }
+                }
+                if (m > 0) {
+                    m++;
+                }
+            } else if (c == '@') {
+                int v = matchVendor(a, k + 1);
+                m = matches(a, k + 1 + v, "keyframe") ? v + "keyframe".length() : 0;
+                if (m == 0) {
+                    m = matchAny(a, k + 1, DIRECTIVES);
+                }
+                if (m > 0) {
+                    m++;
+                }
+            } else if (prev == ':' || prev == ',' || prev == '(' || prev == ' ') {
+                m = matchValueFunction(a, k);
+            }
+
+            if (m > 0) {
+                int start = b.length();
+                b.append(a, k, k + m);
+                lowerCase(b, start, b.length());
+                prev = b.charAt(b.length() - 1);
+                k += m;
+                continue;
+            }
+
+            if ((c == 'a' || c == 'A') && !isWordChar(prev) && matches(a, k, "and(")) {
+                b.append("and (");
+                prev = '(';
+                k += 4;
+                continue;
+            }
+
+            b.append(c);
+            prev = c;
+            k++;
+        }
+    }
+
+    private static int matchFirstLineOrLetter(StringBuilder a, int k, char delim) {
+        if (!matches(a, k + 1, "first-")) {
+            return 0;
+        }
+        int m = matches(a, k + 7, "line") ? 11 : matches(a, k + 7, "letter") ? 13 : 0;
+        if (m == 0) {
+            return 0;
+        }
+        int after = k + m;
+        if (after < a.length() ? a.charAt(after) == ',' : delim == '{') {
+            return m;
+        }
+        return 0;
+    }
+
+    private static int matchValueFunction(StringBuilder a, int k) {
+        char c = a.charAt(k);
+        if (c != '-' && "acflmrtuACFLMRTU".indexOf(c) < 0) {
+            return 0;
+        }
+        for (String word : VALUE_WORDS) {
+            if (matches(a, k, word)) {
+                return word.length();
+            }
+        }
+        int v = matchVendor(a, k);
+        int m = matchFunctionName(a, k + v);
+        if (m > 0) {
+            return v + m;
+        }
+        if (v > 0) {
+            m = matchFunctionName(a, k);
+            if (m > 0) {
+                return m;
+            }
+        }
+        return matches(a, k, "-webkit-gradient") ? "-webkit-gradient".length() : 0;
+    }
+
+    private static int matchFunctionName(StringBuilder a, int k) {
+        for (String word : MATH_FUNCTIONS) {
+            if (matches(a, k, word)) {
+                return word.length();
+            }
+        }
+        if (matches(a, k, "repeating-")) {
+            int m = matchAny(a, k + "repeating-".length(), GRADIENTS);
+            if (m > 0) {
+                return "repeating-".length() + m;
+            }
+        }
+        return matchAny(a, k, GRADIENTS);
+    }
+
+    /*
+     * Shortens the values of the segment in seg: zeros, units, colors and
+     * keywords, in the order CssCompressor does it.
+     */
+    private void rewriteValues(boolean atStart, char delim, int end) {
+        StringBuilder sb = seg;
+        boolean terminated = delim == ';' || delim == '}';
+
+        if (sb.indexOf(".") >= 0) {
+            trimFractions(sb);
+        }
+
+        if (sb.indexOf(":") >= 0 || atStart) {
+            // 0px, 0em... become 0, then 0% after a colon
+            if (atStart) {
+                shortenZeros(sb, 0, UNITS, false);
+            }
+            for (int k = sb.indexOf(":"); k >= 0; k = sb.indexOf(":", k + 1)) {
+                shortenZeros(sb, k + 1, UNITS, false);
+            }
+            for (int k = sb.indexOf(":"); k >= 0; k = sb.indexOf(":", k + 1)) {
+                shortenZeros(sb, k + 1, PERCENT, false);
+            }
+        }
+        for (int k = sb.indexOf("("); k >= 0; k = sb.indexOf("(", k + 1)) {
+            shortenZeros(sb, k + 1, GROUP_UNITS, true);
+        }
+
+        // 1.0px becomes 1px
+        for (int k = sb.indexOf(".0"); k >= 0; k = sb.indexOf(".0", k)) {
+            if (k > 0 && isDigit(sb.charAt(k - 1))) {
+                int u = matchExactly(sb, k + 2, POINT_ZERO_UNITS);
+                if (u > 0 || k + 2 == sb.length() && delim == ';' && isSemicolonKept(end)) {
+                    sb.delete(k, k + 2);
+                    k += u;
+                    continue;
+                }
+            }
+            k++;
+        }
+
+        if (terminated) {
+            // :0 0 0 0 becomes :0, except for flex
+            if (endsWithExactly(sb, ":0 0 0 0")) {
+                sb.setLength(sb.length() - 6);
+            } else if (endsWithExactly(sb, ":0 0 0")) {
+                sb.setLength(sb.length() - 4);
+            } else if (endsWithExactly(sb, ":0 0") && !endsWithExactly(sb, sb.length() - 4, "flex")) {
+                sb.setLength(sb.length() - 2);
+            }
+
+            // background-position:0 and the like become :0 0
+            if (endsWithExactly(sb, ":0")) {
+                int m = matchPropertySuffix(sb, sb.length() - 2, ORIGIN_PROPERTIES);
+                if (m > 0) {
+                    lowerCase(sb, sb.length() - 2 - m, sb.length() - 2);
+                    sb.append(" 0");
+                }
+            }
+        }
+
+        // 0.6 becomes .6 after a colon or a space
+        for (int k = 0; k < sb.length(); k++) {
+            char c = sb.charAt(k);
+            if ((c == ':' || c == ' ') && k + 1 < sb.length() && sb.charAt(k + 1) == '0') {
+                int z = k + 1;
+                while (z < sb.length() && sb.charAt(z) == '0') {
+                    z++;
+                }
+                if (z + 1 < sb.length() && sb.charAt(z) == '.' && isDigit(sb.charAt(z + 1))) {
+                    sb.delete(k + 1, z);
+                    k++;
+                    while (k + 1 < sb.length() && isDigit(sb.charAt(k + 1))) {
+                        k++;
+                    }
+                }
+            }
+        }
+
+        shortenTimes(sb);
+
+        for (int k = 0; k + 3 < sb.length(); k++) {
+            if (matches(sb, k, "rgb") || matches(sb, k, "hsl")) {
+                colorFunctionToHex(sb, k);
+            }
+        }
+
+        if (sb.indexOf("#") >= 0) {
+            shortenColors(sb, delim, end);
+        }
+
+        if (terminated) {
+            int at = sb.lastIndexOf("#");
+            if (at > 0 && (sb.charAt(at - 1) == ':' || sb.charAt(at - 1) == ' ')) {
+                String name = CssValues.nameOf(sb.substring(at));
+                if (name != null) {
+                    sb.replace(at, sb.length(), name);
+                }
+            }
+        }
+
+        // white becomes #fff in the values of the properties taking colors
+        int colon = sb.indexOf(":");
+        if (colon > 0 && isPropertyName(sb, colon) && CssValues.isColorProperty(sb.substring(0, colon))) {
+            String value = sb.substring(colon + 1);
+            String shorter = CssValues.shortenColorNames(value);
+            if (shorter != value) {
+                sb.replace(colon + 1, sb.length(), shorter);
+            }
+        }
+
+        if (terminated) {
+
+            // border:none becomes border:0
+            int at = sb.length() - ":none".length();
+            if (at > 0 && matches(sb, at, ":none")) {
+                int m = matchPropertySuffix(sb, at, NONE_PROPERTIES);
+                if (m > 0) {
+                    lowerCase(sb, at - m, at);
+                    sb.replace(at, sb.length(), ":0");
+                }
+            }
+        }
+
+        for (int k = indexOfAlpha(sb, 0); k >= 0; k = indexOfAlpha(sb, k + 1)) {
+            sb.replace(k, k + ALPHA.length(), "alpha(opacity=");
+        }
+    }
+
+    /*
+     * Tells whether the semi-colon at the given position of the text is
+     * still there once the semi-colons before closing braces are removed.
+     */
+    private boolean isSemicolonKept(int i) {
+        for (i++; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '}') {
+                return false;
+            }
+            if (c != ';' && c != ' ' && c != SEAM) {
+                return true;
+            }
+        }
+        return true;
+    }
+
+    private static boolean endsWithExactly(StringBuilder sb, String s) {
+        return matchesExactly(sb, sb.length() - s.length(), s);
+    }
+
+    private static boolean endsWithExactly(StringBuilder sb, int end, String s) {
+        return matchesExactly(sb, end - s.length(), s);
+    }
+
+    private static int matchExactly(StringBuilder sb, int at, String[] alternatives) {
+        for (String alternative : alternatives) {
+            if (matchesExactly(sb, at, alternative)) {
+                return alternative.length();
+            }
+        }
+        return 0;
+    }
+
+    /*
+     * Returns the length of the longest of the properties that ends at the
+     * given position, ignoring case, or 0.
+     */
+    private static int matchPropertySuffix(StringBuilder sb, int end, String[] properties) {
+        int best = 0;
+        for (String property : properties) {
+            if (property.length() > best && matches(sb, end - property.length(), property)) {
+                best = property.length();
+            }
+        }
+        return best;
+    }
+
+    /*
+     * Replaces 0px, 0.0em, .0deg... by 0, at the given position and then
+     * after each of the following words made of digits, letters, dots and
+     * dashes. Inside parentheses the words may also end with a comma.
+     */
+    private static void shortenZeros(StringBuilder sb, int p, String[] units, boolean group) {
+        while (p < sb.length()) {
+            int m;
+            while ((m = matchZero(sb, p, units)) > 0) {
+                sb.replace(p, p + m, "0");
+            }
+            int q = p;
+            while (q < sb.length() && isWordPart(sb.charAt(q))) {
+                q++;
+            }
+            if (q == p || q >= sb.length() || !(sb.charAt(q) == ' ' || group && sb.charAt(q) == ',')) {
+                return;
+            }
+            p = q + 1;
+        }
+    }
+
+    private static boolean isWordPart(char c) {
+        return c >= '0' && c <= '9' || c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c == '-' || c == '.';
+    }
+
+    private static int matchZero(StringBuilder sb, int p, String[] units) {
+        int n = sb.length();
+        int z;
+        if (p + 2 < n && sb.charAt(p) == '0' && sb.charAt(p + 1) == '.' && sb.charAt(p + 2) == '0'
+                && matchAny(sb, p + 3, units) > 0) {
+            z = p + 3;
+        } else if (p + 1 < n && sb.charAt(p) == '.' && sb.charAt(p + 1) == '0' && matchAny(sb, p + 2, units) > 0) {
+            z = p + 2;
+        } else if (p < n && sb.charAt(p) == '0') {
+            z = p + 1;
+        } else {
+            return 0;
+        }
+        int u = matchAny(sb, z, units);
+        return u > 0 ? z + u - p : 0;
+    }
+
+    /*
+     * Replaces rgb(51,102,153), hsl(210,50%,40%) and the opaque rgba() and
+     * hsla() colors found at the given position by #336699.
+     */
+    private static void colorFunctionToHex(StringBuilder sb, int k) {
+        int open = k + 3;
+        if (open < sb.length() && toLower(sb.charAt(open)) == 'a') {
+            open++;
+        }
+        if (open >= sb.length() || sb.charAt(open) != '(') {
+            return;
+        }
+        int close = open + 1;
+        while (close < sb.length() && sb.charAt(close) != '(' && sb.charAt(close) != ')') {
+            close++;
+        }
+        if (close >= sb.length() || sb.charAt(close) != ')') {
+            return;
+        }
+        String hex = CssValues.toHex(sb.substring(k, open), sb.substring(open + 1, close));
+        if (hex != null) {
+            sb.replace(k, close + 1, hex);
+        }
+    }
+
+    /*
+     * Drops the zeros that end the fractions of numbers, and the point when
+     * nothing is left after it.
+     */
+    private static void trimFractions(StringBuilder sb) {
+        for (int k = 0; k < sb.length(); k++) {
+            if (k > 0 && !CssValues.isNumberStart(sb.charAt(k - 1))) {
+                continue;
+            }
+            int p = k;
+            if (p < sb.length() && (sb.charAt(p) == '-' || sb.charAt(p) == '+')) {
+                p++;
+            }
+            int point = p;
+            while (point < sb.length() && isDigit(sb.charAt(point))) {
+                point++;
+            }
+            if (point >= sb.length() || sb.charAt(point) != '.') {
+                continue;
+            }
+            int end = point + 1;
+            while (end < sb.length() && isDigit(sb.charAt(end))) {
+                end++;
+            }
+            if (end < sb.length() && sb.charAt(end) == '.') {
+                continue;
+            }
+            int zeros = end;
+            while (zeros > point + 1 && sb.charAt(zeros - 1) == '0') {
+                zeros--;
+            }
+            if (zeros == end) {
+                continue;
+            }
+            String number = CssValues.trimFraction(sb.substring(p, point), sb.substring(point + 1, zeros));
+            sb.replace(p, end, number);
+            k = p + number.length() - 1;
+        }
+    }
+
+    /*
+     * Writes the times in the shorter of seconds and milliseconds.
+     */
+    private static void shortenTimes(StringBuilder sb) {
+        for (int k = 0; k < sb.length(); k++) {
+            if (k > 0 && !CssValues.isNumberStart(sb.charAt(k - 1))) {
+                continue;
+            }
+            int p = k;
+            if (p < sb.length() && (sb.charAt(p) == '-' || sb.charAt(p) == '+')) {
+                p++;
+            }
+            int end = p;
+            while (end < sb.length() && isDigit(sb.charAt(end))) {
+                end++;
+            }
+            if (end + 1 < sb.length() && sb.charAt(end) == '.' && isDigit(sb.charAt(end + 1))) {
+                end++;
+                while (end < sb.length() && isDigit(sb.charAt(end))) {
+                    end++;
+                }
+            }
+            if (end == p || !isDigit(sb.charAt(end - 1))) {
+                continue;
+            }
+            int unit = matches(sb, end, "ms") ? 2 : matches(sb, end, "s") ? 1 : 0;
+            if (unit == 0 || end + unit < sb.length()
+                    && (isWordChar(sb.charAt(end + unit)) || sb.charAt(end + unit) == '-')) {
+                continue;
+            }
+            String time = CssValues.shortestTime(sb.substring(p, end), sb.substring(end, end + unit));
+            if (time != null) {
+                sb.replace(p, end + unit, time);
+                k = p + time.length() - 1;
+            }
+        }
+    }
+
+    private static boolean isPropertyName(StringBuilder sb, int end) {
+        for (int i = 0; i < end; i++) {
+            char c = sb.charAt(i);
+            if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c == '-')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Shortens #AABBCC to #ABC and lowercases the other six-digit colors,
+     * when they are followed by a closing brace before any opening brace,
+     * and are not the value of a filter such as chroma(color=#FFFFFF).
+     */
+    private void shortenColors(StringBuilder sb, char delim, int end) {
+        boolean closeFollows;
+        if (delim == '}') {
+            closeFollows = true;
+        } else if (delim != ';') {
+            closeFollows = false;
+        } else {
+            if (nextBrace < end) {
+                nextBrace = end + 1;
+                while (nextBrace < text.length() && text.charAt(nextBrace) != '{' && text.charAt(nextBrace) != '}') {
+                    nextBrace++;
+                }
+            }
+            closeFollows = nextBrace < text.length() && text.charAt(nextBrace) == '}';
+        }
+        if (!closeFollows) {
+            return;
+        }
+
+        for (int k = sb.indexOf("#"); k >= 0; k = sb.indexOf("#", k + 1)) {
+            if (k + 6 >= sb.length()) {
+                break;
+            }
+            int i = k + 1;
+            while (i <= k + 6 && isHexDigit(sb.charAt(i))) {
+                i++;
+            }
+            if (i <= k + 6 || i < sb.length() && isHexDigit(sb.charAt(i))) {
+                continue;
+            }
+
+            // Filters break if their colors are compressed
+            int f = k - 1;
+            if (f >= 0 && (sb.charAt(f) == '"' || sb.charAt(f) == '\'')) {
+                f--;
+            }
+            while (f >= 0 && sb.charAt(f) == ' ') {
+                f--;
+            }
+            if (f >= 0 && sb.charAt(f) == '=') {
+                continue;
+            }
+
+            if (toLower(sb.charAt(k + 1)) == toLower(sb.charAt(k + 2))
+                    && toLower(sb.charAt(k + 3)) == toLower(sb.charAt(k + 4))
+                    && toLower(sb.charAt(k + 5)) == toLower(sb.charAt(k + 6))) {
+                sb.setCharAt(k + 1, toLower(sb.charAt(k + 2)));
+                sb.setCharAt(k + 2, toLower(sb.charAt(k + 4)));
+                sb.setCharAt(k + 3, toLower(sb.charAt(k + 6)));
+                sb.delete(k + 4, k + 7);
+            } else {
+                lowerCase(sb, k + 1, k + 7);
+            }
+        }
+    }
+
+    private void append(StringBuilder sb) {
+        for (int i = 0; i < sb.length(); i++) {
+            if (sb.charAt(i) == TOKEN) {
+                if (outTokenCount == outTokens.length) {
+                    outTokens = Arrays.copyOf(outTokens, outTokenCount * 2);
+                }
+                outTokens[outTokenCount++] = nextToken++;
+            }
+        }
+        out.append(sb);
+        if (sb.length() > 0) {
+            semicolons = 0;
+        }
+    }
+
+    private void appendDelimiter(char delim, boolean emptySegment) {
+        if (delim == ';') {
+            out.append(';');
+            semicolons++;
+            return;
+        }
+        if (delim == '{') {
+            out.append('{');
+            semicolons = 0;
+            return;
+        }
+
+        if (emptySegment && semicolons > 0) {
+            // Remove unnecessary semi-colons
+            out.setLength(out.length() - semicolons);
+        }
+        semicolons = 0;
+
+        int open = out.length() - 1;
+        if (emptySegment && open >= barrier && open >= 0 && out.charAt(open) == '{') {
+            // Remove the empty rule along with its selector
+            int start = open;
+            while (start > 0) {
+                char c = out.charAt(start - 1);
+                if (c == '}' || c == '{' || c == ';' || c == '/' && !isFraction(start - 1)) {
+                    break;
+                }
+                start--;
+            }
+            if (start < open) {
+                for (int i = start; i < open; i++) {
+                    if (out.charAt(i) == TOKEN) {
+                        outTokenCount--;
+                    }
+                }
+                out.setLength(start);
+                barrier = start;
+                return;
+            }
+        }
+        out.append('}');
+    }
+
+    /*
+     * Tells whether the slash is the one of a fraction in a media query,
+     * such as (-o-min-device-pixel-ratio:3/2).
+     */
+    private boolean isFraction(int slash) {
+        int i = slash + 1;
+        while (i < out.length() && isDigit(out.charAt(i))) {
+            i++;
+        }
+        if (i == slash + 1 || i >= out.length() || out.charAt(i) != ')') {
+            return false;
+        }
+        i = slash - 1;
+        while (i >= 0 && isDigit(out.charAt(i))) {
+            i--;
+        }
+        if (i == slash - 1 || i < 0 || out.charAt(i) != ':') {
+            return false;
+        }
+        int colon = i--;
+        while (i >= 0 && (out.charAt(i) == '-' || out.charAt(i) >= 'a' && out.charAt(i) <= 'z'
+                || out.charAt(i) >= 'A' && out.charAt(i) <= 'Z')) {
+            i--;
+        }
+        return i < colon - 1 && i >= 0 && out.charAt(i) == '(';
+    }
+
+    /*
+     * Breaks the long lines, removes the repeated semi-colons and puts the
+     * preserved tokens back.
+     */
+    private String merge(int linebreakpos) {
+        int capacity = out.length();
+        for (int t = 0; t < outTokenCount; t++) {
+            capacity += tokens.get(outTokens[t]).length();
+        }
+        StringBuilder result = new StringBuilder(capacity + 64);
+        int column = lineLength;
+        int lineStart = 0;
+        int t = 0;
+        char prev = 0;
+        // The closing brace of the rule before is already written
+        int first = continued && out.length() > 0 && out.charAt(0) == '}' ? 1 : 0;
+        for (int i = first; i < out.length(); i++) {
+            char c = out.charAt(i);
+            if (c == TOKEN) {
+                int token = outTokens[t++];
+                result.append(tokens.get(token));
+                column += widths[token];
+                prev = c;
+                continue;
+            }
+            column++;
+            if (c != ';' || prev != ';') {
+                result.append(c);
+            }
+            prev = c;
+            if (c == '}' && linebreakpos >= 0 && column - lineStart > linebreakpos) {
+                result.append('\n');
+                lineStart = column;
+                column++;
+            }
+        }
+        lineLength = column - lineStart;
+        endsWithBreak = result.length() > 0 && result.charAt(result.length() - 1) == '\n';
+
+        // Add spaces back in between operators for css calc function
+        for (int k = result.indexOf("calc("); k >= 0; k = result.indexOf("calc(", k + 1)) {
+            int close = result.indexOf(")", k + 5);
+            if (close < 0) {
+                break;
+            }
+            String s = result.substring(k, close + 1);
+            for (char operator : new char[]{'+', '-', '*', '/'}) {
+                s = spaceOperator(s, operator);
+            }
+            result.replace(k, close + 1, s);
+            k += s.length() - 1;
+        }
+
+        return result.toString().trim();
+    }
+
+    private static String spaceOperator(String s, char operator) {
+        if (s.indexOf(operator) < 0) {
+            return s;
+        }
+        StringBuilder sb = new StringBuilder(s.length() + 8);
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == operator && i > 0 && "-|%pxemrvw0123456789".indexOf(s.charAt(i - 1)) >= 0) {
+                sb.append(' ').append(c).append(' ');
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,159 @@
+package com.yahoo.platform.yui.compressor;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * CssNameMangler renames the class names and ids in the selectors of a
+ * compressed stylesheet to the short names given by a
+ * {@link SelectorNames}. The selectors of the rules, of the rules nested
+ * in them, and of the rules in @media, @supports, @container and @layer
+ * blocks are renamed; the declarations, the attribute selectors and the
+ * other at-rules are left as they are, as are the names with escapes.
+ */
+final class CssNameMangler {
+
+    private final SelectorNames names;
+
+    CssNameMangler(SelectorNames names) {
+        this.names = names;
+    }
+
+    /**
+     * Renames the class names and ids of a stylesheet compressed without
+     * line breaks, giving short names to the new ones that match, or
+     * returns null if the stylesheet cannot be read as a list of rules.
+     */
+    String mangle(String css) {
+        Map<String, Integer> counts = new HashMap<>();
+        Set<String> taken = new HashSet<>();
+        if (!walk(css, 0, css.length(), null, counts, taken)) {
+            return null;
+        }
+        names.give(counts, taken);
+        StringBuilder sb = new StringBuilder(css.length());
+        walk(css, 0, css.length(), sb, null, null);
+        return sb.toString();
+    }
+
+    /*
+     * Goes through the rules and declarations between from and to, counting
+     * the names and the ones not to be given when sb is null, and copying
+     * them renamed to sb otherwise.
+     */
+    private boolean walk(String css, int from, int to, StringBuilder sb,
+                         Map<String, Integer> counts, Set<String> taken) {
+        int i = from;
+        while (i < to) {
+            if (css.startsWith("/*", i)) {
+                int end = css.indexOf("*/", i + 2);
+                if (end < 0 || end + 2 > to) {
+                    return false;
+                }
+                append(sb, css, i, end + 2);
+                i = end + 2;
+                continue;
+            }
+
+            int open = CssMerger.skip(css, i, to, true);
+            if (open < 0) {
+                return false;
+            }
+            if (open == to || css.charAt(open) == ';') {
+                // A declaration or a statement at-rule
+                int end = Math.min(open + 1, to);
+                append(sb, css, i, end);
+                i = end;
+                continue;
+            }
+            int close = CssMerger.skip(css, open + 1, to, false);
+            if (close < 0 || close == to) {
+                return false;
+            }
+
+            String prelude = css.substring(i, open);
+            if (prelude.startsWith("@") && !isConditional(prelude)) {
+                append(sb, css, i, close + 1);
+            } else {
+                if (prelude.startsWith("@")) {
+                    append(sb, css, i, open + 1);
+                } else {
+                    selector(prelude, sb, counts, taken);
+                    append(sb, css, open, open + 1);
+                }
+                if (!walk(css, open + 1, close, sb, counts, taken)) {
+                    return false;
+                }
+                append(sb, css, close, close + 1);
+            }
+            i = close + 1;
+        }
+        return true;
+    }
+
+    private static boolean isConditional(String prelude) {
+        String name = prelude.substring(1).toLowerCase(Locale.ROOT);
+        return name.startsWith("media") || name.startsWith("supports")
+                || name.startsWith("container") || name.startsWith("layer");
+    }
+
+    private void selector(String prelude, StringBuilder sb, Map<String, Integer> counts, Set<String> taken) {
+        int i = 0;
+        while (i < prelude.length()) {
+            char c = prelude.charAt(i);
+            if (c == '"' || c == '\'') {
+                int end = CssMerger.skipString(prelude, i, prelude.length());
+                end = end < 0 ? prelude.length() : end;
+                append(sb, prelude, i, end);
+                i = end;
+            } else if (c == '[') {
+                int end = i + 1;
+                while (end > 0 && end < prelude.length() && prelude.charAt(end) != ']') {
+                    char d = prelude.charAt(end);
+                    end = d == '"' || d == '\'' ? CssMerger.skipString(prelude, end, prelude.length()) : end + 1;
+                }
+                end = end < 0 || end >= prelude.length() ? prelude.length() : end + 1;
+                append(sb, prelude, i, end);
+                i = end;
+            } else if (c == '\\') {
+                int end = Math.min(i + 2, prelude.length());
+                append(sb, prelude, i, end);
+                i = end;
+            } else if ((c == '.' || c == '#') && i + 1 < prelude.length() && isNameStart(prelude.charAt(i + 1))) {
+                int end = i + 1;
+                while (end < prelude.length() && SelectorNames.isNameChar(prelude.charAt(end))) {
+                    end++;
+                }
+                String name = prelude.substring(i + 1, end);
+                boolean escaped = end < prelude.length() && prelude.charAt(end) == '\\';
+                if (sb == null) {
+                    if (escaped || !names.matches(name) && names.get(name) == null) {
+                        taken.add(name);
+                    } else {
+                        counts.merge(name, 1, Integer::sum);
+                    }
+                } else {
+                    String shortName = escaped ? null : names.get(name);
+                    sb.append(c).append(shortName != null ? shortName : name);
+                }
+                i = end;
+            } else {
+                append(sb, prelude, i, i + 1);
+                i++;
+            }
+        }
+    }
+
+    private static boolean isNameStart(char c) {
+        return c == '_' || c == '-' || Character.isLetter(c);
+    }
+
+    private static void append(StringBuilder sb, String s, int start, int end) {
+        if (sb != null) {
+            sb.append(s, start, end);
+        }
+    }
+}
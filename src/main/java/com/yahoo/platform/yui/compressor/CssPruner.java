@@ -0,0 +1,297 @@
+package com.yahoo.platform.yui.compressor;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * CssPruner removes from a compressed stylesheet the selectors that cannot
+ * match anything in a set of templates and scripts. The templates are not
+ * parsed: every word they contain, made of letters, digits, dashes and
+ * underscores, is indexed in a single scan, so that a class, id or tag name
+ * counts as used wherever it appears, in markup, in a string or in code.
+ * <p>
+ * A selector is removed when one of the class names, ids or tag names it
+ * requires is neither in the index nor in the safelist. The names inside
+ * parentheses and attribute selectors are not looked at, and selectors
+ * with escapes or namespaces are always kept. A rule is removed with its
+ * last selector, and a @media, @supports, @container or @layer block with
+ * its last rule. Class names built at run time, such as "btn-" + size, are
+ * not found and must be safelisted.
+ * <p>
+ * An instance counts the selectors it removed over all the stylesheets it
+ * went through and must not be used by several threads at the same time.
+ */
+final class CssPruner {
+
+    // Always there, though components may not mention them
+    private static final String[] ROOT_TAGS = {"html", "body"};
+
+    private final Set<String> words = new HashSet<>();
+    private final Set<String> lowerCaseWords = new HashSet<>();
+    private final Set<String> safelist = new HashSet<>();
+    private final List<String> safePrefixes = new ArrayList<>();
+
+    private final List<String> pruned = new ArrayList<>();
+    private long saved;
+
+    CssPruner() {
+        Collections.addAll(lowerCaseWords, ROOT_TAGS);
+    }
+
+    /**
+     * Adds the words of a template or script to the index.
+     */
+    void index(Reader in) throws IOException {
+        char[] buf = new char[8192];
+        StringBuilder word = new StringBuilder();
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            for (int i = 0; i < n; i++) {
+                if (isNameChar(buf[i])) {
+                    word.append(buf[i]);
+                } else if (word.length() > 0) {
+                    addWord(word.toString());
+                    word.setLength(0);
+                }
+            }
+        }
+        if (word.length() > 0) {
+            addWord(word.toString());
+        }
+    }
+
+    private void addWord(String word) {
+        words.add(word);
+        lowerCaseWords.add(word.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Keeps the selectors that need the specified names. A name ending with
+     * '*' stands for all the names starting with what precedes it.
+     */
+    void setSafelist(List<String> names) {
+        safelist.clear();
+        safePrefixes.clear();
+        for (String name : names) {
+            if (name.endsWith("*")) {
+                safePrefixes.add(name.substring(0, name.length() - 1));
+            } else {
+                safelist.add(name);
+            }
+        }
+    }
+
+    /**
+     * Returns the selectors removed so far, in order.
+     */
+    List<String> getPruned() {
+        return Collections.unmodifiableList(pruned);
+    }
+
+    /**
+     * Returns the number of characters the removed selectors took.
+     */
+    long getSaved() {
+        return saved;
+    }
+
+    /**
+     * Removes the selectors of a stylesheet compressed without line breaks
+     * that cannot match the templates, or returns it as it is if it cannot
+     * be read as a list of rules.
+     */
+    String prune(String css) {
+        StringBuilder sb = new StringBuilder(css.length());
+        int count = pruned.size();
+        if (!prune(css, 0, css.length(), sb)) {
+            pruned.subList(count, pruned.size()).clear();
+            return css;
+        }
+        saved += css.length() - sb.length();
+        return sb.toString();
+    }
+
+    private boolean prune(String css, int from, int to, StringBuilder sb) {
+        int i = from;
+        while (i < to) {
+            if (css.startsWith("/*", i)) {
+                int end = css.indexOf("*/", i + 2);
+                if (end < 0 || end + 2 > to) {
+                    return false;
+                }
+                sb.append(css, i, end + 2);
+                i = end + 2;
+                continue;
+            }
+
+            int open = CssMerger.skip(css, i, to, true);
+            if (open < 0) {
+                return false;
+            }
+            if (open == to || css.charAt(open) == ';') {
+                int end = Math.min(open + 1, to);
+                sb.append(css, i, end);
+                i = end;
+                continue;
+            }
+            int close = CssMerger.skip(css, open + 1, to, false);
+            if (close < 0 || close == to) {
+                return false;
+            }
+
+            String prelude = css.substring(i, open);
+            if (prelude.startsWith("@")) {
+                if (isConditional(prelude)) {
+                    int start = sb.length();
+                    sb.append(css, i, open + 1);
+                    int content = sb.length();
+                    if (!prune(css, open + 1, close, sb)) {
+                        return false;
+                    }
+                    if (sb.length() == content && open + 1 < close) {
+                        sb.setLength(start);
+                    } else {
+                        sb.append('}');
+                    }
+                } else {
+                    sb.append(css, i, close + 1);
+                }
+            } else if (css.substring(open + 1, close).indexOf('{') >= 0) {
+                // Nested rules
+                sb.append(css, i, close + 1);
+            } else {
+                StringBuilder kept = new StringBuilder();
+                for (String selector : splitSelectors(prelude)) {
+                    if (mayMatch(selector)) {
+                        kept.append(kept.length() > 0 ? "," : "").append(selector);
+                    } else {
+                        pruned.add(selector);
+                    }
+                }
+                if (kept.length() > 0) {
+                    sb.append(kept).append(css, open, close + 1);
+                }
+            }
+            i = close + 1;
+        }
+        return true;
+    }
+
+    private static boolean isConditional(String prelude) {
+        String name = prelude.substring(1).toLowerCase(Locale.ROOT);
+        return name.startsWith("media") || name.startsWith("supports")
+                || name.startsWith("container") || name.startsWith("layer");
+    }
+
+    /*
+     * Splits a selector list at the commas outside of parentheses,
+     * brackets and strings.
+     */
+    private static List<String> splitSelectors(String prelude) {
+        List<String> selectors = new ArrayList<>();
+        int depth = 0;
+        int start = 0;
+        for (int i = 0; i < prelude.length(); i++) {
+            char c = prelude.charAt(i);
+            if (c == '"' || c == '\'') {
+                i = CssMerger.skipString(prelude, i, prelude.length()) - 1;
+                if (i < 0) {
+                    break;
+                }
+            } else if (c == '\\') {
+                i++;
+            } else if (c == '(' || c == '[') {
+                depth++;
+            } else if (c == ')' || c == ']') {
+                depth--;
+            } else if (c == ',' && depth <= 0) {
+                selectors.add(prelude.substring(start, i));
+                start = i + 1;
+            }
+        }
+        selectors.add(prelude.substring(start));
+        return selectors;
+    }
+
+    /*
+     * Returns false if the selector requires a class, id or tag name that
+     * is not used.
+     */
+    private boolean mayMatch(String selector) {
+        if (selector.indexOf('\\') >= 0 || selector.indexOf('|') >= 0) {
+            return true;
+        }
+        int depth = 0;
+        int i = 0;
+        while (i < selector.length()) {
+            char c = selector.charAt(i);
+            if (c == '"' || c == '\'') {
+                i = CssMerger.skipString(selector, i, selector.length());
+                if (i < 0) {
+                    return true;
+                }
+                continue;
+            }
+            if (c == '(' || c == '[') {
+                depth++;
+            } else if (c == ')' || c == ']') {
+                depth--;
+            } else if (depth <= 0 && (c == '.' || c == '#' || c == ':' || isNameStart(selector, i))) {
+                int start = c == '.' || c == '#' ? i + 1 : i;
+                while (start < selector.length() && selector.charAt(start) == ':') {
+                    start++;
+                }
+                int end = start;
+                while (end < selector.length() && isNameChar(selector.charAt(end))) {
+                    end++;
+                }
+                String name = selector.substring(start, end);
+                if (c != ':' && !name.isEmpty() && !isUsed(name, c != '.' && c != '#')) {
+                    return false;
+                }
+                i = Math.max(end, i + 1);
+                continue;
+            }
+            i++;
+        }
+        return true;
+    }
+
+    // A tag name starts a compound selector
+    private static boolean isNameStart(String selector, int i) {
+        char c = selector.charAt(i);
+        if (!Character.isLetter(c) && c != '_' && c != '-') {
+            return false;
+        }
+        if (i == 0) {
+            return true;
+        }
+        char previous = selector.charAt(i - 1);
+        return previous == ' ' || previous == '>' || previous == '+' || previous == '~';
+    }
+
+    private static boolean isNameChar(char c) {
+        return c == '-' || c == '_' || Character.isLetterOrDigit(c);
+    }
+
+    private boolean isUsed(String name, boolean tag) {
+        if (tag ? lowerCaseWords.contains(name.toLowerCase(Locale.ROOT)) : words.contains(name)) {
+            return true;
+        }
+        if (safelist.contains(name)) {
+            return true;
+        }
+        for (String prefix : safePrefixes) {
+            if (name.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
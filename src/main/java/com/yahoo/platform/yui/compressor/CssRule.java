@@ -0,0 +1,144 @@
+package com.yahoo.platform.yui.compressor;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.MatchResult;
+import java.util.regex.Pattern;
+
+/**
+ * CssRule is one of the rewrites the regular expression engine of
+ * {@link CssCompressor} runs over a stylesheet, once its comments, strings
+ * and functions have been replaced by placeholders. The rules are applied
+ * in the order of {@link CssCompressor#getRules()}, which can be changed to
+ * leave some out or to run them in another order.
+ * <p>
+ * Each rule counts the matches it rewrote and the time it took, over all
+ * the stylesheets compressed by the same compressor. A rule must not be used
+ * by several threads at the same time.
+ */
+public final class CssRule {
+
+    /*
+     * What a rule does to the stylesheet. The matches it rewrites are
+     * counted with hit().
+     */
+    interface Rewrite {
+        String apply(CssRule rule, String css, RegexBudget budget, int linebreakpos);
+    }
+
+    private final String name;
+    private final Rewrite rewrite;
+    private long hits;
+    private long nanos;
+
+    CssRule(String name, Rewrite rewrite) {
+        this.name = name;
+        this.rewrite = rewrite;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the number of matches this rule rewrote.
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * Returns the time this rule took, in nanoseconds.
+     */
+    public long getNanos() {
+        return nanos;
+    }
+
+    public void resetStats() {
+        hits = 0;
+        nanos = 0;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    String apply(String css, RegexBudget budget, int linebreakpos) {
+        long start = System.nanoTime();
+        try {
+            return rewrite.apply(this, css, budget, linebreakpos);
+        } finally {
+            nanos += System.nanoTime() - start;
+        }
+    }
+
+    void hit() {
+        hits++;
+    }
+
+    /*
+     * Replaces the matches of a regular expression, like String.replaceAll.
+     */
+    static CssRule replace(String name, String regex, String replacement) {
+        Pattern p = Pattern.compile(regex);
+        return new CssRule(name, (rule, css, budget, linebreakpos) ->
+                budget.matcher(p, css).replaceAll(m -> {
+                    rule.hit();
+                    return replacement;
+                }));
+    }
+
+    /*
+     * Replaces the matches of a regular expression again and again, until
+     * there are none left.
+     */
+    static CssRule repeat(String name, String regex, String replacement) {
+        Pattern p = Pattern.compile(regex);
+        return new CssRule(name, (rule, css, budget, linebreakpos) -> {
+            String oldCss;
+            do {
+                oldCss = css;
+                css = budget.matcher(p, css).replaceAll(m -> {
+                    rule.hit();
+                    return replacement;
+                });
+            } while (!css.equals(oldCss));
+            return css;
+        });
+    }
+
+    /*
+     * Replaces the matches of a regular expression with the replacement
+     * computed from each of them, as Matcher.appendReplacement does.
+     */
+    static CssRule replace(String name, String regex, Function<MatchResult, String> replacement) {
+        Pattern p = Pattern.compile(regex);
+        return new CssRule(name, (rule, css, budget, linebreakpos) ->
+                budget.matcher(p, css).replaceAll(m -> {
+                    rule.hit();
+                    return replacement.apply(m);
+                }));
+    }
+
+    /*
+     * Replaces several words found between the same prefix and suffix in a
+     * single scan, rather than one scan for each word. The words and their
+     * replacements come in pairs. The prefix and suffix must be groups that
+     * cannot overlap, so that the result is the one of the replacements
+     * made one after the other.
+     */
+    static CssRule table(String name, String prefix, String suffix, String... words) {
+        Map<String, String> replacements = new HashMap<>();
+        StringJoiner regex = new StringJoiner("|", prefix + "(", ")" + suffix);
+        for (int i = 0; i < words.length; i += 2) {
+            replacements.put(words[i], words[i + 1]);
+            regex.add(Pattern.quote(words[i]));
+        }
+        return replace(name, regex.toString(), m ->
+                Matcher.quoteReplacement(m.group(1) + replacements.get(m.group(2)) + m.group(3)));
+    }
+}
@@ -0,0 +1,131 @@
+package com.yahoo.platform.yui.compressor;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+
+/**
+ * CssStreamer compresses a stylesheet read from a stream one window at a
+ * time and writes the result as it goes, so that the memory it takes does
+ * not grow with the size of the stylesheet.
+ * <p>
+ * A window holds whole top-level rules: {@link CssMinifier#minifyPart} cuts
+ * what has been read so far after the last top-level rule it can, once it is
+ * long enough, and the rest is kept for the next window. The compression of
+ * a rule does not depend on the rules after it, and each window is
+ * compressed as if it followed the closing brace that ends the window
+ * before. The result is the one of the whole stylesheet, except that:
+ * <ul>
+ * <li>the @charset rule that would be moved to the top from a window other
+ * than the first is dropped, since browsers only honor the one the
+ * stylesheet starts with;</li>
+ * <li>the length of the last line is carried from one window to the next,
+ * but the preserved tokens are numbered for each window, so a line break can
+ * fall on another rule when the tokens are numerous.</li>
+ * </ul>
+ * When no cut can be made, the window grows to twice its length before the
+ * next try. A stylesheet holding the control characters the single-pass
+ * engine uses as markers is read in full from there and compressed by the
+ * regular expression engine of {@link CssCompressor}, starting a new line.
+ */
+final class CssStreamer {
+
+    static final int WINDOW = 64 * 1024;
+
+    private final CssMinifier minifier;
+    private final OffHeapTokens offHeapTokens;
+    private final CssCompressor fallback;
+    private final int windowLength;
+
+    private final StringBuilder window = new StringBuilder();
+    private final char[] buffer = new char[8192];
+
+    // Output state, carried from one window to the next
+    private boolean first;
+    private int lineLength;
+    private boolean pendingBreak;
+    private boolean semicolon;
+
+    CssStreamer(CssMinifier minifier, OffHeapTokens offHeapTokens, CssCompressor fallback, int windowLength) {
+        this.minifier = minifier;
+        this.offHeapTokens = offHeapTokens;
+        this.fallback = fallback;
+        this.windowLength = windowLength;
+    }
+
+    void compress(Reader in, Writer out, int linebreakpos) throws IOException {
+        window.setLength(0);
+        first = true;
+        lineLength = 0;
+        pendingBreak = false;
+        semicolon = false;
+
+        int next = windowLength;
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            window.append(buffer, 0, n);
+            if (!CssMinifier.accepts(new String(buffer, 0, n))) {
+                fallBack(in, out, linebreakpos);
+                return;
+            }
+            if (window.length() < next) {
+                continue;
+            }
+
+            clearOffHeapTokens();
+            String result = minifier.minifyPart(window.toString(), windowLength, linebreakpos, lineLength, !first);
+            if (result == null) {
+                next = window.length() * 2;
+                continue;
+            }
+            write(result, out);
+            window.delete(0, minifier.partLength());
+            next = windowLength;
+        }
+
+        clearOffHeapTokens();
+        write(minifier.minify(window.toString(), linebreakpos, lineLength, !first), out);
+        window.setLength(0);
+    }
+
+    private void write(String result, Writer out) throws IOException {
+        // The semicolons that end a part and start the next are one
+        int start = 0;
+        while (semicolon && start < result.length() && result.charAt(start) == ';') {
+            start++;
+        }
+        result = result.substring(start);
+
+        if (!result.isEmpty()) {
+            if (pendingBreak) {
+                out.write('\n');
+            }
+            minifier.write(result, out);
+            pendingBreak = minifier.endsWithBreak();
+            semicolon = result.charAt(result.length() - 1) == ';';
+        }
+        lineLength = minifier.lineLength();
+        first = false;
+    }
+
+    private void fallBack(Reader in, Writer out, int linebreakpos) throws IOException {
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            window.append(buffer, 0, n);
+        }
+        if (!first) {
+            out.write('\n');
+        }
+        clearOffHeapTokens();
+        fallback.reset(new StringReader(window.toString()));
+        window.setLength(0);
+        fallback.compress(out, linebreakpos);
+    }
+
+    private void clearOffHeapTokens() {
+        if (offHeapTokens != null) {
+            offHeapTokens.clear();
+        }
+    }
+}
@@ -0,0 +1,389 @@
+package com.yahoo.platform.yui.compressor;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * CssValues holds the tables both engines use to write values in their
+ * shortest form: the named colors of CSS and their hexadecimal values, the
+ * properties that take colors, and the conversions of rgb(), rgba(), hsl()
+ * and hsla() colors and of times.
+ * <p>
+ * The engines decide where a value can be rewritten; this class only tells
+ * what it becomes, so that both of them give the same result.
+ */
+final class CssValues {
+
+    // The named colors of CSS Color Module Level 4
+    private static final String[][] COLORS = {
+            {"aliceblue", "f0f8ff"}, {"antiquewhite", "faebd7"}, {"aqua", "00ffff"},
+            {"aquamarine", "7fffd4"}, {"azure", "f0ffff"}, {"beige", "f5f5dc"},
+            {"bisque", "ffe4c4"}, {"black", "000000"}, {"blanchedalmond", "ffebcd"},
+            {"blue", "0000ff"}, {"blueviolet", "8a2be2"}, {"brown", "a52a2a"},
+            {"burlywood", "deb887"}, {"cadetblue", "5f9ea0"}, {"chartreuse", "7fff00"},
+            {"chocolate", "d2691e"}, {"coral", "ff7f50"}, {"cornflowerblue", "6495ed"},
+            {"cornsilk", "fff8dc"}, {"crimson", "dc143c"}, {"cyan", "00ffff"},
+            {"darkblue", "00008b"}, {"darkcyan", "008b8b"}, {"darkgoldenrod", "b8860b"},
+            {"darkgray", "a9a9a9"}, {"darkgreen", "006400"}, {"darkgrey", "a9a9a9"},
+            {"darkkhaki", "bdb76b"}, {"darkmagenta", "8b008b"}, {"darkolivegreen", "556b2f"},
+            {"darkorange", "ff8c00"}, {"darkorchid", "9932cc"}, {"darkred", "8b0000"},
+            {"darksalmon", "e9967a"}, {"darkseagreen", "8fbc8f"}, {"darkslateblue", "483d8b"},
+            {"darkslategray", "2f4f4f"}, {"darkslategrey", "2f4f4f"}, {"darkturquoise", "00ced1"},
+            {"darkviolet", "9400d3"}, {"deeppink", "ff1493"}, {"deepskyblue", "00bfff"},
+            {"dimgray", "696969"}, {"dimgrey", "696969"}, {"dodgerblue", "1e90ff"},
+            {"firebrick", "b22222"}, {"floralwhite", "fffaf0"}, {"forestgreen", "228b22"},
+            {"fuchsia", "ff00ff"}, {"gainsboro", "dcdcdc"}, {"ghostwhite", "f8f8ff"},
+            {"gold", "ffd700"}, {"goldenrod", "daa520"}, {"gray", "808080"}, {"green", "008000"},
+            {"greenyellow", "adff2f"}, {"grey", "808080"}, {"honeydew", "f0fff0"},
+            {"hotpink", "ff69b4"}, {"indianred", "cd5c5c"}, {"indigo", "4b0082"},
+            {"ivory", "fffff0"}, {"khaki", "f0e68c"}, {"lavender", "e6e6fa"},
+            {"lavenderblush", "fff0f5"}, {"lawngreen", "7cfc00"}, {"lemonchiffon", "fffacd"},
+            {"lightblue", "add8e6"}, {"lightcoral", "f08080"}, {"lightcyan", "e0ffff"},
+            {"lightgoldenrodyellow", "fafad2"}, {"lightgray", "d3d3d3"}, {"lightgreen", "90ee90"},
+            {"lightgrey", "d3d3d3"}, {"lightpink", "ffb6c1"}, {"lightsalmon", "ffa07a"},
+            {"lightseagreen", "20b2aa"}, {"lightskyblue", "87cefa"}, {"lightslategray", "778899"},
+            {"lightslategrey", "778899"}, {"lightsteelblue", "b0c4de"}, {"lightyellow", "ffffe0"},
+            {"lime", "00ff00"}, {"limegreen", "32cd32"}, {"linen", "faf0e6"}, {"magenta", "ff00ff"},
+            {"maroon", "800000"}, {"mediumaquamarine", "66cdaa"}, {"mediumblue", "0000cd"},
+            {"mediumorchid", "ba55d3"}, {"mediumpurple", "9370db"}, {"mediumseagreen", "3cb371"},
+            {"mediumslateblue", "7b68ee"}, {"mediumspringgreen", "00fa9a"},
+            {"mediumturquoise", "48d1cc"}, {"mediumvioletred", "c71585"},
+            {"midnightblue", "191970"}, {"mintcream", "f5fffa"}, {"mistyrose", "ffe4e1"},
+            {"moccasin", "ffe4b5"}, {"navajowhite", "ffdead"}, {"navy", "000080"},
+            {"oldlace", "fdf5e6"}, {"olive", "808000"}, {"olivedrab", "6b8e23"},
+            {"orange", "ffa500"}, {"orangered", "ff4500"}, {"orchid", "da70d6"},
+            {"palegoldenrod", "eee8aa"}, {"palegreen", "98fb98"}, {"paleturquoise", "afeeee"},
+            {"palevioletred", "db7093"}, {"papayawhip", "ffefd5"}, {"peachpuff", "ffdab9"},
+            {"peru", "cd853f"}, {"pink", "ffc0cb"}, {"plum", "dda0dd"}, {"powderblue", "b0e0e6"},
+            {"purple", "800080"}, {"rebeccapurple", "663399"}, {"red", "ff0000"},
+            {"rosybrown", "bc8f8f"}, {"royalblue", "4169e1"}, {"saddlebrown", "8b4513"},
+            {"salmon", "fa8072"}, {"sandybrown", "f4a460"}, {"seagreen", "2e8b57"},
+            {"seashell", "fff5ee"}, {"sienna", "a0522d"}, {"silver", "c0c0c0"},
+            {"skyblue", "87ceeb"}, {"slateblue", "6a5acd"}, {"slategray", "708090"},
+            {"slategrey", "708090"}, {"snow", "fffafa"}, {"springgreen", "00ff7f"},
+            {"steelblue", "4682b4"}, {"tan", "d2b48c"}, {"teal", "008080"}, {"thistle", "d8bfd8"},
+            {"tomato", "ff6347"}, {"turquoise", "40e0d0"}, {"violet", "ee82ee"},
+            {"wheat", "f5deb3"}, {"white", "ffffff"}, {"whitesmoke", "f5f5f5"},
+            {"yellow", "ffff00"}, {"yellowgreen", "9acd32"}
+    };
+
+    // The properties that take colors, without vendor prefixes
+    private static final Set<String> COLOR_PROPERTIES = Set.of(
+            "accent-color", "background", "background-color", "border", "border-color",
+            "border-top", "border-top-color", "border-right", "border-right-color",
+            "border-bottom", "border-bottom-color", "border-left", "border-left-color",
+            "border-block", "border-block-color", "border-block-start", "border-block-start-color",
+            "border-block-end", "border-block-end-color", "border-inline", "border-inline-color",
+            "border-inline-start", "border-inline-start-color", "border-inline-end",
+            "border-inline-end-color", "box-shadow", "caret-color", "color", "column-rule",
+            "column-rule-color", "fill", "flood-color", "lighting-color", "outline", "outline-color",
+            "scrollbar-color", "stop-color", "stroke", "tap-highlight-color", "text-decoration",
+            "text-decoration-color", "text-emphasis", "text-emphasis-color", "text-fill-color",
+            "text-shadow", "text-stroke", "text-stroke-color");
+
+    private static final Pattern NUMBER = Pattern.compile(
+            "([+-]?(?:[0-9]+(?:\\.[0-9]*)?|\\.[0-9]+))([a-z%]*)", Pattern.CASE_INSENSITIVE);
+
+    // Hexadecimal values, as short as they can be written, to the names
+    // that are shorter, and names to the hexadecimal values that are shorter
+    private static final Map<String, String> NAMES = new TreeMap<>();
+    private static final Map<String, String> HEXES = new HashMap<>();
+
+    static {
+        for (String[] color : COLORS) {
+            String name = color[0];
+            String hex = shortHex(color[1]);
+            if (name.length() < hex.length()) {
+                NAMES.merge(hex, name, (a, b) -> b.length() < a.length() ? b : a);
+            } else if (hex.length() < name.length()) {
+                HEXES.put(name, hex);
+            }
+        }
+    }
+
+    private CssValues() {
+    }
+
+    /**
+     * Returns the colors whose name is shorter than their hexadecimal value,
+     * as pairs of the value, as short as it can be written, and the name.
+     */
+    static String[] shorterNames() {
+        List<String> pairs = new ArrayList<>();
+        for (Map.Entry<String, String> entry : NAMES.entrySet()) {
+            pairs.add(entry.getKey());
+            pairs.add(entry.getValue());
+        }
+        return pairs.toArray(new String[0]);
+    }
+
+    /**
+     * Returns the name of a color given by its lowercase hexadecimal value,
+     * as short as it can be written, if the name is shorter, or null.
+     */
+    static String nameOf(String hex) {
+        return NAMES.get(hex);
+    }
+
+    /**
+     * Tells whether a property takes colors, ignoring case and any vendor
+     * prefix.
+     */
+    static boolean isColorProperty(String property) {
+        property = property.toLowerCase(Locale.ROOT);
+        if (property.startsWith("-")) {
+            int dash = property.indexOf('-', 1);
+            if (dash < 0) {
+                return false;
+            }
+            property = property.substring(dash + 1);
+        }
+        return COLOR_PROPERTIES.contains(property);
+    }
+
+    /**
+     * Replaces the color names of the value of a color property by their
+     * hexadecimal value where it is shorter. A name is a word of letters
+     * that starts the value or follows a space, a comma or a parenthesis,
+     * and ends the value or is followed by one of them. The names in the
+     * arguments of a function, such as the ones of the vendor gradients,
+     * are left as they are written.
+     *
+     * @return the value, the same instance if nothing was replaced
+     */
+    static String shortenColorNames(String value) {
+        StringBuilder sb = null;
+        int copied = 0;
+        int n = value.length();
+        int depth = 0;
+        int i = 0;
+        while (i < n) {
+            char c = value.charAt(i);
+            if (!isLetter(c)) {
+                if (c == '(') {
+                    depth++;
+                } else if (c == ')' && depth > 0) {
+                    depth--;
+                }
+                i++;
+                continue;
+            }
+            int start = i;
+            while (i < n && isLetter(value.charAt(i))) {
+                i++;
+            }
+            if (depth == 0 && (start == 0 || isSeparator(value.charAt(start - 1))) && (i == n || isSeparator(value.charAt(i)))) {
+                String hex = HEXES.get(value.substring(start, i).toLowerCase(Locale.ROOT));
+                if (hex != null) {
+                    if (sb == null) {
+                        sb = new StringBuilder(n);
+                    }
+                    sb.append(value, copied, start).append(hex);
+                    copied = i;
+                }
+            }
+        }
+        if (sb == null) {
+            return value;
+        }
+        return sb.append(value, copied, n).toString();
+    }
+
+    /**
+     * Converts the arguments of rgb(), rgba(), hsl() or hsla(), given by
+     * name, to a six-digit hexadecimal color. The arguments are separated
+     * by commas or by spaces, with the alpha after a slash in the latter
+     * case.
+     *
+     * @return the color, or null if the arguments are not those of an
+     *         opaque color
+     */
+    static String toHex(String function, String arguments) {
+        String[] parts;
+        if (arguments.indexOf(',') >= 0) {
+            parts = arguments.split(",", -1);
+            for (int i = 0; i < parts.length; i++) {
+                parts[i] = parts[i].trim();
+            }
+        } else {
+            parts = arguments.replace("/", " / ").trim().split(" +");
+            if (parts.length == 5 && parts[3].equals("/")) {
+                parts = new String[]{parts[0], parts[1], parts[2], parts[4]};
+            } else if (parts.length != 3) {
+                return null;
+            }
+        }
+        if (parts.length != 3 && parts.length != 4) {
+            return null;
+        }
+        if (parts.length == 4) {
+            double alpha = number(parts[3], "");
+            if (Double.isNaN(alpha)) {
+                alpha = number(parts[3], "%") / 100;
+            }
+            // An alpha out of range, as in rgba(1,2,3,4), is left as written
+            if (alpha != 1) {
+                return null;
+            }
+        }
+
+        double[] rgb = new double[3];
+        String name = function.toLowerCase(Locale.ROOT);
+        if (name.startsWith("rgb")) {
+            for (int i = 0; i < 3; i++) {
+                rgb[i] = number(parts[i], "");
+                if (Double.isNaN(rgb[i])) {
+                    rgb[i] = number(parts[i], "%") * 2.55;
+                }
+            }
+        } else {
+            double hue = hue(parts[0]);
+            double saturation = percentage(parts[1]);
+            double lightness = percentage(parts[2]);
+            hslToRgb(hue, saturation, lightness, rgb);
+        }
+
+        StringBuilder hex = new StringBuilder("#");
+        for (double channel : rgb) {
+            if (Double.isNaN(channel)) {
+                return null;
+            }
+            int value = (int) Math.round(Math.max(0, Math.min(255, channel)));
+            hex.append(Character.forDigit(value >> 4, 16)).append(Character.forDigit(value & 15, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Writes a number with a fraction ending with zeros without them, and
+     * without the point if nothing is left after it.
+     *
+     * @param integer the digits before the point, possibly none
+     * @param fraction the digits after the point, without the zeros
+     */
+    static String trimFraction(String integer, String fraction) {
+        String number = fraction.isEmpty() ? integer : integer + "." + fraction;
+        return number.isEmpty() ? "0" : number;
+    }
+
+    /**
+     * Returns the shortest way to write a time, in seconds or milliseconds.
+     *
+     * @param number the unsigned number
+     * @param unit "s" or "ms", in any case
+     * @return the time with its unit, or null if it is not shorter than
+     *         as given
+     */
+    static String shortestTime(String number, String unit) {
+        BigDecimal value = new BigDecimal(number);
+        BigDecimal ms = unit.equalsIgnoreCase("ms") ? value : value.movePointRight(3);
+        String shortest = format(ms.movePointLeft(3)) + "s";
+        String inMs = format(ms) + "ms";
+        if (inMs.length() < shortest.length()) {
+            shortest = inMs;
+        }
+        return shortest.length() < number.length() + unit.length() ? shortest : null;
+    }
+
+    /**
+     * Tells whether a number starts after the specified character, for the
+     * rewrites of numbers: the ones of values, but not of names such as
+     * h1.
+     */
+    static boolean isNumberStart(char c) {
+        return c == ':' || c == ',' || c == '(' || c == ' ' || c == '/' || c == '{' || c == '}' || c == ';';
+    }
+
+    private static String format(BigDecimal value) {
+        String s = value.signum() == 0 ? "0" : value.stripTrailingZeros().toPlainString();
+        return s.startsWith("0.") ? s.substring(1) : s;
+    }
+
+    private static String shortHex(String six) {
+        if (six.charAt(0) == six.charAt(1) && six.charAt(2) == six.charAt(3) && six.charAt(4) == six.charAt(5)) {
+            return "#" + six.charAt(0) + six.charAt(2) + six.charAt(4);
+        }
+        return "#" + six;
+    }
+
+    private static boolean isLetter(char c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z';
+    }
+
+    private static boolean isSeparator(char c) {
+        return c == ' ' || c == ',' || c == '(' || c == ')';
+    }
+
+    /*
+     * Returns the number with the specified unit, ignoring case, or NaN.
+     */
+    private static double number(String s, String unit) {
+        Matcher m = NUMBER.matcher(s);
+        if (!m.matches() || !m.group(2).equalsIgnoreCase(unit)) {
+            return Double.NaN;
+        }
+        return Double.parseDouble(m.group(1));
+    }
+
+    private static double hue(String s) {
+        double degrees = number(s, "");
+        if (Double.isNaN(degrees)) {
+            degrees = number(s, "deg");
+        }
+        if (Double.isNaN(degrees)) {
+            degrees = number(s, "rad") * 180 / Math.PI;
+        }
+        if (Double.isNaN(degrees)) {
+            degrees = number(s, "grad") * 0.9;
+        }
+        if (Double.isNaN(degrees)) {
+            degrees = number(s, "turn") * 360;
+        }
+        return degrees;
+    }
+
+    private static double percentage(String s) {
+        // 0% may have become 0 already
+        double value = number(s, "%");
+        if (Double.isNaN(value)) {
+            value = number(s, "");
+        }
+        return Math.max(0, Math.min(100, value)) / 100;
+    }
+
+    private static void hslToRgb(double hue, double saturation, double lightness, double[] rgb) {
+        double h = ((hue % 360) + 360) % 360 / 360;
+        double q = lightness < 0.5 ? lightness * (1 + saturation) : lightness + saturation - lightness * saturation;
+        double p = 2 * lightness - q;
+        rgb[0] = 255 * hueToChannel(p, q, h + 1.0 / 3);
+        rgb[1] = 255 * hueToChannel(p, q, h);
+        rgb[2] = 255 * hueToChannel(p, q, h - 1.0 / 3);
+    }
+
+    private static double hueToChannel(double p, double q, double t) {
+        if (t < 0) {
+            t += 1;
+        }
+        if (t > 1) {
+            t -= 1;
+        }
+        if (t < 1.0 / 6) {
+            return p + (q - p) * 6 * t;
+        }
+        if (t < 1.0 / 2) {
+            return q;
+        }
+        if (t < 2.0 / 3) {
+            return p + (q - p) * (2.0 / 3 - t) * 6;
+        }
+        return p;
+    }
+}
@@ -0,0 +1,193 @@
+package com.yahoo.platform.yui.compressor;
+
+import org.mozilla.javascript.ErrorReporter;
+import org.mozilla.javascript.Token;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * JavaScriptCallStripper removes from the tokens of a script the statements
+ * that are nothing but a call to one of a set of functions, such as
+ * console.log(...) or assert(...). The function is named the way the call
+ * names it, as an identifier or a path of identifiers, and its arguments
+ * end at the matching parenthesis.
+ * <p>
+ * Only whole statements are removed: a call used as a value, such as
+ * a &amp;&amp; console.log(a), or in the header of a for loop, is left
+ * alone. A call whose arguments may have side effects, since they assign,
+ * increment, delete or call something, is removed all the same, with a
+ * warning.
+ * <p>
+ * An instance counts the calls it removed over all the scripts it went
+ * through and must not be used by several threads at the same time.
+ */
+final class JavaScriptCallStripper {
+
+    private static final Pattern NAME = Pattern.compile("[A-Za-z_$][A-Za-z0-9_$]*(?:\\.[A-Za-z_$][A-Za-z0-9_$]*)*");
+
+    // The length of the arguments quoted in a warning
+    private static final int MAX_QUOTE_LENGTH = 60;
+
+    private final Set<String> names = new HashSet<>();
+    private int stripped;
+
+    /**
+     * @throws IllegalArgumentException if a name is not an identifier or a
+     *                                  path of identifiers
+     */
+    JavaScriptCallStripper(List<String> names) {
+        for (String name : names) {
+            name = name.trim();
+            if (!NAME.matcher(name).matches()) {
+                throw new IllegalArgumentException("Cannot strip the calls to " + name);
+            }
+            this.names.add(name);
+        }
+    }
+
+    /**
+     * Returns the number of calls removed so far.
+     */
+    int getStripped() {
+        return stripped;
+    }
+
+    /**
+     * Removes the call statements from the tokens of a script.
+     */
+    void strip(List<JavaScriptToken> tokens, ErrorReporter reporter) {
+        // The brackets the index is in; a statement only starts in braces
+        Deque<Integer> open = new ArrayDeque<>();
+        int i = 0;
+        while (i < tokens.size()) {
+            int type = type(tokens, i);
+            if ((open.isEmpty() || open.peek() == Token.LC) && isStatementStart(tokens, i)) {
+                int end = callEnd(tokens, i);
+                if (end > 0) {
+                    warnIfSideEffects(tokens, i, end, reporter);
+                    int next = type(tokens, end + 1);
+                    tokens.subList(i, next == Token.SEMI ? end + 2 : end + 1).clear();
+                    if (type(tokens, i - 1) == Token.COLON) {
+                        // A label or a case needs a statement
+                        tokens.add(i, new JavaScriptToken(Token.SEMI, ";"));
+                        i++;
+                    }
+                    stripped++;
+                    continue;
+                }
+            }
+            if (type == Token.LC || type == Token.LP || type == Token.LB) {
+                open.push(type);
+            } else if ((type == Token.RC || type == Token.RP || type == Token.RB) && !open.isEmpty()) {
+                open.pop();
+            }
+            i++;
+        }
+    }
+
+    private static boolean isStatementStart(List<JavaScriptToken> tokens, int i) {
+        int previous = type(tokens, i - 1);
+        if (previous == Token.SEMI || previous == Token.LC || previous == Token.RC || previous == Token.EOF) {
+            return true;
+        }
+        if (previous != Token.COLON) {
+            return false;
+        }
+        // After case x:, default: or a label, not after a ? b : c
+        int before = type(tokens, i - 2);
+        int start = type(tokens, i - 3);
+        return before == Token.DEFAULT || isCase(tokens, i - 1) || before == Token.NAME
+                && (start == Token.SEMI || start == Token.LC || start == Token.RC || start == Token.EOF);
+    }
+
+    // Whether the colon at i ends a case
+    private static boolean isCase(List<JavaScriptToken> tokens, int i) {
+        int depth = 0;
+        for (int j = i - 1; j >= 0; j--) {
+            int type = type(tokens, j);
+            if (type == Token.RC || type == Token.RP || type == Token.RB) {
+                depth++;
+            } else if (type == Token.LC || type == Token.LP || type == Token.LB) {
+                if (--depth < 0) {
+                    return false;
+                }
+            } else if (depth == 0) {
+                if (type == Token.CASE) {
+                    return true;
+                }
+                if (type == Token.SEMI || type == Token.HOOK || type == Token.COLON) {
+                    return false;
+                }
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Returns the index of the parenthesis closing the arguments if a call
+     * to one of the functions starts at i and ends the statement, or -1.
+     */
+    private int callEnd(List<JavaScriptToken> tokens, int i) {
+        if (type(tokens, i) != Token.NAME) {
+            return -1;
+        }
+        StringBuilder name = new StringBuilder(tokens.get(i).getValue());
+        int j = i + 1;
+        while (type(tokens, j) == Token.DOT && type(tokens, j + 1) == Token.NAME) {
+            name.append('.').append(tokens.get(j + 1).getValue());
+            j += 2;
+        }
+        if (type(tokens, j) != Token.LP || !names.contains(name.toString())) {
+            return -1;
+        }
+
+        int depth = 0;
+        for (; j < tokens.size(); j++) {
+            int type = type(tokens, j);
+            if (type == Token.LP) {
+                depth++;
+            } else if (type == Token.RP && --depth == 0) {
+                break;
+            }
+        }
+        int next = type(tokens, j + 1);
+        return j < tokens.size() && (next == Token.SEMI || next == Token.RC || next == Token.EOF) ? j : -1;
+    }
+
+    private static void warnIfSideEffects(List<JavaScriptToken> tokens, int start, int end, ErrorReporter reporter) {
+        int arguments = start;
+        while (type(tokens, arguments) != Token.LP) {
+            arguments++;
+        }
+        boolean sideEffects = false;
+        for (int i = arguments + 1; i < end && !sideEffects; i++) {
+            int type = type(tokens, i);
+            int previous = type(tokens, i - 1);
+            sideEffects = type >= Token.FIRST_ASSIGN && type <= Token.LAST_ASSIGN
+                    || type == Token.INC || type == Token.DEC || type == Token.DELPROP || type == Token.NEW
+                    || type == Token.LP && (previous == Token.NAME || previous == Token.RP || previous == Token.RB);
+        }
+        if (sideEffects && reporter != null) {
+            reporter.warning("Removed a call whose arguments may have side effects: " + quote(tokens, start, end),
+                    null, -1, null, -1);
+        }
+    }
+
+    private static String quote(List<JavaScriptToken> tokens, int start, int end) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = start; i <= end && sb.length() < MAX_QUOTE_LENGTH; i++) {
+            String value = tokens.get(i).getValue();
+            sb.append(type(tokens, i) == Token.STRING ? '"' + value + '"' : value);
+        }
+        return sb.length() < MAX_QUOTE_LENGTH ? sb.toString() : sb.substring(0, MAX_QUOTE_LENGTH) + "...";
+    }
+
+    private static int type(List<JavaScriptToken> tokens, int i) {
+        return i >= 0 && i < tokens.size() ? tokens.get(i).getType() : Token.EOF;
+    }
+}
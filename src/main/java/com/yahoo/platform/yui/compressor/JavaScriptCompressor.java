@@ -12,8 +12,14 @@ import org.mozilla.javascript.*;
 
 import java.io.IOException;
 import java.io.Reader;
+import java.io.StringReader;
 import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -26,6 +32,11 @@ public class JavaScriptCompressor {
     static final Set<String> builtin = new HashSet<>();
     static final Map<Integer,String> literals = new HashMap<>();
     static final Set<String> reserved = new HashSet<>();
+    private static final Set<String> mungedNames = new HashSet<>();
+
+    private static final Pattern DECIMAL = Pattern.compile("[0-9]*\\.?[0-9]+(?:e[-+]?[0-9]+)?");
+
+    private static final BigDecimal MAX_SAFE_INTEGER = BigDecimal.valueOf((1L << 53) - 1);
 
     static {
 
@@ -243,6 +254,33 @@ public class JavaScriptCompressor {
         reserved.add("NaN");
         reserved.add("null");
         reserved.add("undefined");
+
+        mungedNames.addAll(ones);
+        mungedNames.addAll(twos);
+        mungedNames.addAll(threes);
+    }
+
+    /*
+     * Returns the name at the specified index in the sequence of names the
+     * local symbols are munged to, from the shortest, or null past its end.
+     */
+    static String mungedName(int index) {
+        if (index < ones.size()) {
+            return ones.get(index);
+        }
+        index -= ones.size();
+        if (index < twos.size()) {
+            return twos.get(index);
+        }
+        index -= twos.size();
+        return index < threes.size() ? threes.get(index) : null;
+    }
+
+    /*
+     * Returns whether a local symbol may be munged to the specified name.
+     */
+    static boolean isMungedName(String name) {
+        return mungedNames.contains(name);
     }
 
     private static int countChar(String haystack, char needle) {
@@ -301,23 +339,134 @@ public class JavaScriptCompressor {
             throw new RuntimeException();
         }
         if (sb != null) {
-            sb.append(ScriptRuntime.numberToString(number, 10));
+            sb.append(type == 'D' ? printNumber(number) : printInteger((long) number));
         }
         return offset;
     }
 
-    private static ArrayList<JavaScriptToken> parse(Reader in, ErrorReporter reporter)
-            throws IOException, EvaluatorException {
+    /*
+     * Returns the shortest way to write an integer, the way shortestNumber
+     * does but without parsing it again. Below 1000, it is the decimal
+     * form, which is what Rhino prints.
+     */
+    private static String printInteger(long number) {
+        String best = Long.toString(number);
+        if (number < 1000) {
+            return best;
+        }
+        long mantissa = number;
+        int zeros = 0;
+        while (mantissa % 10 == 0) {
+            mantissa /= 10;
+            zeros++;
+        }
+        if (zeros > 0) {
+            best = shorter(mantissa + "e" + zeros, best);
+        }
+        if (number <= MAX_SAFE_INTEGER.longValue()) {
+            best = shorter("0x" + Long.toHexString(number), best);
+        }
+        return best;
+    }
+
+    /*
+     * Returns the shortest way to write a number, from the digits given by
+     * Double.toString, which read back as the same double. With 16 digits
+     * or more, they may not be the fewest possible, so the number is
+     * printed the way Rhino prints it instead.
+     */
+    static String printNumber(double number) {
+        String plain = Double.toString(number);
+        int point = plain.indexOf('.');
+        if (point > 0 && plain.indexOf('E') < 0 && plain.charAt(0) != '-') {
+            // Most numbers, such as 0.5 or 12.75, are short fractions that
+            // Double.toString prints without an exponent: their shortest
+            // form is the digits, or the digits and an exponent
+            int end = plain.length();
+            while (plain.charAt(end - 1) == '0') {
+                end--;
+            }
+            if (end - 1 > point) {
+                String integer = plain.substring(0, point);
+                String fraction = plain.substring(point + 1, end);
+                String digits = integer.equals("0") ? fraction : integer + fraction;
+                int start = 0;
+                while (digits.charAt(start) == '0') {
+                    start++;
+                }
+                if (digits.length() - start < 16) {
+                    String decimal = (integer.equals("0") ? "" : integer) + "." + fraction;
+                    return shorter(digits.substring(start) + "e-" + fraction.length(), decimal);
+                }
+            }
+        }
+        if (!Double.isNaN(number) && !Double.isInfinite(number)) {
+            BigDecimal digits = new BigDecimal(Double.toString(number)).stripTrailingZeros();
+            if (digits.precision() < 16 && digits.doubleValue() == number) {
+                return shortestNumber(digits.toPlainString());
+            }
+        }
+        return shortestNumber(ScriptRuntime.numberToString(number, 10));
+    }
+
+    /**
+     * Returns the shortest way to write a number printed by Rhino, in
+     * decimal, with an exponent or in hexadecimal, or the number as it is
+     * if none is shorter. All the forms stand for the same decimal value,
+     * hence the same double.
+     */
+    static String shortestNumber(String number) {
+        if (!DECIMAL.matcher(number).matches()) {
+            return number;
+        }
+        BigDecimal value = new BigDecimal(number).stripTrailingZeros();
+        String best = number;
+
+        String plain = value.toPlainString();
+        if (plain.startsWith("0.")) {
+            plain = plain.substring(1);
+        }
+        best = shorter(plain, best);
+
+        if (value.scale() != 0) {
+            best = shorter(value.unscaledValue() + "e" + -value.scale(), best);
+        }
+
+        if (value.scale() <= 0 && value.compareTo(MAX_SAFE_INTEGER) <= 0) {
+            BigInteger integer = value.toBigIntegerExact();
+            best = shorter("0x" + integer.toString(16), best);
+        }
+        return best;
+    }
+
+    private static String shorter(String candidate, String best) {
+        return candidate.length() < best.length() ? candidate : best;
+    }
 
+    /*
+     * Returns the value of a number token, in decimal or in hexadecimal.
+     */
+    static double parseNumber(String number) {
+        if (number.startsWith("0x") || number.startsWith("0X")) {
+            return new BigInteger(number.substring(2), 16).doubleValue();
+        }
+        return Double.parseDouble(number);
+    }
+
+    private static CompilerEnvirons createCompilerEnvirons() {
         CompilerEnvirons env = new CompilerEnvirons();
         env.setLanguageVersion(Context.VERSION_1_7);
-        Parser parser = new Parser(env, reporter);
-        parser.parse(in, null, 1);
+        return env;
+    }
+
+    private static void parse(Reader in, int lineno, Parser parser, ArrayList<JavaScriptToken> tokens)
+            throws IOException, EvaluatorException {
+
+        parser.parse(in, null, lineno);
         String source = parser.getEncodedSource();
 
         int offset = 0;
         int length = (source != null) ? source.length() : 0;
-        ArrayList<JavaScriptToken> tokens = new ArrayList<>();
         StringBuffer sb = new StringBuffer();
 
         while (offset < length) {
@@ -348,8 +497,6 @@ public class JavaScriptCompressor {
                     break;
             }
         }
-
-        return tokens;
     }
 
     private static void processStringLiterals(ArrayList<JavaScriptToken> tokens, boolean merge) {
@@ -516,11 +663,110 @@ public class JavaScriptCompressor {
         }
     }
 
-    private final ErrorReporter logger;
+    private ErrorReporter logger;
+
+    // The parser is kept across calls to reset(), so it reports through this
+    // indirection instead of holding on to the reporter of the first input.
+    private final ErrorReporter parserReporter = new ErrorReporter() {
+        public void warning(String message, String sourceName,
+                            int line, String lineSource, int lineOffset) {
+            logger.warning(message, sourceName, line, lineSource, lineOffset);
+        }
+
+        public void error(String message, String sourceName,
+                          int line, String lineSource, int lineOffset) {
+            logger.error(message, sourceName, line, lineSource, lineOffset);
+        }
+
+        public EvaluatorException runtimeError(String message, String sourceName,
+                                               int line, String lineSource, int lineOffset) {
+            return logger.runtimeError(message, sourceName, line, lineSource, lineOffset);
+        }
+    };
+
+    private final CompilerEnvirons env;
+    private Parser parser;
+
+    /*
+     * A local function declaration or var declarator, found while building
+     * the symbol tree for the removal of the unused ones.
+     */
+    private static class Declaration {
+
+        private final int index;
+        private final JavaScriptIdentifier identifier;
+        private final ScriptOrFnScope scope;
+
+        Declaration(int index, JavaScriptIdentifier identifier, ScriptOrFnScope scope) {
+            this.index = index;
+            this.identifier = identifier;
+            this.scope = scope;
+        }
+    }
+
+    /*
+     * Holds on to the warnings reported while a chunk of a script is parsed
+     * on another thread, so that they can be replayed in order once all the
+     * chunks have been parsed. A chunk with errors fails, and the whole
+     * script is then parsed again to report them.
+     */
+    private static class ChunkErrorReporter implements ErrorReporter {
+
+        private final ArrayList<Consumer<ErrorReporter>> warnings = new ArrayList<>();
+
+        public void warning(String message, String sourceName,
+                            int line, String lineSource, int lineOffset) {
+            warnings.add(reporter -> reporter.warning(message, sourceName, line, lineSource, lineOffset));
+        }
+
+        public void error(String message, String sourceName,
+                          int line, String lineSource, int lineOffset) {
+        }
+
+        public EvaluatorException runtimeError(String message, String sourceName,
+                                               int line, String lineSource, int lineOffset) {
+            return new EvaluatorException(message, sourceName, line, lineSource, lineOffset);
+        }
+
+        void replay(ErrorReporter reporter) {
+            for (Consumer<ErrorReporter> warning : warnings) {
+                warning.accept(reporter);
+            }
+        }
+    }
 
     private boolean munge;
     private boolean verbose;
     private boolean preserveUnknownHints;
+    private boolean parallel;
+    private final Map<String, JavaScriptToken[]> defines = new LinkedHashMap<>();
+    private List<JavaScriptPeephole> peepholes = new ArrayList<>();
+    // Removes the calls to the functions to strip when not null
+    private JavaScriptCallStripper callStripper;
+    // Renames the matching properties when not null
+    private JavaScriptPropertyMangler propertyMangler;
+    private boolean removeUnused;
+    private int removedDeclarations;
+    // Renames the class names and ids in the strings when not null
+    private SelectorNames selectorNames;
+    private int renamedStrings;
+    // Keeps the munged names of the script from one build to the next when not null
+    private JavaScriptSymbolMap symbolMap;
+    private String script;
+
+    // The methods taking a selector, and the ones taking class names or ids
+    private static final Set<String> SELECTOR_METHODS = Set.of("$", "jQuery", "querySelector",
+            "querySelectorAll", "closest", "matches");
+    private static final Set<String> CLASS_NAME_METHODS = Set.of("getElementById", "getElementsByClassName",
+            "classList.add", "classList.remove", "classList.toggle", "classList.contains", "classList.replace",
+            "addClass", "removeClass", "toggleClass", "hasClass");
+
+    // Top-level functions with fewer tokens than this are not worth
+    // printing on a separate thread.
+    private static final int PARALLEL_PRINT_MIN_TOKENS = 512;
+
+    // Scripts are not cut into chunks shorter than this for parsing.
+    private static final int PARALLEL_PARSE_MIN_CHUNK_LENGTH = 64 * 1024;
 
     private static final int BUILDING_SYMBOL_TREE = 1;
     private static final int CHECKING_SYMBOL_TREE = 2;
@@ -528,17 +774,290 @@ public class JavaScriptCompressor {
     private int mode;
     private int offset;
     private int braceNesting;
-    private ArrayList<JavaScriptToken> tokens;
-    private Stack<ScriptOrFnScope> scopes = new Stack<>();
-    private final ScriptOrFnScope globalScope = new ScriptOrFnScope(-1, null);
-    private final Hashtable<Integer, ScriptOrFnScope> indexedScopes = new Hashtable<>();
+    private JavaScriptToken lastToken;
+    private final ArrayList<JavaScriptToken> tokens;
+    private final Stack<ScriptOrFnScope> scopes = new Stack<>();
+    private final ScriptOrFnScope globalScope;
+    private final Hashtable<Integer, ScriptOrFnScope> indexedScopes;
+    // Collected while building the symbol tree when not null
+    private ArrayList<Declaration> declarations;
+    private final Set<JavaScriptIdentifier> parameters = new HashSet<>();
+
+    /**
+     * Creates a compressor without any input. Call {@link #reset(Reader, ErrorReporter)}
+     * before each compression; this lets a single instance be reused for
+     * many inputs.
+     */
+    public JavaScriptCompressor() {
+        this.env = createCompilerEnvirons();
+        this.tokens = new ArrayList<>();
+        this.globalScope = new ScriptOrFnScope(-1, null);
+        this.indexedScopes = new Hashtable<>();
+    }
+
+    /*
+     * Creates a printer sharing the tokens and the symbol tree of the
+     * specified compressor, but with a cursor of its own, so that distinct
+     * token ranges can be printed on several threads at the same time.
+     */
+    private JavaScriptCompressor(JavaScriptCompressor other) {
+        this.env = other.env;
+        this.tokens = other.tokens;
+        this.globalScope = other.globalScope;
+        this.indexedScopes = other.indexedScopes;
+        this.logger = other.logger;
+        this.munge = other.munge;
+        this.verbose = other.verbose;
+        this.preserveUnknownHints = other.preserveUnknownHints;
+    }
 
     public JavaScriptCompressor(Reader in, ErrorReporter reporter)
             throws IOException, EvaluatorException {
 
+        this();
+        reset(in, reporter);
+    }
+
+    /**
+     * Loads a new input into this compressor. The parser, the token list and
+     * the symbol tables of the previous compression are recycled instead of
+     * being allocated again, which matters when compressing many small
+     * inputs in-process. An instance must not be used by several threads
+     * at the same time.
+     *
+     * @param in the JavaScript source to compress
+     * @param reporter receives the warnings and errors for this input
+     */
+    public void reset(Reader in, ErrorReporter reporter)
+            throws IOException, EvaluatorException {
+
         this.logger = reporter;
-        this.tokens = parse(in, reporter);
+        this.tokens.clear();
+        this.scopes.clear();
+        this.indexedScopes.clear();
+        this.globalScope.reset();
+
+        if (parser == null) {
+            parser = new Parser(env, parserReporter);
+        }
+        boolean parsed = false;
+        try {
+            if (parallel) {
+                parseInParallel(in);
+            } else {
+                parse(in, 1, parser, tokens);
+            }
+            parsed = true;
+        } finally {
+            if (!parsed) {
+                // A parser that bailed out may be left in an inconsistent state
+                parser = null;
+            }
+        }
+    }
+
+    /*
+     * Cuts large scripts at top-level statement boundaries and parses the
+     * chunks concurrently, each with its own parser, then appends their
+     * tokens in order. If any chunk fails to parse, which may happen when
+     * the splitter guessed wrong, the script is parsed again as a whole so
+     * that the result and the reported errors are those of a normal run.
+     */
+    private void parseInParallel(Reader in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        char[] buf = new char[4096];
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            sb.append(buf, 0, n);
+        }
+        final String source = sb.toString();
+
+        int[] starts = JavaScriptSplitter.split(source, PARALLEL_PARSE_MIN_CHUNK_LENGTH);
+        if (starts.length > 1) {
+            ArrayList<ForkJoinTask<ArrayList<JavaScriptToken>>> parts = new ArrayList<>();
+            ArrayList<ChunkErrorReporter> reporters = new ArrayList<>();
+            int lineno = 1;
+            for (int i = 0; i < starts.length; i++) {
+                final int start = starts[i];
+                final int end = i + 1 < starts.length ? starts[i + 1] : source.length();
+                final int chunkLineno = lineno;
+                final ChunkErrorReporter reporter = new ChunkErrorReporter();
+                reporters.add(reporter);
+                parts.add(ForkJoinPool.commonPool().submit(() -> {
+                    ArrayList<JavaScriptToken> chunkTokens = new ArrayList<>();
+                    Parser chunkParser = new Parser(createCompilerEnvirons(), reporter);
+                    parse(new StringReader(source.substring(start, end)), chunkLineno, chunkParser, chunkTokens);
+                    return chunkTokens;
+                }));
+                lineno += JavaScriptSplitter.countLines(source, start, end);
+            }
+
+            try {
+                for (ForkJoinTask<ArrayList<JavaScriptToken>> part : parts) {
+                    tokens.addAll(part.join());
+                }
+                for (ChunkErrorReporter reporter : reporters) {
+                    reporter.replay(logger);
+                }
+                return;
+            } catch (RuntimeException e) {
+                tokens.clear();
+            }
+        }
+
+        parse(new StringReader(source), 1, parser, tokens);
+    }
+
+    /**
+     * Lets large scripts be parsed in chunks, and their top-level function
+     * scopes be munged and printed, concurrently on the common fork-join
+     * pool. The output is identical to the one produced sequentially; this
+     * only speeds up the compression of very large files on multi-core
+     * machines. Printing stays sequential when a line break position is
+     * given or when running in verbose mode. Parsing happens when the input
+     * is loaded, so this must be set before calling
+     * {@link #reset(Reader, ErrorReporter)}.
+     *
+     * @param parallel whether to use several threads for a single file
+     */
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    /**
+     * Gives global names a value at compile time, such as DEBUG=false. The
+     * names are replaced with their values, the conditions they make
+     * constant are folded, and the branches of the if statements and the
+     * operands of &amp;&amp; and || that cannot run are removed. A name declared
+     * or assigned in the script is left as it is, with a warning.
+     *
+     * @param defines the values, each of them true, false, null, a number
+     *                or a quoted string, by name
+     * @throws IllegalArgumentException if a name or a value is not valid
+     */
+    public void setDefines(Map<String, String> defines) {
+        this.defines.clear();
+        for (Map.Entry<String, String> define : defines.entrySet()) {
+            JavaScriptDefines.checkName(define.getKey());
+            this.defines.put(define.getKey(), JavaScriptDefines.parseLiteral(define.getValue()));
+        }
+    }
+
+    /**
+     * Removes the statements that only call one of the specified functions,
+     * such as console.log or assert, named the way the calls name them. A
+     * call is removed even if its arguments have side effects, with a
+     * warning; calls used as values are kept.
+     *
+     * @param names the functions, identifiers or paths of identifiers
+     * @throws IllegalArgumentException if a name is not valid
+     */
+    public void setStripCalls(List<String> names) {
+        callStripper = names.isEmpty() ? null : new JavaScriptCallStripper(names);
+    }
+
+    /**
+     * Returns the number of calls removed so far.
+     */
+    public int getStrippedCalls() {
+        return callStripper != null ? callStripper.getStripped() : 0;
+    }
+
+    /**
+     * Renames the properties whose names match the pattern, the same way in
+     * all the scripts compressed, to short names. The properties are renamed
+     * where they are accessed with a dot or declared in an object literal;
+     * the ones that are ever quoted are left as they are.
+     *
+     * @param pattern  the names of the properties to rename, found anywhere
+     *                 in the name, or null not to rename any
+     * @param reserved the property names never to rename nor give
+     */
+    public void setMangleProperties(Pattern pattern, Collection<String> reserved) {
+        propertyMangler = pattern == null ? null : new JavaScriptPropertyMangler(pattern, reserved);
+    }
+
+    /**
+     * Returns the properties renamed so far, in the order they were
+     * renamed, and their new names.
+     */
+    public Map<String, String> getMangledProperties() {
+        return propertyMangler != null
+                ? Collections.unmodifiableMap(propertyMangler.getMangled()) : Collections.emptyMap();
     }
+
+    /**
+     * Removes the local function declarations and var declarations that
+     * are never referenced, as long as the initial value of a variable
+     * cannot have side effects, again and again until there are none left.
+     * The scopes that use eval or with, and the global scope, are left as
+     * they are.
+     *
+     * @param removeUnused whether to remove the unused declarations
+     */
+    public void setRemoveUnused(boolean removeUnused) {
+        this.removeUnused = removeUnused;
+    }
+
+    /**
+     * Returns the number of unused functions and variables removed so far.
+     */
+    public int getRemovedDeclarations() {
+        return removedDeclarations;
+    }
+
+    /**
+     * Renames the class names and ids renamed in the stylesheets by the
+     * specified map in the string literals passed to the methods taking a
+     * selector, such as querySelector(".item .title") or $("#main"), the
+     * ones taking class names or ids, such as classList.add("item") or
+     * getElementById("main"), and assigned to a className. The other strings
+     * are left as they are. No short name is given here: the stylesheets are
+     * to be compressed first.
+     *
+     * @param selectorNames the map, or null not to rename anything
+     * @see CssCompressor#setSelectorNames(SelectorNames)
+     */
+    public void setSelectorNames(SelectorNames selectorNames) {
+        this.selectorNames = selectorNames;
+    }
+
+    /**
+     * Returns the number of string literals renamed so far.
+     */
+    public int getRenamedStrings() {
+        return renamedStrings;
+    }
+
+    /**
+     * Gives the local symbols of the script the names they were given in the
+     * map, when still free, and records in the map the names they are given.
+     *
+     * @param symbolMap the map, or null to munge as usual
+     * @param script    the name of the script in the map, such as its path
+     */
+    public void setSymbolMap(JavaScriptSymbolMap symbolMap, String script) {
+        this.symbolMap = symbolMap;
+        this.script = script;
+    }
+
+    /**
+     * Returns the peephole passes run over the tokens, in order.
+     */
+    public List<JavaScriptPeephole> getPeepholes() {
+        return Collections.unmodifiableList(peepholes);
+    }
+
+    /**
+     * Sets the peephole passes run over the tokens, in order, for instance
+     * some of {@link JavaScriptPeephole#defaultPeepholes()}. None are run by
+     * default; the ones set are run even when the other optimizations are
+     * disabled.
+     */
+    public void setPeepholes(List<JavaScriptPeephole> peepholes) {
+        this.peepholes = new ArrayList<>(peepholes);
+    }
+
     public void compress(Writer out, int linebreak, boolean munge, boolean verbose,
             boolean preserveAllSemiColons, boolean disableOptimizations) 
             throws IOException {
@@ -553,6 +1072,26 @@ public class JavaScriptCompressor {
         this.verbose = verbose;
         this.preserveUnknownHints = preserveUnknownHints;
 
+        if (!defines.isEmpty()) {
+            JavaScriptDefines.apply(this.tokens, defines, logger);
+        }
+
+        if (callStripper != null) {
+            callStripper.strip(this.tokens, logger);
+        }
+
+        if (propertyMangler != null) {
+            propertyMangler.mangle(this.tokens, logger);
+        }
+
+        if (selectorNames != null) {
+            renameSelectorNames();
+        }
+
+        if (!peepholes.isEmpty()) {
+            JavaScriptPeephole.run(peepholes, this.tokens);
+        }
+
         processStringLiterals(this.tokens, !disableOptimizations);
 
         if (!disableOptimizations) {
@@ -560,6 +1099,10 @@ public class JavaScriptCompressor {
             optimizeObjLitMemberDecl(this.tokens);
         }
 
+        if (removeUnused) {
+            removeUnusedDeclarations();
+        }
+
         buildSymbolTree();
         // DO NOT TOUCH this.tokens BETWEEN THESE TWO PHASES (BECAUSE OF this.indexedScopes)
         mungeSymboltree();
@@ -615,25 +1158,21 @@ public class JavaScriptCompressor {
 
     /*
      * If either 'eval' or 'with' is used in a local scope, we must make
-     * sure that all containing local scopes don't get munged. Otherwise,
-     * the obfuscation would potentially introduce bugs.
+     * sure that the symbols it can see, the ones declared in that scope
+     * and in all the containing local scopes, don't get munged. Otherwise,
+     * the obfuscation would potentially introduce bugs. The scopes it
+     * cannot see, such as the functions it contains or their siblings,
+     * are still munged, away from the names of the protected symbols.
      */
     private void protectScopeFromObfuscation(ScriptOrFnScope scope) {
         assert scope != null;
 
-        if (scope == globalScope) {
-            // The global scope does not get obfuscated,
-            // so we don't need to worry about it...
-            return;
-        }
-
-        // Find the highest local scope containing the specified scope.
-        while (scope.getParentScope() != globalScope) {
+        // The global scope does not get obfuscated,
+        // so we don't need to worry about it...
+        while (scope != globalScope) {
+            scope.preventMunging();
             scope = scope.getParentScope();
         }
-
-        assert scope.getParentScope() == globalScope;
-        scope.preventMunging();
     }
 
     private String getDebugString(int max) {
@@ -663,6 +1202,25 @@ public class JavaScriptCompressor {
         }
     }
 
+    /*
+     * Returns the name of the function whose parameters start at the
+     * specified index, or the name of the variable or property it is
+     * assigned to, or "".
+     */
+    private String getFunctionName(int index) {
+        JavaScriptToken token = getToken(index - 1 - offset);
+        if (token.getType() == Token.NAME) {
+            return token.getValue();
+        }
+        JavaScriptToken before = getToken(index - 2 - offset);
+        JavaScriptToken name = getToken(index - 3 - offset);
+        if (before != null && name != null && name.getType() == Token.NAME
+                && (before.getType() == Token.ASSIGN || before.getType() == Token.OBJECTLIT)) {
+            return name.getValue();
+        }
+        return "";
+    }
+
     private void parseFunctionDeclaration() {
 
         String symbol;
@@ -681,6 +1239,9 @@ public class JavaScriptCompressor {
                     warn("The function " + symbol + " has already been declared in the same scope...", true);
                 }
                 currentScope.declareIdentifier(symbol);
+                if (declarations != null && isStatementStart(offset - 3)) {
+                    declarations.add(new Declaration(offset - 2, currentScope.getIdentifier(symbol), currentScope));
+                }
             }
             token = consumeToken();
         }
@@ -688,6 +1249,7 @@ public class JavaScriptCompressor {
         assert token.getType() == Token.LP;
         if (mode == BUILDING_SYMBOL_TREE) {
             fnScope = new ScriptOrFnScope(braceNesting, currentScope);
+            fnScope.setName(getFunctionName(offset - 1));
             indexedScopes.put(offset, fnScope);
         } else {
             fnScope = (ScriptOrFnScope) indexedScopes.get(offset);
@@ -701,6 +1263,9 @@ public class JavaScriptCompressor {
             if (token.getType() == Token.NAME && mode == BUILDING_SYMBOL_TREE) {
                 symbol = token.getValue();
                 identifier = fnScope.declareIdentifier(symbol);
+                if (declarations != null) {
+                    parameters.add(identifier);
+                }
                 if (symbol.equals("$super") && argpos == 0) {
                     // Exception for Prototype 1.6...
                     identifier.preventMunging();
@@ -953,6 +1518,9 @@ public class JavaScriptCompressor {
                             } else {
                                 warn("The variable " + symbol + " has already been declared in the same scope...", true);
                             }
+                            if (declarations != null) {
+                                declarations.add(new Declaration(offset - 1, scope.getIdentifier(symbol), scope));
+                            }
                         }
 
                         token = getToken(0);
@@ -995,9 +1563,11 @@ public class JavaScriptCompressor {
                     if (mode == BUILDING_SYMBOL_TREE) {
                         // Inside a 'with' block, it is impossible to figure out
                         // statically whether a symbol is a local variable or an
-                        // object member. As a consequence, the only thing we can
-                        // do is turn the obfuscation off for the highest scope
-                        // containing the 'with' block.
+                        // object member. As a consequence, the obfuscation is
+                        // turned off for the scope containing the 'with' block
+                        // and the scopes around it, up to the global scope,
+                        // whose symbols the block can see. The functions it
+                        // contains and their siblings are still obfuscated.
                         protectScopeFromObfuscation(scope);
                         warn("Using 'with' is not recommended." + (munge ? " Moreover, using 'with' reduces the level of compression!" : ""), true);
                     }
@@ -1092,12 +1662,267 @@ public class JavaScriptCompressor {
         // Note: Since we go through all the tokens to do this, we also use
         // the opportunity to count how many times each identifier is used.
 
+        countReferences();
+        if (symbolMap != null) {
+            symbolMap.startScript(script);
+            globalScope.munge(parallel, symbolMap, script);
+            globalScope.putMungedValues(symbolMap, script);
+        } else {
+            globalScope.munge(parallel, null, null);
+        }
+    }
+
+    /*
+     * Renames the class names and ids in the strings passed to the methods
+     * taking selectors, class names or ids, or assigned to a className.
+     * The other strings are left as they are, since they may only contain
+     * the same words.
+     */
+    private void renameSelectorNames() {
+        for (int i = 0; i < tokens.size(); i++) {
+            JavaScriptToken token = tokens.get(i);
+            if (token.getType() != Token.STRING) {
+                continue;
+            }
+            String method = selectorMethod(i);
+            String renamed;
+            if (method == null) {
+                continue;
+            } else if (SELECTOR_METHODS.contains(method)) {
+                renamed = selectorNames.renameSelector(token.getValue());
+            } else if (CLASS_NAME_METHODS.contains(method) || "className".equals(method)) {
+                renamed = selectorNames.renameList(token.getValue());
+            } else {
+                continue;
+            }
+            if (!renamed.equals(token.getValue())) {
+                tokens.set(i, new JavaScriptToken(Token.STRING, renamed));
+                renamedStrings++;
+            }
+        }
+    }
+
+    /*
+     * Returns the name of the method the string at i is an argument of, as
+     * in f("a", "b") or f("a" + b), with the methods of a classList named
+     * classList.add, or className if it is assigned to a className, or
+     * null.
+     */
+    private String selectorMethod(int i) {
+        int previous = i > 0 ? tokens.get(i - 1).getType() : Token.EOF;
+        int next = i + 1 < tokens.size() ? tokens.get(i + 1).getType() : Token.EOF;
+        if (next != Token.RP && next != Token.COMMA && next != Token.ADD && next != Token.SEMI
+                && next != Token.EOF && next != Token.RC) {
+            return null;
+        }
+        if ((previous == Token.ASSIGN || previous == Token.ASSIGN_ADD) && i >= 3
+                && tokens.get(i - 3).getType() == Token.DOT && tokens.get(i - 2).getType() == Token.NAME) {
+            return "className".equals(tokens.get(i - 2).getValue()) ? "className" : null;
+        }
+        if (previous == Token.COMMA) {
+            int depth = 0;
+            for (i -= 2; i >= 0; i--) {
+                int type = tokens.get(i).getType();
+                if (type == Token.RC || type == Token.RP || type == Token.RB) {
+                    depth++;
+                } else if (type == Token.LC || type == Token.LP || type == Token.LB) {
+                    if (--depth < 0) {
+                        break;
+                    }
+                }
+            }
+            i++;
+            previous = i > 0 ? tokens.get(i - 1).getType() : Token.EOF;
+        }
+        if (previous != Token.LP || i < 2 || tokens.get(i - 2).getType() != Token.NAME) {
+            return null;
+        }
+        String method = tokens.get(i - 2).getValue();
+        if (i >= 4 && tokens.get(i - 3).getType() == Token.DOT && tokens.get(i - 4).getType() == Token.NAME
+                && "classList".equals(tokens.get(i - 4).getValue())) {
+            return "classList." + method;
+        }
+        return method;
+    }
+
+    private void countReferences() {
         offset = 0;
         braceNesting = 0;
         scopes.clear();
         mode = CHECKING_SYMBOL_TREE;
         parseScope(globalScope);
-        globalScope.munge();
+    }
+
+    /*
+     * Removes the unused local declarations until there are none left, since
+     * removing a function may leave the ones it referenced unused. The symbol
+     * tree is built and checked quietly each time, then forgotten, so that
+     * the one munged is built from the tokens left.
+     */
+    private void removeUnusedDeclarations() {
+        boolean wasVerbose = verbose;
+        verbose = false;
+        try {
+            boolean removed = true;
+            while (removed) {
+                removed = false;
+                globalScope.reset();
+                parameters.clear();
+                declarations = new ArrayList<>();
+                buildSymbolTree();
+                countReferences();
+                // From the end, so that the indexes of the others stay valid
+                for (int i = declarations.size() - 1; i >= 0; i--) {
+                    Declaration declaration = declarations.get(i);
+                    if (isUnused(declaration) && removeDeclaration(declaration)) {
+                        removedDeclarations++;
+                        removed = true;
+                    }
+                }
+            }
+        } finally {
+            declarations = null;
+            parameters.clear();
+            globalScope.reset();
+            verbose = wasVerbose;
+        }
+    }
+
+    private boolean isUnused(Declaration declaration) {
+        JavaScriptIdentifier identifier = declaration.identifier;
+        if (identifier == null || identifier.getRefcount() > 0 || !identifier.isMarkedForMunging()
+                || parameters.contains(identifier) || declaration.scope == globalScope) {
+            return false;
+        }
+        // eval and with turn off munging for the scopes they can see
+        return declaration.scope.isMarkedForMunging();
+    }
+
+    /*
+     * Removes a function declaration, or a var declarator with its comma or
+     * its whole statement. Returns false if it must be kept.
+     */
+    private boolean removeDeclaration(Declaration declaration) {
+        int start = declaration.index;
+        if (tokens.get(start).getType() == Token.FUNCTION) {
+            int body = start;
+            while (tokens.get(body).getType() != Token.LC) {
+                body++;
+            }
+            tokens.subList(start, getBlockEnd(body) + 1).clear();
+            return true;
+        }
+
+        int end = getDeclaratorEnd(start);
+        if (end < 0 || tokens.get(end).getType() == Token.IN) {
+            return false;
+        }
+        if (tokens.get(start + 1).getType() == Token.ASSIGN
+                && !isSideEffectFree(start + 2, end, declaration.scope)) {
+            return false;
+        }
+        if (tokens.get(start - 1).getType() == Token.COMMA) {
+            tokens.subList(start - 1, end).clear();
+        } else if (tokens.get(end).getType() == Token.COMMA) {
+            tokens.subList(start, end + 1).clear();
+        } else if (isStatementStart(start - 2)) {
+            tokens.subList(start - 1, end + 1).clear();
+        } else {
+            // The only declarator of a for loop or of a labelled statement
+            return false;
+        }
+        return true;
+    }
+
+    private boolean isStatementStart(int index) {
+        if (index < 0) {
+            return true;
+        }
+        int type = tokens.get(index).getType();
+        return type == Token.SEMI || type == Token.LC || type == Token.RC;
+    }
+
+    // The index of the brace closing the one at the specified index
+    private int getBlockEnd(int index) {
+        int depth = 0;
+        for (int i = index; i < tokens.size(); i++) {
+            int type = tokens.get(i).getType();
+            if (type == Token.LC) {
+                depth++;
+            } else if (type == Token.RC && --depth == 0) {
+                return i;
+            }
+        }
+        return tokens.size() - 1;
+    }
+
+    /*
+     * Returns the index of the comma, semicolon or in ending the declarator
+     * at the specified index, or -1.
+     */
+    private int getDeclaratorEnd(int index) {
+        int depth = 0;
+        for (int i = index + 1; i < tokens.size(); i++) {
+            int type = tokens.get(i).getType();
+            if (type == Token.LP || type == Token.LB || type == Token.LC) {
+                depth++;
+            } else if (type == Token.RP || type == Token.RB || type == Token.RC) {
+                if (--depth < 0) {
+                    return -1;
+                }
+            } else if (depth == 0 && (type == Token.COMMA || type == Token.SEMI || type == Token.IN)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /*
+     * Returns true if an initial value is made of literals, local variables,
+     * function expressions and operators that neither call, construct nor
+     * assign anything. The conversion of objects into primitive values by
+     * the operators is assumed to have no side effects.
+     */
+    private boolean isSideEffectFree(int start, int end, ScriptOrFnScope scope) {
+        for (int i = start; i < end; i++) {
+            JavaScriptToken token = tokens.get(i);
+            int previous = i > start ? tokens.get(i - 1).getType() : Token.ASSIGN;
+            switch (token.getType()) {
+                case Token.NAME:
+                    if (tokens.get(i + 1).getType() != Token.OBJECTLIT) {
+                        JavaScriptIdentifier identifier = getIdentifier(token.getValue(), scope);
+                        if (identifier == null || identifier.getDeclaredScope() == globalScope) {
+                            return false;
+                        }
+                    }
+                    break;
+                case Token.FUNCTION:
+                    while (tokens.get(i).getType() != Token.LC) {
+                        i++;
+                    }
+                    i = getBlockEnd(i);
+                    break;
+                case Token.LP:
+                case Token.LB:
+                    if (previous == Token.NAME || previous == Token.RP || previous == Token.RB) {
+                        // A call or a member
+                        return false;
+                    }
+                    break;
+                case Token.NUMBER: case Token.STRING: case Token.REGEXP: case Token.TRUE: case Token.FALSE:
+                case Token.NULL: case Token.THIS: case Token.RP: case Token.RB: case Token.LC: case Token.RC:
+                case Token.COMMA: case Token.OBJECTLIT: case Token.HOOK: case Token.COLON:
+                case Token.NOT: case Token.BITNOT: case Token.NEG: case Token.POS: case Token.TYPEOF: case Token.VOID:
+                case Token.ADD: case Token.SUB: case Token.MUL: case Token.DIV: case Token.MOD:
+                case Token.EQ: case Token.NE: case Token.SHEQ: case Token.SHNE:
+                case Token.LT: case Token.LE: case Token.GT: case Token.GE: case Token.AND: case Token.OR:
+                case Token.BITOR: case Token.BITXOR: case Token.BITAND: case Token.LSH: case Token.RSH: case Token.URSH:
+                    break;
+                default:
+                    return false;
+            }
+        }
+        return true;
     }
 
     private StringBuffer printSymbolTree(int linebreakpos, boolean preserveAllSemiColons)
@@ -1106,21 +1931,172 @@ public class JavaScriptCompressor {
         offset = 0;
         braceNesting = 0;
         scopes.clear();
+        lastToken = getToken(0);
+
+        StringBuffer result;
+
+        enterScope(globalScope);
+
+        if (parallel && linebreakpos < 0 && !verbose) {
+            // The line breaks depend on everything printed so far, and the
+            // warnings must come out in order, so both rule out this mode.
+            result = printTokensInParallel(preserveAllSemiColons);
+        } else {
+            result = new StringBuffer();
+            printTokens(tokens.size(), linebreakpos, preserveAllSemiColons, result);
+        }
+
+        // Append a semi-colon at the end, even if unnecessary semi-colons are
+        // supposed to be removed. This is especially useful when concatenating
+        // several minified files (the absence of an ending semi-colon at the
+        // end of one file may very likely cause a syntax error)
+        if (!preserveAllSemiColons &&
+                result.length() > 0 &&
+                getToken(-1).getType() != Token.CONDCOMMENT &&
+                getToken(-1).getType() != Token.KEEPCOMMENT) {
+            if (result.charAt(result.length() - 1) == '\n') {
+                result.setCharAt(result.length() - 1, ';');
+            } else {
+                result.append(';');
+            }
+        }
+
+        return result;
+    }
+
+    /*
+     * Prints the top-level functions that are large enough on the fork-join
+     * pool while this thread prints the tokens around them, and stitches
+     * the pieces back together in order. Each function is printed up to,
+     * but excluding, its closing brace, so that everything this thread
+     * prints afterwards sees the same state as in a sequential run.
+     */
+    private StringBuffer printTokensInParallel(final boolean preserveAllSemiColons)
+            throws IOException {
+
+        int length = tokens.size();
+        StringBuffer result = new StringBuffer();
+        ArrayList<Integer> insertionPoints = new ArrayList<>();
+        ArrayList<ForkJoinTask<StringBuffer>> parts = new ArrayList<>();
+
+        int i = 0;
+        while (i < length) {
+            if (tokens.get(i).getType() != Token.FUNCTION) {
+                i++;
+                continue;
+            }
+
+            int start = i;
+            int end = getFunctionEnd(start);
+            i = end;
+
+            ScriptOrFnScope fnScope = getFunctionScope(start);
+            if (fnScope == null || end - start < PARALLEL_PRINT_MIN_TOKENS) {
+                continue;
+            }
+
+            printTokens(start, -1, preserveAllSemiColons, result);
+
+            final int closingBrace = end - 1;
+            final JavaScriptCompressor printer = new JavaScriptCompressor(this);
+            printer.offset = start;
+            printer.braceNesting = braceNesting;
+            printer.lastToken = lastToken;
+            printer.scopes.addAll(scopes);
+
+            insertionPoints.add(result.length());
+            parts.add(ForkJoinPool.commonPool().submit(() -> {
+                StringBuffer sb = new StringBuffer();
+                printer.printTokens(closingBrace, -1, preserveAllSemiColons, sb);
+                return sb;
+            }));
+
+            // Carry on as if the function had been printed right here
+            offset = closingBrace;
+            braceNesting++;
+            enterScope(fnScope);
+            lastToken = tokens.get(start);
+        }
+
+        printTokens(length, -1, preserveAllSemiColons, result);
+
+        if (parts.isEmpty()) {
+            return result;
+        }
+
+        StringBuffer stitched = new StringBuffer(result.length());
+        int from = 0;
+        for (int k = 0; k < parts.size(); k++) {
+            int to = insertionPoints.get(k);
+            stitched.append(result, from, to);
+            stitched.append(parts.get(k).join());
+            from = to;
+        }
+        stitched.append(result, from, result.length());
+
+        return stitched;
+    }
+
+    /*
+     * Returns the index of the token following the closing brace of the
+     * function whose 'function' keyword is at the specified index.
+     */
+    private int getFunctionEnd(int index) {
+        int nesting = 0;
+        for (int i = index, length = tokens.size(); i < length; i++) {
+            int type = tokens.get(i).getType();
+            if (type == Token.LC) {
+                nesting++;
+            } else if (type == Token.RC && --nesting == 0) {
+                return i + 1;
+            }
+        }
+        return tokens.size();
+    }
+
+    /*
+     * Returns the scope of the function whose 'function' keyword is at the
+     * specified index if it is declared right in the global scope and has a
+     * plain parameter list, or null otherwise.
+     */
+    private ScriptOrFnScope getFunctionScope(int index) {
+        int i = index + 1;
+        if (i < tokens.size() && tokens.get(i).getType() == Token.NAME) {
+            i++;
+        }
+        if (i >= tokens.size() || tokens.get(i).getType() != Token.LP) {
+            return null;
+        }
+        ScriptOrFnScope scope = indexedScopes.get(i + 1);
+        if (scope == null || scope.getParentScope() != globalScope) {
+            return null;
+        }
+        for (i++; i < tokens.size() && tokens.get(i).getType() != Token.RP; i++) {
+            int type = tokens.get(i).getType();
+            if (type != Token.NAME && type != Token.COMMA) {
+                return null;
+            }
+        }
+        return scope;
+    }
+
+    /*
+     * Prints the tokens from the current offset up to the specified end,
+     * starting from the current scope, brace nesting and last token.
+     */
+    private void printTokens(int end, int linebreakpos, boolean preserveAllSemiColons,
+            StringBuffer result) throws IOException {
 
         String symbol;
         JavaScriptToken token;
-        JavaScriptToken lastToken = getToken(0);
         ScriptOrFnScope currentScope;
         JavaScriptIdentifier identifier;
 
         int length = tokens.size();
-        StringBuffer result = new StringBuffer();
 
         int linestartpos = 0;
 
-        enterScope(globalScope);
-
-        while (offset < length) {
+        while (offset < end) {
 
             token = consumeToken();
             symbol = token.getValue();
@@ -1346,23 +2322,6 @@ public class JavaScriptCompressor {
                     break;
             }
         }
-
-        // Append a semi-colon at the end, even if unnecessary semi-colons are
-        // supposed to be removed. This is especially useful when concatenating
-        // several minified files (the absence of an ending semi-colon at the
-        // end of one file may very likely cause a syntax error)
-        if (!preserveAllSemiColons &&
-                result.length() > 0 &&
-                getToken(-1).getType() != Token.CONDCOMMENT &&
-                getToken(-1).getType() != Token.KEEPCOMMENT) {
-            if (result.charAt(result.length() - 1) == '\n') {
-                result.setCharAt(result.length() - 1, ';');
-            } else {
-                result.append(';');
-            }
-        }
-
-        return result;
     }
 
     private void printMungeMapping(Writer map) throws IOException {
@@ -0,0 +1,527 @@
+package com.yahoo.platform.yui.compressor;
+
+import org.mozilla.javascript.ErrorReporter;
+import org.mozilla.javascript.Token;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * JavaScriptDefines replaces the global names given a value at compile time,
+ * such as DEBUG=false, with that value in the tokens of a script, and then
+ * removes the code the values make unreachable.
+ * <p>
+ * Once the names are replaced, the conditions made of literals only are
+ * folded: !literal, (literal), literal === literal and the like, then
+ * true &amp;&amp; x, false || x and their opposites. An if statement whose
+ * condition ends up being a literal is replaced with the branch that runs,
+ * and the var declarations of the branch that does not are kept, since
+ * they are hoisted to the whole function.
+ * <p>
+ * A name is left alone wherever it is declared or assigned in the script,
+ * since it is then not the global one everywhere, and a warning is
+ * reported. Nothing else is folded, so that the code without defines is
+ * compressed as before.
+ */
+final class JavaScriptDefines {
+
+    private static final Pattern NAME = Pattern.compile("[A-Za-z_$][A-Za-z0-9_$]*");
+    private static final Pattern NUMBER = Pattern.compile("-?(?:[0-9]+\\.?[0-9]*|\\.[0-9]+)(?:[eE][-+]?[0-9]+)?");
+
+    // Tokens before which an operand of && or || ends
+    private static final Set<Integer> OPERAND_ENDS = Set.of(Token.AND, Token.OR, Token.HOOK, Token.COLON,
+            Token.COMMA, Token.SEMI, Token.RP, Token.RB, Token.RC, Token.CONDCOMMENT, Token.KEEPCOMMENT);
+
+    // Tokens after which an operand of && or || starts
+    private static final Set<Integer> OPERAND_STARTS = Set.of(Token.LP, Token.LB, Token.LC, Token.RC,
+            Token.COMMA, Token.SEMI, Token.HOOK, Token.COLON, Token.OBJECTLIT, Token.RETURN, Token.CASE, Token.THROW);
+
+    // Tokens before a parenthesis that make it a call or part of a statement
+    private static final Set<Integer> NOT_GROUPING = Set.of(Token.NAME, Token.RP, Token.RB, Token.STRING,
+            Token.NUMBER, Token.REGEXP, Token.TRUE, Token.FALSE, Token.NULL, Token.THIS, Token.IF,
+            Token.WHILE, Token.FOR, Token.SWITCH, Token.CATCH, Token.WITH, Token.FUNCTION);
+
+    private static final Set<Integer> EQUALITIES = Set.of(Token.EQ, Token.NE, Token.SHEQ, Token.SHNE);
+
+    private JavaScriptDefines() {
+    }
+
+    /**
+     * Returns the tokens of a literal given on the command line: true,
+     * false, null, a number or a quoted string.
+     *
+     * @throws IllegalArgumentException if it is none of them
+     */
+    static JavaScriptToken[] parseLiteral(String literal) {
+        literal = literal.trim();
+        switch (literal) {
+            case "true":
+                return new JavaScriptToken[]{new JavaScriptToken(Token.TRUE, "true")};
+            case "false":
+                return new JavaScriptToken[]{new JavaScriptToken(Token.FALSE, "false")};
+            case "null":
+                return new JavaScriptToken[]{new JavaScriptToken(Token.NULL, "null")};
+        }
+        if (NUMBER.matcher(literal).matches()) {
+            double number = Double.parseDouble(literal);
+            JavaScriptToken value = new JavaScriptToken(Token.NUMBER, JavaScriptCompressor.printNumber(Math.abs(number)));
+            return literal.startsWith("-")
+                    ? new JavaScriptToken[]{new JavaScriptToken(Token.NEG, "-"), value}
+                    : new JavaScriptToken[]{value};
+        }
+        if (literal.length() >= 2 && (literal.charAt(0) == '"' || literal.charAt(0) == '\'')
+                && literal.charAt(literal.length() - 1) == literal.charAt(0)) {
+            char quote = literal.charAt(0);
+            String value = literal.substring(1, literal.length() - 1);
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '\\') {
+                    i++;
+                } else if (c == quote || c == '\n' || c == '\r') {
+                    throw new IllegalArgumentException("Not a JavaScript literal: " + literal);
+                }
+            }
+            // The tokens hold strings with their quotes unescaped
+            return new JavaScriptToken[]{new JavaScriptToken(Token.STRING, value.replace("\\" + quote, "" + quote))};
+        }
+        throw new IllegalArgumentException("Not a JavaScript literal: " + literal);
+    }
+
+    /**
+     * Checks that a name can be defined.
+     *
+     * @throws IllegalArgumentException if it is not an identifier
+     */
+    static void checkName(String name) {
+        if (!NAME.matcher(name).matches() || JavaScriptCompressor.reserved.contains(name)) {
+            throw new IllegalArgumentException("Cannot define " + name);
+        }
+    }
+
+    /**
+     * Replaces the defined names and removes the code made unreachable.
+     * Returns the number of names replaced.
+     */
+    static int apply(ArrayList<JavaScriptToken> tokens, Map<String, JavaScriptToken[]> defines,
+            ErrorReporter reporter) {
+
+        int replaced = 0;
+        for (Map.Entry<String, JavaScriptToken[]> define : defines.entrySet()) {
+            String name = define.getKey();
+            if (isDeclaredOrAssigned(tokens, name)) {
+                if (reporter != null) {
+                    reporter.warning("The defined name " + name + " is declared or assigned in the script, so it is left as it is",
+                            null, -1, null, -1);
+                }
+                continue;
+            }
+            JavaScriptToken[] value = define.getValue();
+            for (int i = tokens.size() - 1; i >= 0; i--) {
+                if (isReference(tokens, i, name)) {
+                    tokens.remove(i);
+                    if (value.length > 1 && isOperated(tokens, i)) {
+                        // -1.5.toFixed() is -(1.5.toFixed())
+                        tokens.add(i, new JavaScriptToken(Token.RP, ")"));
+                        tokens.addAll(i, Arrays.asList(value));
+                        tokens.add(i, new JavaScriptToken(Token.LP, "("));
+                    } else {
+                        tokens.addAll(i, Arrays.asList(value));
+                    }
+                    replaced++;
+                }
+            }
+        }
+
+        if (replaced > 0) {
+            boolean changed = true;
+            while (changed) {
+                changed = foldLiterals(tokens);
+                changed |= foldLogicalOperators(tokens);
+                changed |= foldIfStatements(tokens);
+            }
+        }
+        return replaced;
+    }
+
+    /*
+     * Returns true if the name at the specified index is the global name,
+     * rather than a property, an object literal key or a label.
+     */
+    private static boolean isReference(List<JavaScriptToken> tokens, int i, String name) {
+        if (type(tokens, i) != Token.NAME || !tokens.get(i).getValue().equals(name)) {
+            return false;
+        }
+        int previous = type(tokens, i - 1);
+        int next = type(tokens, i + 1);
+        boolean label = next == Token.COLON && (previous == Token.SEMI || previous == Token.LC
+                || previous == Token.RC || previous == Token.EOF);
+        return previous != Token.DOT && previous != Token.GET && previous != Token.SET
+                && previous != Token.BREAK && previous != Token.CONTINUE
+                && next != Token.OBJECTLIT && !label;
+    }
+
+    /*
+     * Returns true if the name is declared as a variable, a function or a
+     * parameter, or assigned, anywhere in the script.
+     */
+    private static boolean isDeclaredOrAssigned(List<JavaScriptToken> tokens, String name) {
+        boolean declaring = false;
+        int nesting = 0;
+        for (int i = 0; i < tokens.size(); i++) {
+            int type = type(tokens, i);
+            if (type == Token.VAR || type == Token.CONST || type == Token.LET) {
+                declaring = true;
+                nesting = 0;
+                if (type(tokens, i + 1) == Token.NAME && tokens.get(i + 1).getValue().equals(name)) {
+                    return true;
+                }
+            } else if (declaring) {
+                if (type == Token.LP || type == Token.LB || type == Token.LC) {
+                    nesting++;
+                } else if (type == Token.RP || type == Token.RB || type == Token.RC) {
+                    if (--nesting < 0) {
+                        declaring = false;
+                    }
+                } else if (nesting == 0 && (type == Token.SEMI || type == Token.IN)) {
+                    declaring = false;
+                } else if (nesting == 0 && type == Token.COMMA
+                        && type(tokens, i + 1) == Token.NAME && tokens.get(i + 1).getValue().equals(name)) {
+                    return true;
+                }
+            }
+
+            if (type == Token.FUNCTION || type == Token.CATCH) {
+                for (int j = i + 1; j < tokens.size() && type(tokens, j) != Token.RP && type(tokens, j) != Token.LC; j++) {
+                    if (type(tokens, j) == Token.NAME && tokens.get(j).getValue().equals(name)) {
+                        return true;
+                    }
+                }
+            }
+
+            if (type == Token.NAME && tokens.get(i).getValue().equals(name) && type(tokens, i - 1) != Token.DOT) {
+                int next = type(tokens, i + 1);
+                int previous = type(tokens, i - 1);
+                if (next >= Token.FIRST_ASSIGN && next <= Token.LAST_ASSIGN || next == Token.INC || next == Token.DEC
+                        || previous == Token.INC || previous == Token.DEC || previous == Token.DELPROP
+                        || next == Token.IN && previous == Token.LP && type(tokens, i - 2) == Token.FOR) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Folds !literal, (literal) and literal == literal.
+     */
+    private static boolean foldLiterals(ArrayList<JavaScriptToken> tokens) {
+        boolean changed = false;
+        for (int i = tokens.size() - 1; i >= 0; i--) {
+            int type = type(tokens, i);
+            if (type == Token.NOT && isLiteral(tokens, i + 1) && !isOperated(tokens, i + 2)) {
+                JavaScriptToken value = bool(!isTruthy(tokens.get(i + 1)));
+                tokens.subList(i, i + 2).clear();
+                tokens.add(i, value);
+                changed = true;
+            } else if (isLiteral(tokens, i) && type(tokens, i + 1) == Token.SEMI && type != Token.STRING
+                    && isStatementStart(type(tokens, i - 1)) && !isInForHeader(tokens, i)) {
+                // Left alone by the folding of && and ||
+                tokens.subList(i, i + 2).clear();
+                changed = true;
+            } else if (type == Token.LP && isLiteral(tokens, i + 1) && type(tokens, i + 2) == Token.RP
+                    && !NOT_GROUPING.contains(type(tokens, i - 1))) {
+                tokens.remove(i + 2);
+                tokens.remove(i);
+                changed = true;
+            } else if (EQUALITIES.contains(type) && isLiteral(tokens, i - 1) && isLiteral(tokens, i + 1)
+                    && isEqualityStart(type(tokens, i - 2)) && !isOperated(tokens, i + 2)
+                    && !isHigherThanEquality(type(tokens, i + 2))) {
+                Boolean equal = equal(tokens.get(i - 1), tokens.get(i + 1), type == Token.SHEQ || type == Token.SHNE);
+                if (equal != null) {
+                    boolean result = type == Token.EQ || type == Token.SHEQ ? equal : !equal;
+                    tokens.subList(i - 1, i + 2).clear();
+                    tokens.add(i - 1, bool(result));
+                    i--;
+                    changed = true;
+                }
+            }
+        }
+        return changed;
+    }
+
+    /*
+     * Folds true && x, false && x, true || x and false || x.
+     */
+    private static boolean foldLogicalOperators(ArrayList<JavaScriptToken> tokens) {
+        boolean changed = false;
+        for (int i = tokens.size() - 2; i >= 1; i--) {
+            int type = type(tokens, i);
+            if (type != Token.AND && type != Token.OR || !isLiteral(tokens, i - 1)) {
+                continue;
+            }
+            int before = type(tokens, i - 2);
+            if (!OPERAND_STARTS.contains(before) && before != Token.EOF && !(type == Token.AND && before == Token.OR)
+                    && !(before >= Token.FIRST_ASSIGN && before <= Token.LAST_ASSIGN)) {
+                continue;
+            }
+            boolean truthy = isTruthy(tokens.get(i - 1));
+            if (truthy == (type == Token.AND)) {
+                // The value is the right operand
+                tokens.subList(i - 1, i + 1).clear();
+                i--;
+            } else {
+                // The value is the left one
+                tokens.subList(i, operandEnd(tokens, i + 1, type)).clear();
+            }
+            changed = true;
+        }
+        return changed;
+    }
+
+    /*
+     * Returns the index of the token following the operand of && or ||
+     * starting at the specified index.
+     */
+    private static int operandEnd(List<JavaScriptToken> tokens, int i, int operator) {
+        int nesting = 0;
+        for (; i < tokens.size(); i++) {
+            int type = type(tokens, i);
+            if (nesting == 0 && OPERAND_ENDS.contains(type) && !(operator == Token.OR && type == Token.AND)
+                    || nesting == 0 && type >= Token.FIRST_ASSIGN && type <= Token.LAST_ASSIGN) {
+                return i;
+            }
+            if (type == Token.LP || type == Token.LB || type == Token.LC) {
+                nesting++;
+            } else if (type == Token.RP || type == Token.RB || type == Token.RC) {
+                nesting--;
+            }
+        }
+        return i;
+    }
+
+    /*
+     * Replaces the if statements with a literal condition with the branch
+     * that runs.
+     */
+    private static boolean foldIfStatements(ArrayList<JavaScriptToken> tokens) {
+        boolean changed = false;
+        for (int i = tokens.size() - 1; i >= 0; i--) {
+            if (type(tokens, i) != Token.IF || type(tokens, i + 1) != Token.LP
+                    || !isLiteral(tokens, i + 2) || type(tokens, i + 3) != Token.RP || type(tokens, i + 4) != Token.LC) {
+                continue;
+            }
+            int thenStart = i + 4;
+            int thenEnd = blockEnd(tokens, thenStart);
+            int elseStart = -1;
+            int end = thenEnd;
+            if (type(tokens, thenEnd) == Token.ELSE && type(tokens, thenEnd + 1) == Token.LC) {
+                elseStart = thenEnd + 1;
+                end = blockEnd(tokens, elseStart);
+            }
+
+            boolean truthy = isTruthy(tokens.get(i + 2));
+            ArrayList<JavaScriptToken> replacement = new ArrayList<>();
+            if (truthy) {
+                if (elseStart >= 0) {
+                    declareVars(tokens.subList(elseStart, end), replacement);
+                }
+                addBlock(tokens, i, thenStart, thenEnd, replacement);
+            } else {
+                declareVars(tokens.subList(thenStart, thenEnd), replacement);
+                if (elseStart >= 0) {
+                    addBlock(tokens, i, elseStart, end, replacement);
+                }
+            }
+            if (replacement.isEmpty() && type(tokens, i - 1) == Token.COLON) {
+                // A label or case needs a statement
+                replacement.add(new JavaScriptToken(Token.SEMI, ";"));
+            }
+            tokens.subList(i, end).clear();
+            tokens.addAll(i, replacement);
+            changed = true;
+        }
+        return changed;
+    }
+
+    // Returns the index of the token following the block at the specified index
+    private static int blockEnd(List<JavaScriptToken> tokens, int start) {
+        int nesting = 0;
+        for (int i = start; i < tokens.size(); i++) {
+            int type = type(tokens, i);
+            if (type == Token.LC) {
+                nesting++;
+            } else if (type == Token.RC && --nesting == 0) {
+                return i + 1;
+            }
+        }
+        return tokens.size();
+    }
+
+    /*
+     * Adds the block that runs, without its braces unless it declares
+     * functions or block-scoped variables, or follows a label.
+     */
+    private static void addBlock(List<JavaScriptToken> tokens, int statement, int start, int end,
+            List<JavaScriptToken> replacement) {
+        boolean braces = type(tokens, statement - 1) == Token.COLON;
+        int nesting = 0;
+        for (int i = start + 1; i < end - 1 && !braces; i++) {
+            int type = type(tokens, i);
+            if (type == Token.LC) {
+                nesting++;
+            } else if (type == Token.RC) {
+                nesting--;
+            } else if (nesting == 0 && (type == Token.FUNCTION || type == Token.LET || type == Token.CONST)) {
+                braces = true;
+            }
+        }
+        replacement.addAll(braces ? tokens.subList(start, end) : tokens.subList(start + 1, end - 1));
+    }
+
+    /*
+     * Adds a var statement declaring the variables the removed tokens
+     * declared, outside of nested functions.
+     */
+    private static void declareVars(List<JavaScriptToken> removed, List<JavaScriptToken> replacement) {
+        Set<String> names = new LinkedHashSet<>();
+        boolean declaring = false;
+        int nesting = 0;
+        for (int i = 0; i < removed.size(); i++) {
+            int type = type(removed, i);
+            if (type == Token.FUNCTION) {
+                // Skip the function up to its closing brace
+                int j = i;
+                while (j < removed.size() && type(removed, j) != Token.LC) {
+                    j++;
+                }
+                i = blockEnd(removed, j) - 1;
+                continue;
+            }
+            if (type == Token.VAR) {
+                declaring = true;
+                nesting = 0;
+                if (type(removed, i + 1) == Token.NAME) {
+                    names.add(removed.get(i + 1).getValue());
+                }
+            } else if (declaring) {
+                if (type == Token.LP || type == Token.LB || type == Token.LC) {
+                    nesting++;
+                } else if (type == Token.RP || type == Token.RB || type == Token.RC) {
+                    if (--nesting < 0) {
+                        declaring = false;
+                    }
+                } else if (nesting == 0 && (type == Token.SEMI || type == Token.IN)) {
+                    declaring = false;
+                } else if (nesting == 0 && type == Token.COMMA && type(removed, i + 1) == Token.NAME) {
+                    names.add(removed.get(i + 1).getValue());
+                }
+            }
+        }
+        if (names.isEmpty()) {
+            return;
+        }
+        replacement.add(new JavaScriptToken(Token.VAR, "var "));
+        for (String name : names) {
+            if (replacement.size() > 1) {
+                replacement.add(new JavaScriptToken(Token.COMMA, ","));
+            }
+            replacement.add(new JavaScriptToken(Token.NAME, name));
+        }
+        replacement.add(new JavaScriptToken(Token.SEMI, ";"));
+    }
+
+    private static int type(List<JavaScriptToken> tokens, int i) {
+        return i >= 0 && i < tokens.size() ? tokens.get(i).getType() : Token.EOF;
+    }
+
+    private static boolean isLiteral(List<JavaScriptToken> tokens, int i) {
+        int type = type(tokens, i);
+        return type == Token.TRUE || type == Token.FALSE || type == Token.NULL
+                || type == Token.NUMBER || type == Token.STRING;
+    }
+
+    // Returns true if the token at the specified index applies to the one before
+    private static boolean isOperated(List<JavaScriptToken> tokens, int i) {
+        int type = type(tokens, i);
+        return type == Token.DOT || type == Token.LB || type == Token.LP;
+    }
+
+    // Whether the token at i is between the parentheses of a for
+    private static boolean isInForHeader(List<JavaScriptToken> tokens, int i) {
+        int depth = 0;
+        for (int j = i - 1; j >= 0; j--) {
+            int type = type(tokens, j);
+            if (type == Token.RC || type == Token.RP || type == Token.RB) {
+                depth++;
+            } else if (type == Token.LC || type == Token.LP || type == Token.LB) {
+                if (--depth < 0) {
+                    return type == Token.LP && type(tokens, j - 1) == Token.FOR;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean isStatementStart(int type) {
+        return type == Token.SEMI || type == Token.LC || type == Token.RC || type == Token.EOF;
+    }
+
+    private static boolean isEqualityStart(int type) {
+        return OPERAND_STARTS.contains(type) || type == Token.EOF || type == Token.AND || type == Token.OR
+                || type == Token.BITOR || type == Token.BITXOR || type == Token.BITAND
+                || type >= Token.FIRST_ASSIGN && type <= Token.LAST_ASSIGN;
+    }
+
+    private static boolean isHigherThanEquality(int type) {
+        return type == Token.LT || type == Token.LE || type == Token.GT || type == Token.GE
+                || type == Token.INSTANCEOF || type == Token.IN || type == Token.LSH || type == Token.RSH
+                || type == Token.URSH || type == Token.ADD || type == Token.SUB || type == Token.MUL
+                || type == Token.DIV || type == Token.MOD;
+    }
+
+    private static boolean isTruthy(JavaScriptToken literal) {
+        switch (literal.getType()) {
+            case Token.TRUE:
+                return true;
+            case Token.NUMBER:
+                double number = JavaScriptCompressor.parseNumber(literal.getValue());
+                return number != 0 && !Double.isNaN(number);
+            case Token.STRING:
+                return !literal.getValue().isEmpty();
+            default:
+                return false;
+        }
+    }
+
+    /*
+     * Returns whether two literals are equal, or null if it cannot be told
+     * from their tokens.
+     */
+    private static Boolean equal(JavaScriptToken a, JavaScriptToken b, boolean strict) {
+        if (a.getType() != b.getType()) {
+            boolean booleans = (a.getType() == Token.TRUE || a.getType() == Token.FALSE)
+                    && (b.getType() == Token.TRUE || b.getType() == Token.FALSE);
+            return strict || booleans ? Boolean.FALSE : null;
+        }
+        switch (a.getType()) {
+            case Token.NUMBER:
+                return JavaScriptCompressor.parseNumber(a.getValue()) == JavaScriptCompressor.parseNumber(b.getValue());
+            case Token.STRING:
+                if (a.getValue().indexOf('\\') >= 0 || b.getValue().indexOf('\\') >= 0) {
+                    return null;
+                }
+                return a.getValue().equals(b.getValue());
+            default:
+                return Boolean.TRUE;
+        }
+    }
+
+    private static JavaScriptToken bool(boolean value) {
+        return value ? new JavaScriptToken(Token.TRUE, "true") : new JavaScriptToken(Token.FALSE, "false");
+    }
+}
@@ -0,0 +1,287 @@
+package com.yahoo.platform.yui.compressor;
+
+import org.mozilla.javascript.Token;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * JavaScriptPeephole is one of the rewrites {@link JavaScriptCompressor}
+ * makes to a short sequence of tokens to print the same code in fewer
+ * characters, such as true into !0. The passes chosen with
+ * {@link JavaScriptCompressor#setPeepholes(List)} all run in a single
+ * traversal of the tokens, before the symbols are munged; at each token,
+ * the passes are tried in order, and after a rewrite the traversal steps
+ * back a few tokens so that the rewrites can build on each other.
+ * <p>
+ * Each pass counts the rewrites it made and the characters they saved,
+ * over all the scripts compressed by the same compressor. A pass must not
+ * be used by several threads at the same time.
+ */
+public final class JavaScriptPeephole {
+
+    /*
+     * What a pass does to the tokens at an index. It returns the number of
+     * characters saved, or 0 if it left the tokens as they were.
+     */
+    interface Rewrite {
+        int apply(List<JavaScriptToken> tokens, int i);
+    }
+
+    // How far the traversal steps back after a rewrite
+    private static final int BACKTRACK = 3;
+
+    // Tokens before a parenthesis that make it a call or part of a statement,
+    // or the parenthesized string a directive
+    private static final Set<Integer> NOT_GROUPING = Set.of(Token.NAME, Token.RP, Token.RB, Token.STRING,
+            Token.NUMBER, Token.REGEXP, Token.TRUE, Token.FALSE, Token.NULL, Token.THIS, Token.IF,
+            Token.WHILE, Token.FOR, Token.SWITCH, Token.CATCH, Token.WITH, Token.FUNCTION,
+            Token.SEMI, Token.LC, Token.RC);
+
+    // Tokens after which a + starts an operand of lower precedence, so that
+    // "a" + "b" can be folded
+    private static final Set<Integer> CONCAT_STARTS = Set.of(Token.LP, Token.LB, Token.LC, Token.RC,
+            Token.COMMA, Token.SEMI, Token.HOOK, Token.COLON, Token.OBJECTLIT, Token.RETURN, Token.CASE,
+            Token.THROW, Token.ADD, Token.OR, Token.AND, Token.BITOR, Token.BITXOR, Token.BITAND, Token.EQ,
+            Token.NE, Token.SHEQ, Token.SHNE, Token.LT, Token.LE, Token.GT, Token.GE, Token.IN,
+            Token.INSTANCEOF, Token.LSH, Token.RSH, Token.URSH);
+
+    private final String name;
+    private final Predicate<List<JavaScriptToken>> applies;
+    private final Rewrite rewrite;
+    private long hits;
+    private long saved;
+
+    JavaScriptPeephole(String name, Predicate<List<JavaScriptToken>> applies, Rewrite rewrite) {
+        this.name = name;
+        this.applies = applies;
+        this.rewrite = rewrite;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the number of rewrites this pass made.
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of characters this pass saved.
+     */
+    public long getSaved() {
+        return saved;
+    }
+
+    public void resetStats() {
+        hits = 0;
+        saved = 0;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    /**
+     * Runs the passes over the tokens of a script, whose strings are not
+     * quoted yet.
+     */
+    static void run(List<JavaScriptPeephole> passes, List<JavaScriptToken> tokens) {
+        List<JavaScriptPeephole> active = new ArrayList<>(passes.size());
+        for (JavaScriptPeephole pass : passes) {
+            if (pass.applies.test(tokens)) {
+                active.add(pass);
+            }
+        }
+        if (active.isEmpty()) {
+            return;
+        }
+
+        for (int i = 0; i < tokens.size(); i++) {
+            for (JavaScriptPeephole pass : active) {
+                int saved = pass.rewrite.apply(tokens, i);
+                if (saved > 0) {
+                    pass.hits++;
+                    pass.saved += saved;
+                    i = Math.max(i - BACKTRACK, 0) - 1;
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns new instances of all the passes, in the order they are
+     * tried: booleans, undefined and strings. The numbers are printed in
+     * their shortest form without a pass.
+     */
+    public static List<JavaScriptPeephole> defaultPeepholes() {
+        List<JavaScriptPeephole> passes = new ArrayList<>();
+
+        // true -> !0, false -> !1
+        passes.add(new JavaScriptPeephole("booleans", tokens -> true, (tokens, i) -> {
+            int type = type(tokens, i);
+            if (type != Token.TRUE && type != Token.FALSE || !isValue(tokens, i)) {
+                return 0;
+            }
+            tokens.set(i, new JavaScriptToken(Token.NOT, "!"));
+            tokens.add(i + 1, new JavaScriptToken(Token.NUMBER, type == Token.TRUE ? "0" : "1"));
+            return type == Token.TRUE ? 2 : 3;
+        }));
+
+        // undefined -> void 0, unless the script could declare a variable named undefined
+        passes.add(new JavaScriptPeephole("undefined", JavaScriptPeephole::isUndefinedGlobal, (tokens, i) -> {
+            if (!isName(tokens, i, "undefined") || !isValue(tokens, i)) {
+                return 0;
+            }
+            tokens.set(i, new JavaScriptToken(Token.VOID, "void "));
+            tokens.add(i + 1, new JavaScriptToken(Token.NUMBER, "0"));
+            return 3;
+        }));
+
+        // ("a") -> "a", "a" + "b" -> "ab"
+        passes.add(new JavaScriptPeephole("strings", tokens -> true, (tokens, i) -> {
+            if (type(tokens, i) == Token.LP && type(tokens, i + 1) == Token.STRING && type(tokens, i + 2) == Token.RP
+                    && i > 0 && !NOT_GROUPING.contains(type(tokens, i - 1))) {
+                tokens.remove(i + 2);
+                tokens.remove(i);
+                return 2;
+            }
+            if (type(tokens, i) == Token.STRING && type(tokens, i + 1) == Token.ADD
+                    && type(tokens, i + 2) == Token.STRING && isConcatenated(tokens, i)
+                    && !endsWithEscape(tokens.get(i).getValue())) {
+                tokens.set(i, new JavaScriptToken(Token.STRING,
+                        tokens.get(i).getValue() + tokens.get(i + 2).getValue()));
+                tokens.subList(i + 1, i + 3).clear();
+                return 3;
+            }
+            return 0;
+        }));
+
+        return passes;
+    }
+
+    /*
+     * Returns true if the strings at i and i + 2 are the operands of the
+     * same +, and not a statement that would become a directive once folded.
+     */
+    private static boolean isConcatenated(List<JavaScriptToken> tokens, int i) {
+        int previous = type(tokens, i - 1);
+        int next = type(tokens, i + 3);
+        boolean assigned = previous >= Token.FIRST_ASSIGN && previous <= Token.LAST_ASSIGN;
+        if (!CONCAT_STARTS.contains(previous) && !assigned || isOperated(tokens, i + 3)
+                || next == Token.MUL || next == Token.DIV || next == Token.MOD) {
+            return false;
+        }
+        boolean statement = previous == Token.SEMI || previous == Token.LC || previous == Token.RC;
+        return !statement || next != Token.SEMI && next != Token.RC && next != Token.EOF;
+    }
+
+    // "\1" + "2" is not "\12", nor is "\x4" + "1" "\x41"
+    private static boolean endsWithEscape(String s) {
+        int backslash = s.lastIndexOf('\\');
+        return backslash >= 0 && backslash >= s.length() - 5;
+    }
+
+    /*
+     * Returns false if the token at i is not a value that can be replaced
+     * with a unary expression: a property name, a label, an object key, or
+     * the object of a member access or a call.
+     */
+    private static boolean isValue(List<JavaScriptToken> tokens, int i) {
+        int previous = type(tokens, i - 1);
+        int next = type(tokens, i + 1);
+        if (previous == Token.DOT || previous == Token.GET || previous == Token.SET || previous == Token.NEW
+                || previous == Token.BREAK || previous == Token.CONTINUE) {
+            return false;
+        }
+        if (next == Token.OBJECTLIT || next == Token.COLON
+                && (previous == Token.SEMI || previous == Token.LC || previous == Token.RC || i == 0)) {
+            return false;
+        }
+        return !isOperated(tokens, i + 1);
+    }
+
+    private static boolean isOperated(List<JavaScriptToken> tokens, int i) {
+        int type = type(tokens, i);
+        return type == Token.DOT || type == Token.LB || type == Token.LP || type == Token.INC || type == Token.DEC;
+    }
+
+    /*
+     * Returns false if undefined may not be the global variable somewhere:
+     * if it is declared, assigned, or if the script uses with or eval.
+     */
+    private static boolean isUndefinedGlobal(List<JavaScriptToken> tokens) {
+        for (int i = 0; i < tokens.size(); i++) {
+            int type = type(tokens, i);
+            if (type == Token.WITH || isName(tokens, i, "eval")) {
+                return false;
+            }
+            if (type == Token.VAR || type == Token.LET || type == Token.CONST) {
+                if (declares(tokens, i)) {
+                    return false;
+                }
+            } else if (type == Token.FUNCTION || type == Token.CATCH) {
+                int j = i + 1;
+                if (type(tokens, j) == Token.NAME) {
+                    if (isName(tokens, j, "undefined")) {
+                        return false;
+                    }
+                    j++;
+                }
+                if (type(tokens, j) == Token.LP) {
+                    for (j++; j < tokens.size() && type(tokens, j) != Token.RP; j++) {
+                        if (isName(tokens, j, "undefined")) {
+                            return false;
+                        }
+                    }
+                }
+            } else if (isName(tokens, i, "undefined") && type(tokens, i - 1) != Token.DOT) {
+                int next = type(tokens, i + 1);
+                int previous = type(tokens, i - 1);
+                if (next >= Token.FIRST_ASSIGN && next <= Token.LAST_ASSIGN || next == Token.INC || next == Token.DEC
+                        || previous == Token.INC || previous == Token.DEC) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    // Whether the var, let or const statement at i declares undefined
+    private static boolean declares(List<JavaScriptToken> tokens, int i) {
+        int depth = 0;
+        for (int j = i + 1; j < tokens.size(); j++) {
+            int type = type(tokens, j);
+            if (type == Token.LP || type == Token.LB || type == Token.LC) {
+                depth++;
+            } else if (type == Token.RP || type == Token.RB || type == Token.RC) {
+                if (--depth < 0) {
+                    return false;
+                }
+            } else if (depth == 0 && (type == Token.SEMI || type == Token.IN)) {
+                return false;
+            } else if (depth == 0 && isName(tokens, j, "undefined")) {
+                int previous = type(tokens, j - 1);
+                if (previous == Token.COMMA || j == i + 1) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean isName(List<JavaScriptToken> tokens, int i, String name) {
+        return type(tokens, i) == Token.NAME && tokens.get(i).getValue().equals(name);
+    }
+
+    private static int type(List<JavaScriptToken> tokens, int i) {
+        return i >= 0 && i < tokens.size() ? tokens.get(i).getType() : Token.EOF;
+    }
+}
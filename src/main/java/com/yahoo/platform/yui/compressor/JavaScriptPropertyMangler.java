@@ -0,0 +1,139 @@
+package com.yahoo.platform.yui.compressor;
+
+import org.mozilla.javascript.ErrorReporter;
+import org.mozilla.javascript.Token;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * JavaScriptPropertyMangler renames the properties whose names match a
+ * pattern, such as the ones starting with an underscore, to names as short
+ * as the ones given to local symbols. A property is renamed where it is
+ * accessed with a dot, a.b, declared in an object literal, {b: 1}, or by a
+ * getter or a setter.
+ * <p>
+ * The same property gets the same name in all the scripts an instance goes
+ * through, so that the scripts of a bundle keep working together. A name
+ * is not given if it is reserved, or used as a property in the script
+ * being compressed. A property whose name is ever quoted, as in a["b"] or
+ * "b" in a, is left as it is, since the string may be built at run time
+ * as well; if it was renamed in a previous script, a warning is issued.
+ * <p>
+ * An instance must not be used by several threads at the same time.
+ */
+final class JavaScriptPropertyMangler {
+
+    // The properties the engines give a meaning to, never renamed
+    private static final Set<String> BUILTIN = Set.of("__proto__", "__defineGetter__", "__defineSetter__",
+            "__lookupGetter__", "__lookupSetter__", "__noSuchMethod__", "__parent__", "__count__");
+
+    private final Pattern pattern;
+    private final Set<String> reserved = new HashSet<>();
+    // The properties renamed so far, in the order they were renamed
+    private final Map<String, String> mangled = new LinkedHashMap<>();
+    private final Set<String> given = new HashSet<>();
+    // The index of the next munged name to try
+    private int next;
+
+    /**
+     * @param pattern  the names of the properties to rename
+     * @param reserved the property names never to rename nor give
+     */
+    JavaScriptPropertyMangler(Pattern pattern, Collection<String> reserved) {
+        this.pattern = pattern;
+        this.reserved.addAll(BUILTIN);
+        for (String name : reserved) {
+            this.reserved.add(name.trim());
+        }
+    }
+
+    /**
+     * Returns the properties renamed so far and their new names.
+     */
+    Map<String, String> getMangled() {
+        return mangled;
+    }
+
+    /**
+     * Renames the properties in the tokens of a script.
+     */
+    void mangle(List<JavaScriptToken> tokens, ErrorReporter reporter) {
+        Map<String, Integer> counts = new HashMap<>();
+        Set<String> quoted = new HashSet<>();
+        Set<String> properties = new HashSet<>();
+        for (int i = 0; i < tokens.size(); i++) {
+            JavaScriptToken token = tokens.get(i);
+            if (token.getType() == Token.STRING) {
+                quoted.add(token.getValue());
+            } else if (isProperty(tokens, i)) {
+                properties.add(token.getValue());
+                if (pattern.matcher(token.getValue()).find()) {
+                    counts.merge(token.getValue(), 1, Integer::sum);
+                }
+            }
+        }
+
+        for (String name : quoted) {
+            if (mangled.containsKey(name) && reporter != null) {
+                reporter.warning("The property " + name + " is quoted, but was renamed to "
+                        + mangled.get(name) + " in a previous script", null, -1, null, -1);
+            }
+        }
+        for (String name : properties) {
+            if (given.contains(name) && !mangled.containsKey(name) && reporter != null) {
+                reporter.warning("The property " + name + " may clash with a renamed property",
+                        null, -1, null, -1);
+            }
+        }
+
+        // The most used properties first, so that they get the shortest names
+        List<String> names = new ArrayList<>(counts.keySet());
+        names.removeIf(name -> mangled.containsKey(name) || reserved.contains(name) || quoted.contains(name));
+        names.sort((a, b) -> counts.get(b) - counts.get(a) != 0 ? counts.get(b) - counts.get(a) : a.compareTo(b));
+        for (String name : names) {
+            String newName = nextName(properties, quoted);
+            if (newName == null) {
+                break;
+            }
+            mangled.put(name, newName);
+            given.add(newName);
+        }
+
+        for (int i = 0; i < tokens.size(); i++) {
+            JavaScriptToken token = tokens.get(i);
+            String newName = mangled.get(token.getValue());
+            if (newName != null && token.getType() == Token.NAME && isProperty(tokens, i)
+                    && !quoted.contains(token.getValue())) {
+                tokens.set(i, new JavaScriptToken(Token.NAME, newName));
+            }
+        }
+    }
+
+    private String nextName(Set<String> properties, Set<String> quoted) {
+        for (String name; (name = JavaScriptCompressor.mungedName(next)) != null; next++) {
+            if (!reserved.contains(name) && !properties.contains(name) && !quoted.contains(name)) {
+                next++;
+                return name;
+            }
+        }
+        return null;
+    }
+
+    // Whether the token at i names a property: a.b, {b: 1}, get b() {}
+    private static boolean isProperty(List<JavaScriptToken> tokens, int i) {
+        if (tokens.get(i).getType() != Token.NAME) {
+            return false;
+        }
+        int previous = i > 0 ? tokens.get(i - 1).getType() : Token.EOF;
+        int next = i + 1 < tokens.size() ? tokens.get(i + 1).getType() : Token.EOF;
+        return previous == Token.DOT || previous == Token.GET || previous == Token.SET || next == Token.OBJECTLIT;
+    }
+}
@@ -0,0 +1,308 @@
+package com.yahoo.platform.yui.compressor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * JavaScriptSplitter finds the places where a script can be cut into chunks
+ * that parse independently, so that large concatenated bundles can be parsed
+ * on several threads.
+ * <p>
+ * The only split points are the semi-colons ending a top-level statement:
+ * outside of strings, regular expressions, comments and brackets, and not
+ * followed by the 'else' of an if statement or the 'while' of a do loop.
+ * Splitting anywhere else could change the meaning of the script through
+ * automatic semi-colon insertion. The scan is a heuristic (telling a
+ * regular expression from a division requires a real parser), so a chunk
+ * may still fail to parse; callers then parse the whole script at once.
+ */
+class JavaScriptSplitter {
+
+    private static final char LINE_SEPARATOR = 0x2028;
+    private static final char PARAGRAPH_SEPARATOR = 0x2029;
+
+    // Words after which a slash starts a regular expression, not a division
+    private static final Set<String> regexpPrecedingWords = new HashSet<>(Arrays.asList(
+            "case", "delete", "do", "else", "in", "instanceof", "new",
+            "return", "throw", "typeof", "void", "yield"));
+
+    private final String source;
+    private final int length;
+    private int pos;
+
+    private JavaScriptSplitter(String source) {
+        this.source = source;
+        this.length = source.length();
+    }
+
+    /**
+     * Returns the offsets at which the chunks of the specified script start.
+     * The first offset is always 0, and no chunk is shorter than the given
+     * length, except maybe the last one. A single offset means the script
+     * should not be split.
+     *
+     * @param source the script to split
+     * @param minChunkLength the minimum length of a chunk
+     * @return the sorted offsets of the chunks
+     */
+    static int[] split(String source, int minChunkLength) {
+        List<Integer> points = new JavaScriptSplitter(source).findSplitPoints();
+
+        ArrayList<Integer> starts = new ArrayList<>();
+        starts.add(0);
+        int last = 0;
+        for (int point : points) {
+            if (point - last >= minChunkLength && source.length() - point >= minChunkLength) {
+                starts.add(point);
+                last = point;
+            }
+        }
+
+        int[] result = new int[starts.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = starts.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of lines ending between the specified offsets,
+     * counting line terminators the way the Rhino tokenizer does.
+     */
+    static int countLines(String source, int from, int to) {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            char c = source.charAt(i);
+            if (c == '\r') {
+                if (i + 1 < to && source.charAt(i + 1) == '\n') {
+                    i++;
+                }
+                count++;
+            } else if (c == '\n' || c == LINE_SEPARATOR || c == PARAGRAPH_SEPARATOR) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /*
+     * Returns the offsets following the semi-colons that end top-level
+     * statements, or an empty list if the scan ran into anything it does
+     * not understand.
+     */
+    private List<Integer> findSplitPoints() {
+        ArrayList<Integer> points = new ArrayList<>();
+
+        int nesting = 0;
+        int pendingPoint = -1;
+        boolean regexpAllowed = true;
+        boolean lineStart = true;
+
+        while (pos < length) {
+            char c = source.charAt(pos);
+
+            if (isLineTerminator(c)) {
+                lineStart = true;
+                pos++;
+                continue;
+            }
+
+            if (Character.isWhitespace(c) || Character.isSpaceChar(c)) {
+                pos++;
+                continue;
+            }
+
+            if (c == '/' && peek(1) == '/' ||
+                    c == '<' && source.startsWith("<!--", pos) ||
+                    c == '-' && lineStart && source.startsWith("-->", pos)) {
+                // Rhino treats the HTML comment delimiters as line comments
+                skipLine();
+                continue;
+            }
+
+            if (c == '/' && peek(1) == '*') {
+                int end = source.indexOf("*/", pos + 2);
+                if (end < 0) {
+                    return new ArrayList<>();
+                }
+                pos = end + 2;
+                lineStart = false;
+                continue;
+            }
+
+            lineStart = false;
+
+            if (Character.isJavaIdentifierStart(c) || c == '\\' || isDigit(c) ||
+                    c == '.' && isDigit(peek(1))) {
+                String word = readWord();
+                if (pendingPoint >= 0) {
+                    if (!word.equals("else") && !word.equals("while")) {
+                        points.add(pendingPoint);
+                    }
+                    pendingPoint = -1;
+                }
+                regexpAllowed = regexpPrecedingWords.contains(word);
+                continue;
+            }
+
+            if (pendingPoint >= 0) {
+                points.add(pendingPoint);
+                pendingPoint = -1;
+            }
+
+            if (c == '"' || c == '\'') {
+                if (!skipString(c)) {
+                    return new ArrayList<>();
+                }
+                regexpAllowed = false;
+                continue;
+            }
+
+            if (c == '/' && regexpAllowed) {
+                if (!skipRegExp()) {
+                    return new ArrayList<>();
+                }
+                regexpAllowed = false;
+                continue;
+            }
+
+            pos++;
+
+            switch (c) {
+                case '(':
+                case '[':
+                case '{':
+                    nesting++;
+                    regexpAllowed = true;
+                    break;
+
+                case ')':
+                case ']':
+                    nesting--;
+                    regexpAllowed = false;
+                    break;
+
+                case '}':
+                    nesting--;
+                    regexpAllowed = true;
+                    break;
+
+                case ';':
+                    if (nesting == 0) {
+                        pendingPoint = pos;
+                    }
+                    regexpAllowed = true;
+                    break;
+
+                default:
+                    regexpAllowed = true;
+                    break;
+            }
+
+            if (nesting < 0) {
+                return new ArrayList<>();
+            }
+        }
+
+        if (pendingPoint >= 0 && pendingPoint < length) {
+            points.add(pendingPoint);
+        }
+
+        return points;
+    }
+
+    private char peek(int delta) {
+        int i = pos + delta;
+        return i < length ? source.charAt(i) : 0;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == LINE_SEPARATOR || c == PARAGRAPH_SEPARATOR;
+    }
+
+    private void skipLine() {
+        while (pos < length && !isLineTerminator(source.charAt(pos))) {
+            pos++;
+        }
+    }
+
+    /*
+     * Reads an identifier, a keyword or a number.
+     */
+    private String readWord() {
+        int start = pos;
+        boolean number = isDigit(source.charAt(start)) || source.charAt(start) == '.';
+        while (pos < length) {
+            char c = source.charAt(pos);
+            if (c == '\\') {
+                pos += 2;
+            } else if (Character.isJavaIdentifierPart(c) || c == '.' && number) {
+                pos++;
+            } else if ((c == '+' || c == '-') && number &&
+                    (source.charAt(pos - 1) == 'e' || source.charAt(pos - 1) == 'E') &&
+                    !source.startsWith("0x", start) && !source.startsWith("0X", start)) {
+                // Exponent sign of a decimal number
+                pos++;
+            } else {
+                break;
+            }
+        }
+        pos = Math.min(pos, length);
+        return source.substring(start, pos);
+    }
+
+    /*
+     * Skips a string literal, returns false if it is not terminated.
+     */
+    private boolean skipString(char quote) {
+        pos++;
+        while (pos < length) {
+            char c = source.charAt(pos++);
+            if (c == quote) {
+                return true;
+            } else if (c == '\\') {
+                if (pos < length && source.charAt(pos) == '\r' && peek(1) == '\n') {
+                    pos++;
+                }
+                pos++;
+            } else if (isLineTerminator(c)) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Skips a regular expression literal and its flags, returns false if
+     * it is not terminated on the same line.
+     */
+    private boolean skipRegExp() {
+        boolean inClass = false;
+        pos++;
+        while (pos < length) {
+            char c = source.charAt(pos++);
+            if (isLineTerminator(c)) {
+                return false;
+            } else if (c == '\\') {
+                pos++;
+            } else if (c == '[') {
+                inClass = true;
+            } else if (c == ']') {
+                inClass = false;
+            } else if (c == '/' && !inClass) {
+                while (pos < length && Character.isJavaIdentifierPart(source.charAt(pos))) {
+                    pos++;
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,112 @@
+package com.yahoo.platform.yui.compressor;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * JavaScriptSymbolMap remembers the names the local symbols of a set of
+ * scripts were munged to, so that a later build gives the symbols that
+ * are still there the same names, and the scripts that did not change
+ * are compressed to the same bytes.
+ * <p>
+ * A symbol is known by the script it is in, the path of the functions
+ * declaring it and its name. A function is named after its name, or the
+ * variable or property it is assigned to, followed by #1, #2 and so on
+ * when several functions of the same scope have the same name; an
+ * anonymous function is named #0, #1 and so on. The map is saved as
+ * lines of tab-separated script, path, name and munged name:
+ * <pre>
+ * lib/dom.js	/init/#0	element	a
+ * </pre>
+ * The names of the scripts that were not compressed since the map was
+ * read are saved as they were read. A name that is not free anymore in
+ * its scope is given up and the symbol is munged as usual. A map must
+ * not be used by several compressors at the same time.
+ */
+public final class JavaScriptSymbolMap {
+
+    private final Map<String, String> previous = new HashMap<>();
+    private final Map<String, String> current = new TreeMap<>();
+    private final Set<String> scripts = new HashSet<>();
+
+    public JavaScriptSymbolMap() {
+    }
+
+    /**
+     * Reads a map saved by {@link #write(Writer)}. Blank lines and the
+     * lines starting with # are ignored.
+     *
+     * @throws IOException if a line does not have four fields
+     */
+    public void read(Reader in) throws IOException {
+        BufferedReader reader = new BufferedReader(in);
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.isBlank() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\t");
+            if (fields.length != 4) {
+                throw new IOException("Expected a script, a scope, a name and a munged name on line " + lineNumber);
+            }
+            previous.put(key(fields[0], fields[1], fields[2]), fields[3]);
+        }
+    }
+
+    /**
+     * Writes the names given to the symbols of the scripts compressed since
+     * the map was read, and the names read for the other scripts, sorted.
+     */
+    public void write(Writer out) throws IOException {
+        Map<String, String> entries = new TreeMap<>(current);
+        for (Map.Entry<String, String> entry : previous.entrySet()) {
+            String script = entry.getKey().substring(0, entry.getKey().indexOf('\t'));
+            if (!scripts.contains(script)) {
+                entries.put(entry.getKey(), entry.getValue());
+            }
+        }
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            out.write(entry.getKey());
+            out.write('\t');
+            out.write(entry.getValue());
+            out.write('\n');
+        }
+        out.flush();
+    }
+
+    /**
+     * Returns the number of symbols given a name since the map was read.
+     */
+    public int size() {
+        return current.size();
+    }
+
+    /*
+     * Forgets what a script was given before it is compressed again.
+     */
+    void startScript(String script) {
+        scripts.add(script);
+        current.keySet().removeIf(key -> key.startsWith(script + "\t"));
+    }
+
+    String get(String script, String scope, String name) {
+        return previous.get(key(script, scope, name));
+    }
+
+    void put(String script, String scope, String name, String munged) {
+        current.put(key(script, scope, name), munged);
+    }
+
+    private static String key(String script, String scope, String name) {
+        return script + "\t" + scope + "\t" + name;
+    }
+}
@@ -0,0 +1,176 @@
+package com.yahoo.platform.yui.compressor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * OffHeapTokens keeps the large preserved tokens of a stylesheet, such as
+ * the data URIs of embedded fonts and images, in a direct buffer outside of
+ * the Java heap. White space is dropped while a token is copied in, and the
+ * token is written from the buffer straight to the output, so the minifiers
+ * only carry a short placeholder for it.
+ * <p>
+ * Tokens made of Latin-1 characters, which includes base64, take one byte
+ * per character; the others take two. Each token is known by a key, which
+ * must grow from one token to the next. The buffer is kept between
+ * stylesheets and an instance must not be used by several threads at the
+ * same time.
+ */
+final class OffHeapTokens {
+
+    private static final int CHUNK = 8192;
+
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK);
+    private int[] keys = new int[16];
+    private int[] offsets = new int[16];
+    private int[] lengths = new int[16];
+    private boolean[] wide = new boolean[16];
+    private int count;
+
+    private final byte[] bytes = new byte[CHUNK];
+    private final char[] chars = new char[CHUNK];
+
+    /**
+     * Forgets all tokens, keeping the buffer.
+     */
+    void clear() {
+        buffer.clear();
+        count = 0;
+    }
+
+    int size() {
+        return count;
+    }
+
+    /**
+     * Tells whether a token was added with the specified key.
+     */
+    boolean contains(int key) {
+        return Arrays.binarySearch(keys, 0, count, key) >= 0;
+    }
+
+    /**
+     * Tells whether a token can be kept off the heap: the minifiers space the
+     * operators of whatever looks like a calc() expression in their output,
+     * including the inside of data URIs.
+     */
+    static boolean isOpaque(String s, int start, int end) {
+        for (int i = start; i + 5 <= end; i++) {
+            if (s.charAt(i) == 'c' && s.startsWith("calc(", i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copies a token into the buffer, leaving out its white space.
+     *
+     * @param key the key of the token, greater than the keys already added
+     * @param s the text holding the token
+     * @param start the offset of the token in the text
+     * @param end the offset following the token
+     */
+    void add(int key, CharSequence s, int start, int end) {
+        boolean twoBytes = false;
+        for (int i = start; i < end; i++) {
+            if (s.charAt(i) > 0xFF) {
+                twoBytes = true;
+                break;
+            }
+        }
+        ensureCapacity((end - start) * (twoBytes ? 2 : 1));
+
+        int offset = buffer.position();
+        int length = 0;
+        if (twoBytes) {
+            for (int i = start; i < end; i++) {
+                char c = s.charAt(i);
+                if (!isSpace(c)) {
+                    buffer.putChar(c);
+                    length++;
+                }
+            }
+        } else {
+            int n = 0;
+            for (int i = start; i < end; i++) {
+                char c = s.charAt(i);
+                if (!isSpace(c)) {
+                    bytes[n++] = (byte) c;
+                    if (n == CHUNK) {
+                        buffer.put(bytes, 0, n);
+                        length += n;
+                        n = 0;
+                    }
+                }
+            }
+            buffer.put(bytes, 0, n);
+            length += n;
+        }
+
+        if (count == keys.length) {
+            keys = Arrays.copyOf(keys, count * 2);
+            offsets = Arrays.copyOf(offsets, count * 2);
+            lengths = Arrays.copyOf(lengths, count * 2);
+            wide = Arrays.copyOf(wide, count * 2);
+        }
+        keys[count] = key;
+        offsets[count] = offset;
+        lengths[count] = length;
+        wide[count] = twoBytes;
+        count++;
+    }
+
+    /**
+     * Writes the token with the specified key.
+     */
+    void writeTo(int key, Writer out) throws IOException {
+        int t = Arrays.binarySearch(keys, 0, count, key);
+        if (t < 0) {
+            throw new IllegalArgumentException("No token with key " + key);
+        }
+
+        ByteBuffer view = buffer.duplicate();
+        view.position(offsets[t]);
+        int remaining = lengths[t];
+        while (remaining > 0) {
+            int n = Math.min(CHUNK, remaining);
+            if (wide[t]) {
+                for (int i = 0; i < n; i++) {
+                    chars[i] = view.getChar();
+                }
+            } else {
+                view.get(bytes, 0, n);
+                for (int i = 0; i < n; i++) {
+                    chars[i] = (char) (bytes[i] & 0xFF);
+                }
+            }
+            out.write(chars, 0, n);
+            remaining -= n;
+        }
+    }
+
+    private void ensureCapacity(int extra) {
+        if (buffer.remaining() >= extra) {
+            return;
+        }
+        int capacity = buffer.capacity();
+        while (capacity - buffer.position() < extra) {
+            capacity = capacity > Integer.MAX_VALUE / 2 ? Integer.MAX_VALUE : capacity * 2;
+            if (capacity == Integer.MAX_VALUE) {
+                break;
+            }
+        }
+        ByteBuffer larger = ByteBuffer.allocateDirect(capacity);
+        buffer.flip();
+        larger.put(buffer);
+        buffer = larger;
+    }
+
+    private static boolean isSpace(char c) {
+        // \s in a regular expression
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+}
@@ -12,6 +12,31 @@ public class Options {
     private boolean digest = false;
     private boolean help = false;
     private boolean munge = false;
+    private boolean parallel = false;
+    private boolean singlePass = false;
+    private boolean stream = false;
+    private boolean mergeRules = false;
+    private boolean bundle = false;
+    private boolean removeUnused = false;
+    private String templates;
+    private String safelist;
+    private String defines;
+    private String peepholes;
+    private String stripCalls;
+    private String symbolMap;
+    private String mangleProps;
+    private String reservedProps;
+    private String propsMap;
+    private String cssNames;
+    private String reservedCssNames;
+    private String cssNamesMap;
+    private int shardIndex = 0;
+    private int shardCount = 1;
+    private boolean shardBySize = false;
+    private String manifest;
+    private String mergeManifests;
+    private int dataUriThreshold = -1;
+    private String cssRules;
 
     private String charSet;
     private String type;
@@ -32,6 +57,110 @@ public class Options {
         return munge;
     }
 
+    public boolean isParallel() {
+        return parallel;
+    }
+
+    public boolean isSinglePass() {
+        return singlePass;
+    }
+
+    public boolean isStream() {
+        return stream;
+    }
+
+    public boolean isMergeRules() {
+        return mergeRules;
+    }
+
+    public boolean isBundle() {
+        return bundle;
+    }
+
+    public boolean isRemoveUnused() {
+        return removeUnused;
+    }
+
+    public String getSymbolMap() {
+        return symbolMap;
+    }
+
+    public String getMangleProps() {
+        return mangleProps;
+    }
+
+    public String getReservedProps() {
+        return reservedProps;
+    }
+
+    public String getPropsMap() {
+        return propsMap;
+    }
+
+    public String getCssNames() {
+        return cssNames;
+    }
+
+    public String getReservedCssNames() {
+        return reservedCssNames;
+    }
+
+    public String getCssNamesMap() {
+        return cssNamesMap;
+    }
+
+    /**
+     * Returns the shard to compress, from 0, when the files are split
+     * between {@link #getShardCount()} runs.
+     */
+    public int getShardIndex() {
+        return shardIndex;
+    }
+
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    public boolean isShardBySize() {
+        return shardBySize;
+    }
+
+    public String getManifest() {
+        return manifest;
+    }
+
+    public String getMergeManifests() {
+        return mergeManifests;
+    }
+
+    public String getTemplates() {
+        return templates;
+    }
+
+    public String getSafelist() {
+        return safelist;
+    }
+
+    public String getDefines() {
+        return defines;
+    }
+
+    public String getPeepholes() {
+        return peepholes;
+    }
+
+    public String getStripCalls() {
+        return stripCalls;
+    }
+
+    public int getDataUriThreshold() {
+        return dataUriThreshold;
+    }
+
+    public String getCssRules() {
+        return cssRules;
+    }
+
     public String getCharSet() {
         return charSet;
     }
@@ -79,6 +208,30 @@ public class Options {
         CmdLineParser.Option outputDirOpt = parser.addStringOption('o', "output");
         CmdLineParser.Option digestOpt = parser.addBooleanOption('d', "digest");
         CmdLineParser.Option replacePatternOpt = parser.addStringOption('p', "pattern");
+        CmdLineParser.Option parallelOpt = parser.addBooleanOption("parallel");
+        CmdLineParser.Option singlePassOpt = parser.addBooleanOption("single-pass");
+        CmdLineParser.Option streamOpt = parser.addBooleanOption("stream");
+        CmdLineParser.Option mergeRulesOpt = parser.addBooleanOption("merge-rules");
+        CmdLineParser.Option bundleOpt = parser.addBooleanOption("bundle");
+        CmdLineParser.Option templatesOpt = parser.addStringOption("templates");
+        CmdLineParser.Option safelistOpt = parser.addStringOption("safelist");
+        CmdLineParser.Option defineOpt = parser.addStringOption("define");
+        CmdLineParser.Option peepholeOpt = parser.addStringOption("peephole");
+        CmdLineParser.Option stripCallsOpt = parser.addStringOption("strip-calls");
+        CmdLineParser.Option removeUnusedOpt = parser.addBooleanOption("remove-unused");
+        CmdLineParser.Option symbolMapOpt = parser.addStringOption("symbol-map");
+        CmdLineParser.Option manglePropsOpt = parser.addStringOption("mangle-props");
+        CmdLineParser.Option reservedPropsOpt = parser.addStringOption("reserved-props");
+        CmdLineParser.Option propsMapOpt = parser.addStringOption("props-map");
+        CmdLineParser.Option cssNamesOpt = parser.addStringOption("css-names");
+        CmdLineParser.Option reservedCssNamesOpt = parser.addStringOption("reserved-css-names");
+        CmdLineParser.Option cssNamesMapOpt = parser.addStringOption("css-names-map");
+        CmdLineParser.Option shardOpt = parser.addStringOption("shard");
+        CmdLineParser.Option shardBySizeOpt = parser.addBooleanOption("shard-by-size");
+        CmdLineParser.Option manifestOpt = parser.addStringOption("manifest");
+        CmdLineParser.Option mergeManifestsOpt = parser.addStringOption("merge-manifests");
+        CmdLineParser.Option dataUriThresholdOpt = parser.addStringOption("data-uri-threshold");
+        CmdLineParser.Option cssRulesOpt = parser.addStringOption("css-rules");
 
         try {
             parser.parse(args);
@@ -94,13 +247,69 @@ public class Options {
         munge = Optional.ofNullable((Boolean) parser.getOptionValue(mungeOpt)).orElse(false);
         digest = Optional.ofNullable((Boolean) parser.getOptionValue(digestOpt)).orElse(false);
         help = Optional.ofNullable((Boolean) parser.getOptionValue(helpOpt)).orElse(false);
+        parallel = Optional.ofNullable((Boolean) parser.getOptionValue(parallelOpt)).orElse(false);
+        singlePass = Optional.ofNullable((Boolean) parser.getOptionValue(singlePassOpt)).orElse(false);
+        stream = Optional.ofNullable((Boolean) parser.getOptionValue(streamOpt)).orElse(false);
+        mergeRules = Optional.ofNullable((Boolean) parser.getOptionValue(mergeRulesOpt)).orElse(false);
+        bundle = Optional.ofNullable((Boolean) parser.getOptionValue(bundleOpt)).orElse(false);
+        removeUnused = Optional.ofNullable((Boolean) parser.getOptionValue(removeUnusedOpt)).orElse(false);
+        templates = Optional.ofNullable((String) parser.getOptionValue(templatesOpt)).orElse(null);
+        safelist = Optional.ofNullable((String) parser.getOptionValue(safelistOpt)).orElse(null);
+        defines = Optional.ofNullable((String) parser.getOptionValue(defineOpt)).orElse(null);
+        peepholes = Optional.ofNullable((String) parser.getOptionValue(peepholeOpt)).orElse(null);
+        stripCalls = Optional.ofNullable((String) parser.getOptionValue(stripCallsOpt)).orElse(null);
+        symbolMap = Optional.ofNullable((String) parser.getOptionValue(symbolMapOpt)).orElse(null);
+        mangleProps = Optional.ofNullable((String) parser.getOptionValue(manglePropsOpt)).orElse(null);
+        reservedProps = Optional.ofNullable((String) parser.getOptionValue(reservedPropsOpt)).orElse(null);
+        propsMap = Optional.ofNullable((String) parser.getOptionValue(propsMapOpt)).orElse(null);
+        cssNames = Optional.ofNullable((String) parser.getOptionValue(cssNamesOpt)).orElse(null);
+        reservedCssNames = Optional.ofNullable((String) parser.getOptionValue(reservedCssNamesOpt)).orElse(null);
+        cssNamesMap = Optional.ofNullable((String) parser.getOptionValue(cssNamesMapOpt)).orElse(null);
+        shardBySize = Optional.ofNullable((Boolean) parser.getOptionValue(shardBySizeOpt)).orElse(false);
+        manifest = Optional.ofNullable((String) parser.getOptionValue(manifestOpt)).orElse(null);
+        mergeManifests = Optional.ofNullable((String) parser.getOptionValue(mergeManifestsOpt)).orElse(null);
         charSet = Optional.ofNullable((String) parser.getOptionValue(charsetOpt)).orElse("UTF-8");
-        type = Optional.ofNullable((String) parser.getOptionValue(typeOpt)).orElseThrow(() -> new IllegalArgumentException("Option --type is mandatory"));
+        type = Optional.ofNullable((String) parser.getOptionValue(typeOpt)).orElse(null);
+        if (type == null && mergeManifests == null) {
+            // Merging manifests does not compress anything
+            throw new IllegalArgumentException("Option --type is mandatory");
+        }
         inputDir = Optional.ofNullable((String) parser.getOptionValue(inputDirOpt)).orElse(".");
         outputDir = Optional.ofNullable((String) parser.getOptionValue(outputDirOpt)).orElse(".");
+        cssRules = Optional.ofNullable((String) parser.getOptionValue(cssRulesOpt)).orElse(null);
         replacePattern = Optional.ofNullable((String) parser.getOptionValue(replacePatternOpt)).orElse(null);
 
-        if (!type.equalsIgnoreCase(YUICompressor.JS) && !type.equalsIgnoreCase(YUICompressor.CSS)) {
+        String threshold = (String) parser.getOptionValue(dataUriThresholdOpt);
+        if (threshold != null) {
+            try {
+                dataUriThreshold = Integer.parseInt(threshold);
+            } catch (NumberFormatException e) {
+                dataUriThreshold = -1;
+            }
+            if (dataUriThreshold < 0) {
+                throw new CmdLineParser.IllegalOptionValueException(dataUriThresholdOpt, threshold);
+            }
+        }
+
+        String shard = (String) parser.getOptionValue(shardOpt);
+        if (shard != null) {
+            String[] parts = shard.split("/");
+            try {
+                shardIndex = Integer.parseInt(parts[0]) - 1;
+                shardCount = parts.length == 2 ? Integer.parseInt(parts[1]) : 0;
+            } catch (NumberFormatException e) {
+                shardCount = 0;
+            }
+            if (shardCount < 1 || shardIndex < 0 || shardIndex >= shardCount) {
+                throw new CmdLineParser.IllegalOptionValueException(shardOpt, shard);
+            }
+        }
+        if (shardCount > 1 && (symbolMap != null || mangleProps != null || cssNames != null)) {
+            // Each shard would give its own names, and save them over the others
+            throw new IllegalArgumentException("Options --symbol-map, --mangle-props and --css-names cannot be used with --shard");
+        }
+
+        if (type != null && !type.equalsIgnoreCase(YUICompressor.JS) && !type.equalsIgnoreCase(YUICompressor.CSS)) {
             throw new CmdLineParser.IllegalOptionValueException(typeOpt, "Only js or css are allowed.");
         }
     }
@@ -117,6 +326,55 @@ public class Options {
                         + "  --charset <charset>       Read the input file using <charset>\n"
                         + "  -v, --verbose             Display informational messages and warnings\n"
                         + "  -d, --digest              Append a MD5 checksum (abbrev. to first 6 chars) of the file content to the filename.\n"
+                        + "  --parallel                Use several threads to compress each single file.\n"
+                        + "                              The output is the same as without this option.\n"
+                        + "  --single-pass             Compress CSS files with the faster single-pass engine.\n"
+                        + "                              The output is the same for well-formed stylesheets.\n"
+                        + "  --stream                  Compress CSS files a window of rules at a time, so that memory\n"
+                        + "                              does not grow with the size of the file. Implies --single-pass.\n"
+                        + "  --merge-rules             Merge the CSS rules with the same selector or declarations, and the\n"
+                        + "                              @media blocks with the same condition. Not done with --stream.\n"
+                        + "  --bundle                  Replace the @import rules of each CSS file with the local files they import,\n"
+                        + "                              and remove the rules repeated in the result.\n"
+                        + "  --templates <paths>       Comma-separated templates and scripts, or directories of them. The CSS\n"
+                        + "                              selectors using names found in none of them are removed. Not done with --stream.\n"
+                        + "  --safelist <names>        Comma-separated class names, ids and tag names to keep with --templates.\n"
+                        + "                              A name ending with * stands for all the names it starts.\n"
+                        + "  --define <NAME=value>     Comma-separated JavaScript globals replaced with literal values: true, false,\n"
+                        + "                              null, a number or a quoted string. The branches they rule out are removed.\n"
+                        + "  --peephole <passes>       Comma-separated JavaScript peephole passes to run: booleans, undefined\n"
+                        + "                              and strings, all of them, or all but the ones prefixed with -.\n"
+                        + "                              With -v, the passes are listed with the characters they saved.\n"
+                        + "  --strip-calls <names>     Comma-separated JavaScript functions whose call statements are removed,\n"
+                        + "                              such as console.log,assert.\n"
+                        + "  --remove-unused           Remove the local JavaScript functions and variables that are never used,\n"
+                        + "                              unless the initial value of a variable may have side effects.\n"
+                        + "  --symbol-map <file>       Give the local JavaScript symbols the names the file gave them in the\n"
+                        + "                              previous build, when still free, and save the names given to <file>.\n"
+                        + "  --mangle-props <regex>    Rename the JavaScript properties whose names match <regex>, such as ^_,\n"
+                        + "                              the same way in all the files. Quoted properties are left as they are.\n"
+                        + "  --reserved-props <names>  Comma-separated property names never renamed nor given by --mangle-props.\n"
+                        + "  --props-map <file>        Save the properties renamed by --mangle-props and their new names to <file>.\n"
+                        + "  --css-names <regex>       Rename the CSS class names and ids matching <regex> to short names.\n"
+                        + "                              Not done with --stream.\n"
+                        + "  --reserved-css-names <names>\n"
+                        + "                            Comma-separated class names and ids never renamed nor given by --css-names.\n"
+                        + "  --css-names-map <file>    The class names and ids renamed: read, and saved with the names given by\n"
+                        + "                              --css-names. With --type js, they are renamed in the strings passed\n"
+                        + "                              to querySelector, classList.add and the like.\n"
+                        + "  --data-uri-threshold <n>  Keep CSS data URIs longer than <n> characters off the heap\n"
+                        + "                              while compressing. Useful for stylesheets embedding large files.\n"
+                        + "  --css-rules <rules>       Comma-separated CSS rules to apply, in this order, or the rules to leave out,\n"
+                        + "                              each prefixed with -. With -v, the rules are listed with their statistics.\n"
+                        + "  --shard <i/n>             Only compress the i-th of n shards of the files, from 1/n to n/n, picked by\n"
+                        + "                              a hash of their paths. The output directory is not emptied first.\n"
+                        + "                              Not allowed with --symbol-map, --mangle-props and --css-names, but\n"
+                        + "                              --css-names-map alone gives the names of a previous build to all shards.\n"
+                        + "  --shard-by-size           Balance the shards by the size of the files instead. All the shards must\n"
+                        + "                              see the same files.\n"
+                        + "  --manifest <file>         Save the files compressed, their output names and sizes, and the statistics.\n"
+                        + "  --merge-manifests <files> Merge comma-separated manifests, such as the ones of the shards, into the\n"
+                        + "                              one of --manifest, without compressing anything. --type is not needed.\n"
                         + "  -p <pattern>              Pattern to replace parts of the input filename for the output filename.\n"
                         + "                              Format: fromPatter$toPattern. See String.replace for details.\n"
                         + "                              Example: '.js:-min.js' : Replace .js with -min.js\n"
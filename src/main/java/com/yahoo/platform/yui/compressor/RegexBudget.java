@@ -0,0 +1,93 @@
+package com.yahoo.platform.yui.compressor;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * RegexBudget bounds the work of the regular expressions CssCompressor runs
+ * over a whole stylesheet. Some of them nest quantifiers or search for a
+ * distant brace from every match, and take a time that grows much faster
+ * than the stylesheet on malformed or generated input.
+ * <p>
+ * The text is handed to the regular expressions through a view that counts
+ * the characters they read. The count for one stylesheet is limited to a
+ * multiple of its length; past it, {@link Exceeded} is thrown, so that the
+ * compressor can give up in linear time and take a safe path instead. An
+ * instance must not be used by several threads at the same time.
+ */
+final class RegexBudget {
+
+    /**
+     * The characters the regular expressions may read for each character of
+     * the stylesheet. Well-formed stylesheets take a few hundred at most.
+     */
+    static final int STEPS_PER_CHAR = 1000;
+
+    private static final int MIN_STEPS = 1 << 20;
+
+    /**
+     * Thrown when the regular expressions have read more than their budget.
+     */
+    static final class Exceeded extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Exceeded() {
+            super("The regular expressions have read more than " + STEPS_PER_CHAR
+                    + " characters for each character of the stylesheet", null, false, false);
+        }
+    }
+
+    private long remaining = Long.MAX_VALUE;
+
+    /**
+     * Sets the budget for a stylesheet of the specified length.
+     */
+    void reset(int length) {
+        remaining = (long) STEPS_PER_CHAR * length + MIN_STEPS;
+    }
+
+    /**
+     * Lifts the limit.
+     */
+    void clear() {
+        remaining = Long.MAX_VALUE;
+    }
+
+    Matcher matcher(Pattern p, CharSequence text) {
+        return p.matcher(new CountingText(text));
+    }
+
+    String replaceAll(CharSequence text, String regex, String replacement) {
+        return matcher(Pattern.compile(regex), text).replaceAll(replacement);
+    }
+
+    private final class CountingText implements CharSequence {
+
+        private final CharSequence text;
+
+        CountingText(CharSequence text) {
+            this.text = text;
+        }
+
+        public char charAt(int index) {
+            if (--remaining < 0) {
+                throw new Exceeded();
+            }
+            return text.charAt(index);
+        }
+
+        public int length() {
+            return text.length();
+        }
+
+        public CharSequence subSequence(int start, int end) {
+            // Only used to copy groups and text out of the matcher
+            return text.subSequence(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return text.toString();
+        }
+    }
+}
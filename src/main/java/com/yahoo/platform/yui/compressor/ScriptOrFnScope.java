@@ -19,6 +19,9 @@ class ScriptOrFnScope {
     private Hashtable<String, String> hints = new Hashtable<>();
     private boolean markedForMunging = true;
     private int varcount = 0;
+    private String name = "";
+    // How many sub-scopes have been given each name
+    private final Map<String, Integer> subScopeNames = new HashMap<>();
 
     ScriptOrFnScope(int braceNesting, ScriptOrFnScope parentScope) {
         this.braceNesting = braceNesting;
@@ -29,6 +32,19 @@ class ScriptOrFnScope {
         }
     }
 
+    /*
+     * Forgets everything declared in this scope, so that the global scope
+     * of a recycled compressor can be used for another input.
+     */
+    void reset() {
+        identifiers.clear();
+        hints.clear();
+        subScopes.clear();
+        subScopeNames.clear();
+        markedForMunging = true;
+        varcount = 0;
+    }
+
     int getBraceNesting() {
         return braceNesting;
     }
@@ -37,6 +53,25 @@ class ScriptOrFnScope {
         return parentScope;
     }
 
+    /*
+     * Names a function scope after its function, or after what the function
+     * is assigned to, or "" if anonymous. The sub-scopes of the same scope
+     * with the same name are told apart by #1, #2 and so on, and the
+     * anonymous ones are named #0, #1 and so on.
+     */
+    void setName(String name) {
+        int count = parentScope.subScopeNames.merge(name, 1, Integer::sum) - 1;
+        this.name = name.isEmpty() || count > 0 ? name + "#" + count : name;
+    }
+
+    /*
+     * Returns the names of the scopes from the global scope to this one,
+     * each of them preceded by a slash, or "" for the global scope.
+     */
+    String getPath() {
+        return parentScope == null ? "" : parentScope.getPath() + "/" + name;
+    }
+
     JavaScriptIdentifier declareIdentifier(String symbol) {
         JavaScriptIdentifier identifier = (JavaScriptIdentifier) identifiers.get(symbol);
         if (identifier == null) {
@@ -56,8 +91,9 @@ class ScriptOrFnScope {
 
     void preventMunging() {
         if (parentScope != null) {
-            // The symbols in the global scope don't get munged,
-            // but the sub-scopes it contains do get munged.
+            // The symbols in the global scope don't get munged, and neither
+            // do the symbols of a scope seen by eval or with, but the
+            // sub-scopes they contain do get munged.
             markedForMunging = false;
         }
     }
@@ -76,7 +112,7 @@ class ScriptOrFnScope {
         return result;
     }
 
-    private ArrayList getAllUsedSymbols() {
+    private ArrayList<String> getAllUsedSymbols() {
         ArrayList<String> result = new ArrayList<>();
         ScriptOrFnScope scope = this;
         while (scope != null) {
@@ -86,6 +122,10 @@ class ScriptOrFnScope {
         return result;
     }
 
+    boolean isMarkedForMunging() {
+        return markedForMunging;
+    }
+
     int incrementVarCount() {
         varcount++;
         return varcount;
@@ -111,16 +151,66 @@ class ScriptOrFnScope {
     }
 
     void munge() {
+        munge(false, null, null);
+    }
 
-        if (!markedForMunging) {
-            // Stop right here if this scope was flagged as unsafe for munging.
-            return;
+    /*
+     * Gives the symbols of this scope the names the map gave them in the
+     * same script, if the names are still free.
+     */
+    private void keepMungedValues(JavaScriptSymbolMap symbols, String script) {
+        Set<String> usedSymbols = new HashSet<>(getAllUsedSymbols());
+        String path = getPath();
+        for (JavaScriptIdentifier identifier : identifiers.values()) {
+            if (!identifier.isMarkedForMunging()) {
+                continue;
+            }
+            String mungedValue = symbols.get(script, path, identifier.getValue());
+            if (mungedValue != null && !usedSymbols.contains(mungedValue)
+                    && JavaScriptCompressor.isMungedName(mungedValue)) {
+                identifier.setMungedValue(mungedValue);
+                usedSymbols.add(mungedValue);
+            }
         }
+    }
+
+    /*
+     * Records the names given to the symbols of this scope and of its
+     * sub-scopes in the map.
+     */
+    void putMungedValues(JavaScriptSymbolMap symbols, String script) {
+        if (markedForMunging && parentScope != null) {
+            String path = getPath();
+            for (JavaScriptIdentifier identifier : identifiers.values()) {
+                if (identifier.isMarkedForMunging() && identifier.getMungedValue() != null) {
+                    symbols.put(script, path, identifier.getValue(), identifier.getMungedValue());
+                }
+            }
+        }
+        for (ScriptOrFnScope scope : subScopes) {
+            scope.putMungedValues(symbols, script);
+        }
+    }
+
+    /*
+     * Munges the symbols of this scope and of its sub-scopes. In parallel
+     * mode, the direct sub-scopes are munged concurrently: sibling scopes
+     * only depend on the symbols used by their common ancestors, which are
+     * munged first, so the result is the same as in sequential mode. The
+     * symbols of a script given a name by the map, if not null, keep it
+     * when it is free.
+     */
+    void munge(boolean parallel, JavaScriptSymbolMap symbols, String script) {
 
         int pickFromSet = 1;
 
-        // Do not munge symbols in the global scope!
-        if (parentScope != null) {
+        // Do not munge symbols in the global scope, nor in a scope flagged
+        // as unsafe for munging! Its sub-scopes are munged all the same.
+        if (parentScope != null && markedForMunging) {
+
+            if (symbols != null) {
+                keepMungedValues(symbols, script);
+            }
 
             LinkedHashSet<String> freeSymbols = new LinkedHashSet<>();
 
@@ -160,6 +250,10 @@ class ScriptOrFnScope {
 
                 String mungedValue;
                 JavaScriptIdentifier identifier = (JavaScriptIdentifier) elements.nextElement();
+                if (identifier.getMungedValue() != null) {
+                    // Kept from the map
+                    continue;
+                }
                 if (identifier.isMarkedForMunging()) {
                     Iterator freeSymIt = freeSymbols.iterator();
                     mungedValue = (String) freeSymIt.next();
@@ -171,9 +265,13 @@ class ScriptOrFnScope {
             }
         }
 
-        for (int i = 0; i < subScopes.size(); i++) {
-            ScriptOrFnScope scope = (ScriptOrFnScope) subScopes.get(i);
-            scope.munge();
+        if (parallel) {
+            subScopes.parallelStream().forEach(scope -> scope.munge(false, symbols, script));
+        } else {
+            for (int i = 0; i < subScopes.size(); i++) {
+                ScriptOrFnScope scope = (ScriptOrFnScope) subScopes.get(i);
+                scope.munge(false, symbols, script);
+            }
         }
     }
 }
@@ -0,0 +1,206 @@
+package com.yahoo.platform.yui.compressor;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * SelectorNames gives the CSS class names and ids matching a pattern short
+ * names, taken from the sequence the local JavaScript symbols are munged
+ * to, and remembers them, so that the stylesheets, scripts and templates of
+ * a site can be renamed the same way: the stylesheets by a
+ * {@link CssCompressor}, which gives the names, the scripts by a
+ * {@link JavaScriptCompressor}, which renames the strings passed to the
+ * DOM methods taking selectors or class names, and the templates on the
+ * server side, from the saved map. The map is saved as lines of
+ * tab-separated name and short name:
+ * <pre>
+ * product-listing__item--highlighted	a
+ * </pre>
+ * Class names and ids share the short names, so that a name used as both
+ * is given one. The names used most in a stylesheet get the shortest ones.
+ * A short name is never a reserved name, nor a class name or id of the
+ * stylesheet that is not renamed.
+ * <p>
+ * An instance must not be used by several threads at the same time.
+ */
+public final class SelectorNames {
+
+    private final Pattern pattern;
+    private final Set<String> reserved = new HashSet<>();
+    // The names renamed so far, in the order they were given a short name
+    private final Map<String, String> names = new LinkedHashMap<>();
+    private final Set<String> given = new HashSet<>();
+    // The index of the next munged name to try
+    private int next;
+
+    /**
+     * @param pattern  the names to rename, found anywhere in the name, or
+     *                 null to only rename the names already in the map
+     * @param reserved the names never renamed nor given
+     */
+    public SelectorNames(Pattern pattern, Collection<String> reserved) {
+        this.pattern = pattern;
+        for (String name : reserved) {
+            this.reserved.add(name.trim());
+        }
+    }
+
+    /**
+     * Reads a map saved by {@link #write(Writer)}, so that the names it
+     * holds keep their short names. Blank lines and the lines starting
+     * with # are ignored.
+     *
+     * @throws IOException if a line does not have two fields
+     */
+    public void read(Reader in) throws IOException {
+        BufferedReader reader = new BufferedReader(in);
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.isBlank() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\t");
+            if (fields.length != 2) {
+                throw new IOException("Expected a name and a short name on line " + lineNumber);
+            }
+            names.put(fields[0], fields[1]);
+            given.add(fields[1]);
+        }
+    }
+
+    /**
+     * Writes the names renamed and their short names, in the order they
+     * were given.
+     */
+    public void write(Writer out) throws IOException {
+        for (Map.Entry<String, String> entry : names.entrySet()) {
+            out.write(entry.getKey());
+            out.write('\t');
+            out.write(entry.getValue());
+            out.write('\n');
+        }
+        out.flush();
+    }
+
+    /**
+     * Returns the names renamed so far and their short names.
+     */
+    public Map<String, String> getNames() {
+        return Collections.unmodifiableMap(names);
+    }
+
+    /*
+     * Returns the short name of a name, or null if it is not renamed.
+     */
+    String get(String name) {
+        return names.get(name);
+    }
+
+    /*
+     * Returns whether a name still without a short name is to be given one.
+     */
+    boolean matches(String name) {
+        return pattern != null && !names.containsKey(name) && !reserved.contains(name)
+                && pattern.matcher(name).find();
+    }
+
+    /*
+     * Gives short names to the names of a stylesheet that match, the most
+     * used first, and none of the names taken by the stylesheet.
+     */
+    void give(Map<String, Integer> counts, Set<String> taken) {
+        List<String> matching = new ArrayList<>(counts.keySet());
+        matching.removeIf(name -> !matches(name));
+        matching.sort((a, b) -> counts.get(b) - counts.get(a) != 0 ? counts.get(b) - counts.get(a) : a.compareTo(b));
+        for (String name : matching) {
+            String shortName;
+            while ((shortName = JavaScriptCompressor.mungedName(next)) != null
+                    && (given.contains(shortName) || reserved.contains(shortName) || taken.contains(shortName))) {
+                next++;
+            }
+            if (shortName == null) {
+                return;
+            }
+            next++;
+            names.put(name, shortName);
+            given.add(shortName);
+        }
+    }
+
+    /*
+     * Renames the class names and ids of a selector, the names after a dot
+     * or a number sign. A name with an escape is left as it is.
+     */
+    String renameSelector(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        boolean renamed = false;
+        int i = 0;
+        while (i < s.length()) {
+            char c = s.charAt(i);
+            if (c == '\\') {
+                int end = Math.min(i + 2, s.length());
+                sb.append(s, i, end);
+                i = end;
+                continue;
+            }
+            sb.append(c);
+            i++;
+            if (c != '.' && c != '#') {
+                continue;
+            }
+            int end = i;
+            while (end < s.length() && isNameChar(s.charAt(end))) {
+                end++;
+            }
+            String word = s.substring(i, end);
+            String shortName = end < s.length() && s.charAt(end) == '\\' ? null : names.get(word);
+            sb.append(shortName != null ? shortName : word);
+            renamed |= shortName != null;
+            i = end;
+        }
+        return renamed ? sb.toString() : s;
+    }
+
+    /*
+     * Renames the class names or ids of a list separated by white space,
+     * such as the value of a class attribute.
+     */
+    String renameList(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        boolean renamed = false;
+        int i = 0;
+        while (i < s.length()) {
+            if (Character.isWhitespace(s.charAt(i))) {
+                sb.append(s.charAt(i++));
+                continue;
+            }
+            int end = i;
+            while (end < s.length() && !Character.isWhitespace(s.charAt(end))) {
+                end++;
+            }
+            String word = s.substring(i, end);
+            String shortName = names.get(word);
+            sb.append(shortName != null ? shortName : word);
+            renamed |= shortName != null;
+            i = end;
+        }
+        return renamed ? sb.toString() : s;
+    }
+
+    static boolean isNameChar(char c) {
+        return c == '-' || c == '_' || Character.isLetterOrDigit(c);
+    }
+}
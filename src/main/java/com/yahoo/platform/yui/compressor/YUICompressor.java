@@ -13,11 +13,14 @@ import org.apache.commons.io.FileUtils;
 
 import java.io.*;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.zip.CRC32;
+import java.util.regex.Pattern;
 
 public class YUICompressor {
 
@@ -25,6 +28,9 @@ public class YUICompressor {
     public static final String CSS = "css";
     public static final String JS = "js";
 
+    // The files indexed when a directory of templates is given
+    static final String TEMPLATES = "{html,htm,xhtml,js,mjs,jsx,ts,tsx,vue,svelte,php,jsp,erb,hbs,mustache,twig}";
+
     /**
      * The entrypoint if called from external (eg. CLI or Maven)
      *
@@ -50,23 +56,95 @@ public class YUICompressor {
             System.exit(0);
         }
 
+        if (options.getMergeManifests() != null) {
+            mergeManifests(options);
+            return;
+        }
+
         if (options.isVerbose()) {
             System.err.println("\n[INFO] Using charset " + options.getCharSet());
         }
 
-        try {
-            FileUtils.deleteDirectory(Path.of(options.getOutputDir()).toFile());
-        } catch (IOException e) {
-            throw new RuntimeException("Cannot delete output directory " + options.getOutputDir(), e);
+        // The shards may share the output directory
+        if (options.getShardCount() == 1) {
+            try {
+                FileUtils.deleteDirectory(Path.of(options.getOutputDir()).toFile());
+            } catch (IOException e) {
+                throw new RuntimeException("Cannot delete output directory " + options.getOutputDir(), e);
+            }
         }
 
         var type = options.getType();
         List<Path> files = collectFiles(Path.of(options.getInputDir()), type);
+        if (options.getShardCount() > 1) {
+            int total = files.size();
+            files = selectShard(files, Path.of(options.getInputDir()), options.getShardIndex(), options.getShardCount(),
+                    options.isShardBySize());
+            if (options.isVerbose()) {
+                System.err.println("\n[INFO] Shard " + (options.getShardIndex() + 1) + "/" + options.getShardCount()
+                        + ": " + files.size() + " of " + total + " files");
+            }
+        }
+        BuildManifest manifest = options.getManifest() != null ? new BuildManifest() : null;
+
+        // One instance of each compressor is recycled for all the files
+        JavaScriptCompressor jsCompressor = new JavaScriptCompressor();
+        jsCompressor.setParallel(options.isParallel());
+        jsCompressor.setRemoveUnused(options.isRemoveUnused());
+        if (options.getDefines() != null) {
+            jsCompressor.setDefines(parseDefines(options.getDefines()));
+        }
+        if (options.getStripCalls() != null) {
+            jsCompressor.setStripCalls(Arrays.asList(options.getStripCalls().split(",")));
+        }
+        if (options.getPeepholes() != null) {
+            jsCompressor.setPeepholes(selectPeepholes(options.getPeepholes()));
+        }
+        if (options.getMangleProps() != null) {
+            jsCompressor.setMangleProperties(Pattern.compile(options.getMangleProps()),
+                    options.getReservedProps() != null
+                            ? Arrays.asList(options.getReservedProps().split(",")) : List.of());
+        }
+        SelectorNames selectorNames = null;
+        if (options.getCssNames() != null || options.getCssNamesMap() != null) {
+            selectorNames = readSelectorNames(options);
+            if (type.equalsIgnoreCase(JS)) {
+                jsCompressor.setSelectorNames(selectorNames);
+            }
+        }
+        JavaScriptSymbolMap symbolMap = null;
+        if (options.getSymbolMap() != null) {
+            symbolMap = readSymbolMap(Path.of(options.getSymbolMap()), options.getCharSet());
+        }
+        CssCompressor cssCompressor = new CssCompressor();
+        cssCompressor.setSinglePass(options.isSinglePass());
+        cssCompressor.setParallel(options.isParallel());
+        cssCompressor.setMergeRules(options.isMergeRules());
+        cssCompressor.setDataUriThreshold(options.getDataUriThreshold());
+        if (options.getCssRules() != null) {
+            cssCompressor.setRules(selectCssRules(options.getCssRules()));
+        }
+        CssBundler bundler = null;
+        if (options.isBundle()) {
+            bundler = new CssBundler(Charset.forName(options.getCharSet()));
+            cssCompressor.setRemoveDuplicateRules(true);
+        }
+        if (options.getTemplates() != null) {
+            addTemplates(cssCompressor, options.getTemplates(), options.getCharSet());
+        }
+        if (options.getSafelist() != null) {
+            cssCompressor.setSafelist(Arrays.asList(options.getSafelist().split(",")));
+        }
+        if (selectorNames != null && type.equalsIgnoreCase(CSS)) {
+            cssCompressor.setSelectorNames(selectorNames);
+        }
 
         for (Path inputFilename : files) {
             String outputFilename = null;
+            long inputBytes = 0;
 
             try {
+                inputBytes = Files.size(inputFilename);
                 in = new InputStreamReader(new FileInputStream(inputFilename.toString()), options.getCharSet());
 
                 // Get the path relative to the inputDir
@@ -81,7 +159,12 @@ public class YUICompressor {
 
                 if (type.equalsIgnoreCase(JS)) {
 
-                    JavaScriptCompressor compressor = new JavaScriptCompressor(in, new YUIErrorReporter(inputFilename));
+                    JavaScriptCompressor compressor = jsCompressor;
+                    compressor.reset(in, new YUIErrorReporter(inputFilename));
+                    if (symbolMap != null) {
+                        // The same script wherever the input directory is
+                        compressor.setSymbolMap(symbolMap, relFilename.toString().replace(File.separatorChar, '/'));
+                    }
 
                     // Close the input stream first, and then open the output stream,
                     // in case the output file should override the input file.
@@ -95,16 +178,37 @@ public class YUICompressor {
 
                 } else if (type.equalsIgnoreCase(CSS)) {
 
-                    CssCompressor compressor = new CssCompressor(in);
+                    CssCompressor compressor = cssCompressor;
+                    compressor.setErrorReporter(new YUIErrorReporter(inputFilename));
 
-                    // Close the input stream first, and then open the output stream,
-                    // in case the output file should override the input file.
-                    in.close();
-                    in = null;
+                    if (bundler != null) {
+                        bundler.setErrorReporter(new YUIErrorReporter(inputFilename));
+                        String bundle = bundler.bundle(inputFilename);
+                        in.close();
+                        in = new StringReader(bundle);
+                        if (options.isVerbose()) {
+                            System.err.println("\n[INFO] Bundled " + bundler.getInlined() + " imports into " + outputFilename);
+                        }
+                    }
 
-                    out = createOutputFile(outputFilename, options);
+                    // Streaming needs the input open while the output is
+                    // written, so it is not possible when they are the same file
+                    if (options.isStream() && !Path.of(outputFilename).toAbsolutePath().normalize()
+                            .equals(inputFilename.toAbsolutePath().normalize())) {
+                        out = createOutputFile(outputFilename, options);
+                        compressor.compress(in, out, -1);
+                    } else {
+                        compressor.reset(in);
+
+                        // Close the input stream first, and then open the output stream,
+                        // in case the output file should override the input file.
+                        in.close();
+                        in = null;
 
-                    compressor.compress(out, -1);
+                        out = createOutputFile(outputFilename, options);
+
+                        compressor.compress(out, -1);
+                    }
                 }
 
             } catch (IOException e) {
@@ -130,10 +234,233 @@ public class YUICompressor {
             if (options.isDigest()) {
                 var newFilename = generateNewFilename(digest, outputFilename);
                 new File(outputFilename).renameTo(new File(newFilename));
+                outputFilename = newFilename;
+            }
+
+            if (manifest != null) {
+                try {
+                    manifest.addFile(relativePath(Path.of(options.getInputDir()), inputFilename),
+                            relativePath(Path.of(options.getOutputDir()), Path.of(outputFilename)),
+                            inputBytes, Files.size(Path.of(outputFilename)));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+
+        if (symbolMap != null) {
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(options.getSymbolMap()), options.getCharSet())) {
+                symbolMap.write(writer);
+            } catch (IOException e) {
+                throw new RuntimeException("Cannot write the symbol map " + options.getSymbolMap(), e);
+            }
+            if (options.isVerbose()) {
+                System.err.println("\n[INFO] Saved " + symbolMap.size() + " munged names to " + options.getSymbolMap());
+            }
+        }
+        // Without --css-names, no name is given and the map is only read, as by shards
+        if (selectorNames != null && type.equalsIgnoreCase(CSS) && options.getCssNames() != null
+                && options.getCssNamesMap() != null) {
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(options.getCssNamesMap()), options.getCharSet())) {
+                selectorNames.write(writer);
+            } catch (IOException e) {
+                throw new RuntimeException("Cannot write the CSS names map " + options.getCssNamesMap(), e);
+            }
+        }
+        if (options.isVerbose() && selectorNames != null) {
+            System.err.println("\n[INFO] " + selectorNames.getNames().size() + " class names and ids renamed"
+                    + (type.equalsIgnoreCase(JS) ? ", in " + jsCompressor.getRenamedStrings() + " strings" : ""));
+        }
+        if (options.getPropsMap() != null) {
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(options.getPropsMap()), options.getCharSet())) {
+                for (Map.Entry<String, String> entry : jsCompressor.getMangledProperties().entrySet()) {
+                    writer.write(entry.getKey() + "\t" + entry.getValue() + "\n");
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Cannot write the property map " + options.getPropsMap(), e);
+            }
+        }
+        if (options.isVerbose() && type.equalsIgnoreCase(JS) && options.getMangleProps() != null) {
+            System.err.println("\n[INFO] Renamed " + jsCompressor.getMangledProperties().size() + " properties matching "
+                    + options.getMangleProps());
+        }
+        if (options.isVerbose() && type.equalsIgnoreCase(JS) && options.getStripCalls() != null) {
+            System.err.println("\n[INFO] Removed " + jsCompressor.getStrippedCalls() + " calls to " + options.getStripCalls());
+        }
+        if (options.isVerbose() && type.equalsIgnoreCase(JS) && options.isRemoveUnused()) {
+            System.err.println("\n[INFO] Removed " + jsCompressor.getRemovedDeclarations() + " unused local functions and variables");
+        }
+        if (options.isVerbose() && type.equalsIgnoreCase(JS) && options.getPeepholes() != null) {
+            System.err.println("\n[INFO] JavaScript peephole passes");
+            for (JavaScriptPeephole pass : jsCompressor.getPeepholes()) {
+                System.err.println(String.format("  %-28s %8d hits %8d characters saved",
+                        pass.getName(), pass.getHits(), pass.getSaved()));
+            }
+        }
+
+        if (manifest != null) {
+            addStats(manifest, type, jsCompressor, cssCompressor);
+            writeManifest(manifest, options);
+        }
+
+        if (options.isVerbose() && type.equalsIgnoreCase(CSS)) {
+            if (options.getTemplates() != null) {
+                List<String> pruned = cssCompressor.getPrunedSelectors();
+                System.err.println("\n[INFO] Removed " + pruned.size() + " unused CSS selectors, saving "
+                        + cssCompressor.getPruneSavings() + " characters");
+                for (String selector : pruned) {
+                    System.err.println("  " + selector);
+                }
+            }
+            if (options.isMergeRules() || options.isBundle()) {
+                System.err.println("\n[INFO] Merged " + cssCompressor.getMergedRules() + " CSS rules and blocks, saving "
+                        + cssCompressor.getMergeSavings() + " characters");
+            }
+            System.err.println("\n[INFO] CSS rules");
+            for (CssRule rule : cssCompressor.getRules()) {
+                System.err.println(String.format("  %-28s %8d hits %8.1f ms",
+                        rule.getName(), rule.getHits(), rule.getNanos() / 1e6));
+            }
+        }
+    }
+
+    /*
+     * Returns the files of a shard, in the order given. The files are spread
+     * by a hash of their path relative to the input directory, the same on
+     * every machine, or by size: from the largest, each file goes to the
+     * shard with the fewest bytes so far, which only gives the same shards
+     * to runs that see the same files.
+     */
+    static List<Path> selectShard(List<Path> files, Path dir, int index, int count, boolean bySize) {
+        Set<Path> shard = new HashSet<>();
+        if (bySize) {
+            Map<Path, Long> sizes = new HashMap<>();
+            for (Path file : files) {
+                try {
+                    sizes.put(file, Files.size(file));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            List<Path> largestFirst = new ArrayList<>(files);
+            largestFirst.sort(Comparator.comparing((Path file) -> sizes.get(file)).reversed()
+                    .thenComparing(file -> relativePath(dir, file)));
+            long[] loads = new long[count];
+            for (Path file : largestFirst) {
+                int lightest = 0;
+                for (int i = 1; i < count; i++) {
+                    if (loads[i] < loads[lightest]) {
+                        lightest = i;
+                    }
+                }
+                loads[lightest] += sizes.get(file);
+                if (lightest == index) {
+                    shard.add(file);
+                }
+            }
+        } else {
+            for (Path file : files) {
+                CRC32 crc = new CRC32();
+                crc.update(relativePath(dir, file).getBytes(StandardCharsets.UTF_8));
+                if (crc.getValue() % count == index) {
+                    shard.add(file);
+                }
+            }
+        }
+        List<Path> result = new ArrayList<>(files);
+        result.removeIf(file -> !shard.contains(file));
+        return result;
+    }
+
+    // The same path on every platform
+    private static String relativePath(Path dir, Path file) {
+        return dir.relativize(file).toString().replace(File.separatorChar, '/');
+    }
+
+    private static void addStats(BuildManifest manifest, String type, JavaScriptCompressor jsCompressor,
+                                 CssCompressor cssCompressor) {
+        if (type.equalsIgnoreCase(JS)) {
+            manifest.addStat("stripped-calls", jsCompressor.getStrippedCalls());
+            manifest.addStat("removed-declarations", jsCompressor.getRemovedDeclarations());
+            manifest.addStat("renamed-strings", jsCompressor.getRenamedStrings());
+            for (JavaScriptPeephole pass : jsCompressor.getPeepholes()) {
+                manifest.addStat("peephole-" + pass.getName() + "-saved", pass.getSaved());
+            }
+        } else {
+            manifest.addStat("pruned-selectors", cssCompressor.getPrunedSelectors().size());
+            manifest.addStat("merged-rules", cssCompressor.getMergedRules());
+            for (CssRule rule : cssCompressor.getRules()) {
+                manifest.addStat("css-rule-" + rule.getName() + "-hits", rule.getHits());
             }
         }
     }
 
+    private static void writeManifest(BuildManifest manifest, Options options) {
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(options.getManifest()), options.getCharSet())) {
+            manifest.write(writer);
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot write the manifest " + options.getManifest(), e);
+        }
+    }
+
+    /*
+     * Merges the manifests of the shards into the one of --manifest.
+     */
+    static void mergeManifests(Options options) {
+        if (options.getManifest() == null) {
+            throw new IllegalArgumentException("Option --manifest is mandatory to merge manifests");
+        }
+        BuildManifest manifest = new BuildManifest();
+        String[] paths = options.getMergeManifests().split(",");
+        for (String path : paths) {
+            try (Reader reader = Files.newBufferedReader(Path.of(path.trim()), Charset.forName(options.getCharSet()))) {
+                manifest.read(reader);
+            } catch (IOException e) {
+                throw new RuntimeException("Cannot merge the manifest " + path, e);
+            }
+        }
+        writeManifest(manifest, options);
+        if (options.isVerbose()) {
+            System.err.println("\n[INFO] Merged " + paths.length + " manifests: " + manifest.getStat("files")
+                    + " files, " + manifest.getStat("input-bytes") + " bytes compressed to "
+                    + manifest.getStat("output-bytes"));
+        }
+    }
+
+    /*
+     * Reads the CSS names map, if there is one, so that the names renamed
+     * before keep their short names.
+     */
+    static SelectorNames readSelectorNames(Options options) {
+        SelectorNames selectorNames = new SelectorNames(
+                options.getCssNames() != null ? Pattern.compile(options.getCssNames()) : null,
+                options.getReservedCssNames() != null ? Arrays.asList(options.getReservedCssNames().split(",")) : List.of());
+        if (options.getCssNamesMap() != null && Files.exists(Path.of(options.getCssNamesMap()))) {
+            try (Reader reader = Files.newBufferedReader(Path.of(options.getCssNamesMap()), Charset.forName(options.getCharSet()))) {
+                selectorNames.read(reader);
+            } catch (IOException e) {
+                throw new RuntimeException("Cannot read the CSS names map " + options.getCssNamesMap(), e);
+            }
+        }
+        return selectorNames;
+    }
+
+    /*
+     * Reads the symbol map saved by the previous build, or returns an empty
+     * one for the first build.
+     */
+    static JavaScriptSymbolMap readSymbolMap(Path file, String charSet) {
+        JavaScriptSymbolMap symbolMap = new JavaScriptSymbolMap();
+        if (Files.exists(file)) {
+            try (Reader reader = Files.newBufferedReader(file, Charset.forName(charSet))) {
+                symbolMap.read(reader);
+            } catch (IOException e) {
+                throw new RuntimeException("Cannot read the symbol map " + file, e);
+            }
+        }
+        return symbolMap;
+    }
+
     private static OutputStreamWriter createOutputFile(String outputFilename, Options options) throws UnsupportedEncodingException, FileNotFoundException {
         Path.of(outputFilename).getParent().toFile().mkdirs();
         return new OutputStreamWriter(new FileOutputStream(outputFilename), options.getCharSet());
@@ -153,6 +480,133 @@ public class YUICompressor {
         }
     }
 
+    /**
+     * Indexes the templates and scripts in a comma-separated list of files
+     * and directories, for the compressor to remove the selectors none of
+     * them uses.
+     */
+    static void addTemplates(CssCompressor compressor, String paths, String charset) {
+        for (String path : paths.split(",")) {
+            Path dir = Path.of(path.trim());
+            List<Path> templates = Files.isDirectory(dir) ? collectFiles(dir, TEMPLATES) : List.of(dir);
+            for (Path template : templates) {
+                try (Reader in = Files.newBufferedReader(template, Charset.forName(charset))) {
+                    compressor.addTemplate(in);
+                } catch (IOException e) {
+                    throw new RuntimeException("Cannot read template " + template, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a comma-separated list of NAME=value definitions. The commas
+     * inside quoted values do not separate definitions.
+     */
+    static Map<String, String> parseDefines(String list) {
+        Map<String, String> defines = new LinkedHashMap<>();
+        int start = 0;
+        char quote = 0;
+        for (int i = 0; i <= list.length(); i++) {
+            char c = i < list.length() ? list.charAt(i) : ',';
+            if (quote != 0) {
+                if (c == '\\') {
+                    i++;
+                } else if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+            } else if (c == ',') {
+                String define = list.substring(start, i).trim();
+                int eq = define.indexOf('=');
+                if (eq <= 0) {
+                    throw new IllegalArgumentException("Expected NAME=value in --define: " + define);
+                }
+                defines.put(define.substring(0, eq).trim(), define.substring(eq + 1).trim());
+                start = i + 1;
+            }
+        }
+        return defines;
+    }
+
+    /**
+     * Selects the CSS rules named in a comma-separated list, in its order, or
+     * all the default rules but the ones prefixed with -.
+     */
+    static List<CssRule> selectCssRules(String names) {
+        List<CssRule> rules = CssCompressor.defaultRules();
+        Map<String, CssRule> byName = new HashMap<>();
+        for (CssRule rule : rules) {
+            byName.put(rule.getName(), rule);
+        }
+
+        List<CssRule> selected = new ArrayList<>();
+        Set<CssRule> removed = new HashSet<>();
+        for (String name : names.split(",")) {
+            name = name.trim();
+            boolean remove = name.startsWith("-");
+            CssRule rule = byName.get(remove ? name.substring(1) : name);
+            if (rule == null) {
+                throw new IllegalArgumentException("Unknown CSS rule: " + name);
+            }
+            if (remove) {
+                removed.add(rule);
+            } else {
+                selected.add(rule);
+            }
+        }
+        if (!selected.isEmpty() && !removed.isEmpty()) {
+            throw new IllegalArgumentException("CSS rules must be either all listed or all left out: " + names);
+        }
+
+        if (selected.isEmpty()) {
+            selected = rules;
+            selected.removeAll(removed);
+        }
+        return selected;
+    }
+
+    /**
+     * Selects the JavaScript peephole passes named in a comma-separated
+     * list, all of them, or all but the ones prefixed with -.
+     */
+    static List<JavaScriptPeephole> selectPeepholes(String names) {
+        List<JavaScriptPeephole> passes = JavaScriptPeephole.defaultPeepholes();
+        if (names.trim().equals("all")) {
+            return passes;
+        }
+        Map<String, JavaScriptPeephole> byName = new HashMap<>();
+        for (JavaScriptPeephole pass : passes) {
+            byName.put(pass.getName(), pass);
+        }
+
+        List<JavaScriptPeephole> selected = new ArrayList<>();
+        Set<JavaScriptPeephole> removed = new HashSet<>();
+        for (String name : names.split(",")) {
+            name = name.trim();
+            boolean remove = name.startsWith("-");
+            JavaScriptPeephole pass = byName.get(remove ? name.substring(1) : name);
+            if (pass == null) {
+                throw new IllegalArgumentException("Unknown peephole pass: " + name);
+            }
+            if (remove) {
+                removed.add(pass);
+            } else {
+                selected.add(pass);
+            }
+        }
+        if (!selected.isEmpty() && !removed.isEmpty()) {
+            throw new IllegalArgumentException("Peephole passes must be either all listed or all left out: " + names);
+        }
+
+        if (selected.isEmpty()) {
+            selected = passes;
+            selected.removeAll(removed);
+        }
+        return selected;
+    }
+
     static String generateNewFilename(MessageDigest digest, String outputFilename) {
         digest.reset();
 
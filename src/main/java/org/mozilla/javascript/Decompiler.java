@@ -92,6 +92,15 @@ public class Decompiler
     // the last RC of object literals in case of function expressions
     private static final int FUNCTION_END = Token.LAST_TOKEN + 1;
 
+    /**
+     * Empties the source buffer so this decompiler can encode another
+     * script while keeping the capacity it has already grown to.
+     */
+    void reset()
+    {
+        sourceTop = 0;
+    }
+
     String getEncodedSource()
     {
         return sourceToString(0);
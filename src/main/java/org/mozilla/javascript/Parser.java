@@ -65,6 +65,7 @@ public class Parser {
     private int nestingOfFunction;
 
     private Decompiler decompiler;
+    private Decompiler recycledDecompiler;
     private String encodedSource;
 
     // The following are per function variables and should be saved/restored
@@ -286,7 +287,7 @@ public class Parser {
     public ScriptOrFnNode parse(String sourceString,
                                 String sourceURI, int lineno) {
         this.sourceURI = sourceURI;
-        this.ts = new TokenStream(this, null, sourceString, lineno);
+        resetTokenStream(null, sourceString, lineno);
         try {
             return parse();
         } catch (IOException ex) {
@@ -307,13 +308,33 @@ public class Parser {
                                 String sourceURI, int lineno)
             throws IOException {
         this.sourceURI = sourceURI;
-        this.ts = new TokenStream(this, sourceReader, null, lineno);
+        resetTokenStream(sourceReader, null, lineno);
         return parse();
     }
 
+    /*
+     * Reuses the token stream of the previous parse run by this parser,
+     * and the buffers it has grown, like the decompiler.
+     */
+    private void resetTokenStream(Reader sourceReader, String sourceString,
+                                  int lineno) {
+        if (ts == null) {
+            ts = new TokenStream(this, sourceReader, sourceString, lineno);
+        } else {
+            ts.reset(sourceReader, sourceString, lineno);
+        }
+    }
+
     private ScriptOrFnNode parse()
             throws IOException {
-        this.decompiler = createDecompiler(compilerEnv);
+        if (recycledDecompiler != null) {
+            // Reuse the buffer of the previous parse run by this parser
+            this.decompiler = recycledDecompiler;
+            this.recycledDecompiler = null;
+            this.decompiler.reset();
+        } else {
+            this.decompiler = createDecompiler(compilerEnv);
+        }
         this.nf = new IRFactory(this);
         currentScriptOrFn = nf.createScript();
         currentScope = currentScriptOrFn;
@@ -380,7 +401,8 @@ public class Parser {
         if (compilerEnv.isGeneratingSource()) {
             encodedSource = decompiler.getEncodedSource();
         }
-        this.decompiler = null; // It helps GC
+        this.recycledDecompiler = decompiler;
+        this.decompiler = null;
 
         return currentScriptOrFn;
     }
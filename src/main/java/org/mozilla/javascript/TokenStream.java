@@ -55,18 +55,47 @@ class TokenStream
                 int lineno)
     {
         this.parser = parser;
+        reset(sourceReader, sourceString, lineno);
+    }
+
+    /**
+     * Starts over with another source, keeping the buffers this stream
+     * has already grown, so that a parser can reuse it for each script.
+     */
+    void reset(Reader sourceReader, String sourceString, int lineno)
+    {
         this.lineno = lineno;
         if (sourceReader != null) {
             if (sourceString != null) Kit.codeBug();
             this.sourceReader = sourceReader;
-            this.sourceBuffer = new char[512];
+            this.sourceString = null;
+            if (this.sourceBuffer == null) {
+                this.sourceBuffer = new char[512];
+            }
             this.sourceEnd = 0;
         } else {
             if (sourceString == null) Kit.codeBug();
             this.sourceString = sourceString;
+            this.sourceReader = null;
             this.sourceEnd = sourceString.length();
         }
         this.sourceCursor = 0;
+        this.lineStart = 0;
+        this.lineEndChar = -1;
+        this.hitEOF = false;
+        this.dirtyLine = false;
+        this.ungetCursor = 0;
+        this.stringBufferTop = 0;
+        this.string = "";
+        this.number = 0;
+        this.regExpFlags = null;
+        this.xmlIsAttribute = false;
+        this.xmlIsTagContent = false;
+        this.xmlOpenTagsCount = 0;
+        // clear() fails on a map that was never added to
+        if (!this.allStrings.isEmpty()) {
+            this.allStrings.clear();
+        }
     }
 
     /* This function uses the cached op, string and number fields in
@@ -559,6 +588,7 @@ class TokenStream
                         addToString(c);
                     }
 
+                    addPlainRunToString(quoteChar, '\\');
                     c = getChar();
                 }
 
@@ -703,6 +733,9 @@ class TokenStream
                     boolean lookForSlash = false;
                     StringBuffer sb = new StringBuffer();
                     for (;;) {
+                        if (!lookForSlash) {
+                            appendPlainRun(sb, '*');
+                        }
                         c = getChar();
                         if (c == EOF_CHAR) {
                             parser.addError("msg.unterminated.comment");
@@ -1300,10 +1333,82 @@ class TokenStream
     {
         // skip to end of line
         int c;
-        while ((c = getChar()) != EOF_CHAR && c != '\n') { }
+        do {
+            sourceCursor = plainRunEnd(-1, -1);
+        } while ((c = getChar()) != EOF_CHAR && c != '\n');
         ungetChar(c);
     }
 
+    /*
+     * Returns the end of the run of characters starting at the cursor that
+     * getChar() would hand back unchanged, i.e. ASCII characters other than
+     * line terminators and the two given delimiters. Only what is already
+     * in the source buffer is looked at, so callers must fall back to
+     * getChar() once the run ends. Scanning such runs in a tight loop
+     * instead of one getChar() call per character is what makes skipping
+     * comments and reading long string literals cheap.
+     */
+    private int plainRunEnd(int delim1, int delim2)
+    {
+        if (ungetCursor != 0 || lineEndChar >= 0) {
+            // getChar() has pending work to do before the next character
+            return sourceCursor;
+        }
+        int i = sourceCursor;
+        if (sourceString != null) {
+            for (; i != sourceEnd; ++i) {
+                int c = sourceString.charAt(i);
+                if (c > 127 || c == '\n' || c == '\r' || c == delim1 || c == delim2) {
+                    break;
+                }
+            }
+        } else {
+            char[] buf = sourceBuffer;
+            for (; i != sourceEnd; ++i) {
+                int c = buf[i];
+                if (c > 127 || c == '\n' || c == '\r' || c == delim1 || c == delim2) {
+                    break;
+                }
+            }
+        }
+        return i;
+    }
+
+    private void appendPlainRun(StringBuffer sb, int delim)
+    {
+        int end = plainRunEnd(delim, delim);
+        if (end != sourceCursor) {
+            if (sourceString != null) {
+                sb.append(sourceString, sourceCursor, end);
+            } else {
+                sb.append(sourceBuffer, sourceCursor, end - sourceCursor);
+            }
+            sourceCursor = end;
+        }
+    }
+
+    private void addPlainRunToString(int delim1, int delim2)
+    {
+        int end = plainRunEnd(delim1, delim2);
+        int n = end - sourceCursor;
+        if (n == 0) {
+            return;
+        }
+        int top = stringBufferTop;
+        if (top + n > stringBuffer.length) {
+            char[] tmp = new char[Math.max(stringBuffer.length * 2, top + n)];
+            System.arraycopy(stringBuffer, 0, tmp, 0, top);
+            stringBuffer = tmp;
+        }
+        if (sourceString != null) {
+            sourceString.getChars(sourceCursor, end, stringBuffer, top);
+        } else {
+            System.arraycopy(sourceBuffer, sourceCursor, stringBuffer, top, n);
+        }
+        stringBufferTop = top + n;
+        sourceCursor = end;
+    }
+
     final int getOffset()
     {
         int n = sourceCursor - lineStart;
@@ -0,0 +1,397 @@
+package com.yahoo.platform.yui.compressor;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+import org.mozilla.javascript.ErrorReporter;
+import org.mozilla.javascript.EvaluatorException;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CssCompressorTest {
+
+    public static final String BASE_DIR_CSS_FILES = "src/test/resources/css/";
+    public static final String BASE_DIR_CSS_MIN_FILES = "src/test/resources/css-min/";
+
+    // The fixtures whose expected output no engine has produced yet
+    private static final List<String> KNOWN_MISMATCHES = List.of("zeros.css");
+
+    private static String compress(String css, boolean singlePass, int linebreakpos) throws IOException {
+        return compress(css, singlePass, linebreakpos, -1);
+    }
+
+    private static String compress(String css, boolean singlePass, int linebreakpos, int dataUriThreshold) throws IOException {
+        CssCompressor compressor = new CssCompressor(new StringReader(css));
+        compressor.setSinglePass(singlePass);
+        compressor.setDataUriThreshold(dataUriThreshold);
+        StringWriter out = new StringWriter();
+        compressor.compress(out, linebreakpos);
+        return out.toString();
+    }
+
+    static Stream<Arguments> fixtures() throws IOException {
+        List<Path> files;
+        try (Stream<Path> stream = Files.list(Path.of(BASE_DIR_CSS_FILES))) {
+            files = stream.filter(p -> p.toString().endsWith(".css")).sorted().toList();
+        }
+        return files.stream().flatMap(file -> Stream.of(Arguments.of(file.getFileName().toString(), false),
+                Arguments.of(file.getFileName().toString(), true)));
+    }
+
+    @ParameterizedTest(name = "{0}, single pass: {1}")
+    @MethodSource("fixtures")
+    public void testFixture(String name, boolean singlePass) throws IOException {
+        String css = Files.readString(Path.of(BASE_DIR_CSS_FILES, name));
+        String expected = Files.readString(Path.of(BASE_DIR_CSS_MIN_FILES, name + ".min")).trim();
+        String actual = compress(css, singlePass, -1).trim();
+        if (KNOWN_MISMATCHES.contains(name)) {
+            assertNotEquals(expected, actual, name + " now matches: remove it from the known mismatches");
+        } else {
+            assertEquals(expected, actual);
+        }
+    }
+
+    @Test
+    public void testSinglePassMatchesRegexEngine() throws IOException {
+        List<Path> files;
+        try (Stream<Path> stream = Files.list(Path.of(BASE_DIR_CSS_FILES))) {
+            files = stream.filter(p -> p.toString().endsWith(".css")).sorted().toList();
+        }
+        assertFalse(files.isEmpty());
+
+        for (Path file : files) {
+            String css = Files.readString(file);
+            for (int linebreakpos : new int[]{-1, 0, 40}) {
+                assertEquals(compress(css, false, linebreakpos), compress(css, true, linebreakpos),
+                        "Failed for file: " + file + " with line break " + linebreakpos);
+            }
+        }
+    }
+
+    @Test
+    public void testStringEnd() {
+        assertEquals(5, CssCompressor.stringEnd("\"a'b\"c", 0));
+        assertEquals(8, CssCompressor.stringEnd("'a\\'b\\''", 0));
+        assertEquals(5, CssCompressor.stringEnd("\"a\\\\\"b", 0));
+        // Unterminated, back to the last escaped quote, or nowhere
+        assertEquals(4, CssCompressor.stringEnd("\"a\\\"b\\c", 0));
+        assertEquals(-1, CssCompressor.stringEnd("'abc\\", 0));
+    }
+
+    @Test
+    public void testSinglePassKeepsFunctionsInStrings() throws IOException {
+        assertEquals("a{content:\"calc(1px + 2px)\"}", compress("a { content: \"calc(1px+2px)\"; }", true, -1));
+        assertEquals("a{content:\"url(data:x)\"}", compress("a { content: \"url(data:x)\"; }", true, -1));
+    }
+
+    @Test
+    public void testDataUrisOffHeap() throws IOException {
+        List<Path> files;
+        try (Stream<Path> stream = Files.list(Path.of(BASE_DIR_CSS_FILES))) {
+            files = stream.filter(p -> p.toString().endsWith(".css")).sorted().toList();
+        }
+        for (Path file : files) {
+            String css = Files.readString(file);
+            for (boolean singlePass : new boolean[]{false, true}) {
+                assertEquals(compress(css, singlePass, 40), compress(css, singlePass, 40, 0),
+                        "Failed for file: " + file + (singlePass ? " with the single-pass engine" : ""));
+            }
+        }
+
+        String data = "iVBORw0KGgo\n  AAAA\u20acNSUhEUg".repeat(2000);
+        String css = ".a { background: url( data:image/png;base64," + data + " ) }\n"
+                + ".b { background: url(\"data:image/png;base64," + data + "\") }";
+        String stripped = data.replaceAll("\\s+", "");
+        String expected = ".a{background:url(data:image/png;base64," + stripped + ")}"
+                + ".b{background:url(\"data:image/png;base64," + stripped + "\")}";
+        assertEquals(expected, compress(css, false, -1, 100));
+        assertEquals(expected, compress(css, true, -1, 100));
+    }
+
+    @Test
+    public void testStreaming() throws IOException {
+        List<Path> files;
+        try (Stream<Path> stream = Files.list(Path.of(BASE_DIR_CSS_FILES))) {
+            files = stream.filter(p -> p.toString().endsWith(".css")).sorted().toList();
+        }
+        for (Path file : files) {
+            String css = Files.readString(file);
+            if (css.contains("@charset")) {
+                // Only the @charset rule of the first window is kept
+                continue;
+            }
+            for (int linebreakpos : new int[]{-1, 0}) {
+                for (int window : new int[]{1, 100}) {
+                    // Read a few characters at a time, to cut many windows
+                    Reader in = new StringReader(css) {
+                        @Override
+                        public int read(char[] cbuf, int off, int len) throws IOException {
+                            return super.read(cbuf, off, Math.min(len, 7));
+                        }
+                    };
+                    StringWriter out = new StringWriter();
+                    new CssCompressor().compress(in, out, linebreakpos, window);
+                    assertEquals(compress(css, true, linebreakpos), out.toString(),
+                            "Failed for file: " + file + " with window " + window);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testParallel() throws IOException {
+        List<Path> files;
+        try (Stream<Path> stream = Files.list(Path.of(BASE_DIR_CSS_FILES))) {
+            files = stream.filter(p -> p.toString().endsWith(".css")).sorted().toList();
+        }
+        for (Path file : files) {
+            String css = Files.readString(file);
+            for (int dataUriThreshold : new int[]{-1, 0}) {
+                for (int chunk : new int[]{1, 100}) {
+                    CssCompressor compressor = new CssCompressor(new StringReader(css));
+                    compressor.setSinglePass(true);
+                    compressor.setDataUriThreshold(dataUriThreshold);
+                    compressor.setParallel(true, chunk);
+                    StringWriter out = new StringWriter();
+                    compressor.compress(out, -1);
+                    assertEquals(compress(css, true, -1, dataUriThreshold), out.toString(),
+                            "Failed for file: " + file + " with chunks of " + chunk);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testBacktrackingFallsBack() throws IOException {
+        List<String> warnings = new ArrayList<>();
+        ErrorReporter reporter = new ErrorReporter() {
+            public void warning(String message, String sourceName, int line, String lineSource, int lineOffset) {
+                warnings.add(message);
+            }
+
+            public void error(String message, String sourceName, int line, String lineSource, int lineOffset) {
+                fail(message);
+            }
+
+            public EvaluatorException runtimeError(String message, String sourceName, int line, String lineSource, int lineOffset) {
+                return new EvaluatorException(message);
+            }
+        };
+
+        // Empty rules are searched for from every character of the long
+        // selector, which makes the regular expressions quadratic
+        String css = "a { color: #AABBCC }\n" + "b ".repeat(50000) + "{ c";
+        CssCompressor compressor = new CssCompressor(new StringReader(css));
+        compressor.setErrorReporter(reporter);
+        StringWriter out = new StringWriter();
+        compressor.compress(out, -1);
+
+        assertEquals(1, warnings.size());
+        assertEquals(compress(css, true, -1), out.toString());
+        assertTrue(out.toString().startsWith("a{color:#abc}"));
+    }
+
+    @Test
+    public void testValues() throws IOException {
+        String css = ".white, h1.50 { color: WHITE; border: 1px solid rgb(255, 0, 0); outline-color: hsl(120, 100%, 25%);"
+                + " fill: hsla(0 100% 50% / 1); stroke: rgba(1, 2, 3, .5); transition: opacity 500ms, color 0.250s 1000ms;"
+                + " width: 12.500%; margin: 1.0px 2.00px; animation-name: white; background: #d2b48c }";
+        String expected = ".white,h1.50{color:#fff;border:1px solid red;outline-color:green;"
+                + "fill:red;stroke:rgba(1,2,3,.5);transition:opacity .5s,color .25s 1s;"
+                + "width:12.5%;margin:1px 2px;animation-name:white;background:tan}";
+        assertEquals(expected, compress(css, false, -1));
+        assertEquals(expected, compress(css, true, -1));
+    }
+
+    @Test
+    public void testRules() throws IOException {
+        String css = "a { color: #ff0000; margin: 0px 0px; }\nb { color: #000080 }";
+
+        CssCompressor compressor = new CssCompressor(new StringReader(css));
+        StringWriter out = new StringWriter();
+        compressor.compress(out, -1);
+        assertEquals("a{color:red;margin:0}b{color:navy}", out.toString());
+
+        CssRule colorNames = compressor.getRules().stream()
+                .filter(rule -> rule.getName().equals("color-names")).findFirst().orElseThrow();
+        assertEquals(2, colorNames.getHits());
+
+        List<CssRule> rules = new ArrayList<>(compressor.getRules());
+        rules.remove(colorNames);
+        compressor.setRules(rules);
+        compressor.reset(new StringReader(css));
+        out = new StringWriter();
+        compressor.compress(out, -1);
+        assertEquals("a{color:#f00;margin:0}b{color:#000080}", out.toString());
+    }
+
+    @Test
+    public void testMergeRules() throws IOException {
+        String css = "a { color: red } b { margin: 0 } a { padding: 0 }\n"
+                + "i { margin: 0 } p { margin-top: 1px } i { margin: 2px }\n"
+                + "@media print { u { color: red } } s { font-size: 1px } @media print { q { color: red } }\n"
+                + "/*! keep */ em { top: 0 } a::-moz-selection { top: 0 }";
+        String expected = "a{color:red;padding:0}b,i{margin:0}p{margin-top:1px}i{margin:2px}"
+                + "@media print{u,q{color:red}}s{font-size:1px}"
+                + "/*! keep */em{top:0}a::-moz-selection{top:0}";
+
+        CssCompressor compressor = new CssCompressor(new StringReader(css));
+        compressor.setMergeRules(true);
+        StringWriter out = new StringWriter();
+        compressor.compress(out, -1);
+        assertEquals(expected, out.toString());
+        assertEquals(4, compressor.getMergedRules());
+        assertEquals(compress(css, false, -1).length() - expected.length(), compressor.getMergeSavings());
+    }
+
+    @Test
+    public void testPruneUnusedSelectors() throws IOException {
+        String css = "body { margin: 0 } .card, .unused { padding: 0 } #main > span:hover { color: red }\n"
+                + "ul li { top: 0 } .card:not(.nope) { left: 0 } @media print { .gone { color: red } }\n"
+                + ".js-menu { right: 0 } a[href$=\".pdf\"] { bottom: 0 }";
+        String template = "<div class=\"card\" id=\"main\"><span>x</span></div>";
+
+        CssCompressor compressor = new CssCompressor(new StringReader(css));
+        compressor.addTemplate(new StringReader(template));
+        compressor.setSafelist(List.of("js-*"));
+        StringWriter out = new StringWriter();
+        compressor.compress(out, -1);
+        assertEquals("body{margin:0}.card{padding:0}#main>span:hover{color:red}.card:not(.nope){left:0}.js-menu{right:0}",
+                out.toString());
+        assertEquals(List.of(".unused", "ul li", ".gone", "a[href$=\".pdf\"]"), compressor.getPrunedSelectors());
+        assertEquals(compress(css, false, -1).length() - out.toString().length(), compressor.getPruneSavings());
+    }
+
+    @Test
+    public void testRenameSelectorNames() throws IOException {
+        String css = ".c-card, #c-main .c-card__title { color: #fff } .c-card:not(.c-card--off) > .a { top: 0 }\n"
+                + "@media print { .c-card { margin: 0 } } [class~=\"c-card\"] { left: 0 } .c-keep, .other { right: 0 }\n"
+                + "@font-face { font-family: x } .c-es\\:c { bottom: 0 }";
+        SelectorNames names = new SelectorNames(Pattern.compile("^c-"), List.of("c-keep"));
+
+        CssCompressor compressor = new CssCompressor(new StringReader(css));
+        compressor.setSelectorNames(names);
+        StringWriter out = new StringWriter();
+        compressor.compress(out, -1);
+        assertEquals(".b,#e .d{color:#fff}.b:not(.c)>.a{top:0}@media print{.b{margin:0}}[class~=\"c-card\"]{left:0}"
+                + ".c-keep,.other{right:0}@font-face{font-family:x}.c-es\\:c{bottom:0}", out.toString());
+
+        StringWriter saved = new StringWriter();
+        names.write(saved);
+        assertEquals("c-card\tb\nc-card--off\tc\nc-card__title\td\nc-main\te\n", saved.toString());
+
+        JavaScriptCompressor jsCompressor = new JavaScriptCompressor();
+        jsCompressor.setSelectorNames(names);
+        jsCompressor.reset(new StringReader("$('#c-main .c-card').addClass('c-card--off other'); f('\\nc-card')"), null);
+        out = new StringWriter();
+        jsCompressor.compress(out, null, -1, true, false, false, true, false);
+        assertEquals("$(\"#e .b\").addClass(\"c other\");f(\"\\nc-card\");", out.toString());
+        assertEquals(2, jsCompressor.getRenamedStrings());
+
+        // Only the strings given to the DOM methods, not the ones with the same words
+        jsCompressor.reset(new StringReader("document.querySelector('#c-main > .c-card:not(.other)').classList"
+                + ".toggle('c-card--off', true); el.classList.replace('c-card', 'other');"
+                + " el.className = 'c-card ' + x; document.getElementById('c-main');"
+                + " alert('Add a c-card'); load('/api/c-card/list'); o['c-card'] = '.c-card'; f('c-card', 'c-main')"), null);
+        out = new StringWriter();
+        jsCompressor.compress(out, null, -1, true, false, false, true, false);
+        assertEquals("document.querySelector(\"#e > .b:not(.other)\").classList.toggle(\"c\",true);"
+                + "el.classList.replace(\"b\",\"other\");el.className=\"b \"+x;document.getElementById(\"e\");"
+                + "alert(\"Add a c-card\");load(\"/api/c-card/list\");o[\"c-card\"]=\".c-card\";f(\"c-card\",\"c-main\");",
+                out.toString());
+        assertEquals(7, jsCompressor.getRenamedStrings());
+    }
+
+    @Test
+    public void testBundle(@TempDir Path dir) throws IOException {
+        Files.createDirectories(dir.resolve("parts"));
+        Files.writeString(dir.resolve("main.css"), "@import url(https://example.com/x.css);\n"
+                + "@import url(\"parts/a.css\");\n@import \"parts/b.css\" print;\n.main { top: 0 }");
+        Files.writeString(dir.resolve("parts/a.css"), "@charset \"UTF-8\";\n@import \"b.css\";\n@import \"a.css\";\n"
+                + ".a { background: url(img/a.png?v=1) }\n.b { color: red }");
+        Files.writeString(dir.resolve("parts/b.css"), ".b { color: red }");
+
+        CssBundler bundler = new CssBundler(StandardCharsets.UTF_8);
+        String bundle = bundler.bundle(dir.resolve("main.css"));
+        assertEquals(3, bundler.getInlined());
+
+        CssCompressor compressor = new CssCompressor(new StringReader(bundle));
+        compressor.setRemoveDuplicateRules(true);
+        StringWriter out = new StringWriter();
+        compressor.compress(out, -1);
+        assertEquals("@import url(\"https://example.com/x.css\");.a{background:url(parts/img/a.png?v=1)}.b{color:red}"
+                + "@media print{.b{color:red}}.main{top:0}", out.toString());
+        assertEquals(1, compressor.getMergedRules());
+    }
+
+    @Test
+    public void testBundleImportOrder(@TempDir Path dir) throws IOException {
+        Files.writeString(dir.resolve("a.css"), ".x { color: red }");
+        Files.writeString(dir.resolve("b.css"), ".x { color: blue }");
+        Files.writeString(dir.resolve("c.css"), ".c { color: red }");
+        Files.writeString(dir.resolve("left.css"), "@import \"c.css\";\n.l { top: 0 }");
+        Files.writeString(dir.resolve("right.css"), "@import \"c.css\";\n.r { top: 0 }");
+        Files.writeString(dir.resolve("remote.css"), "@import url(http://cdn/r.css);\n.n { top: 0 }");
+        List<String> messages = new ArrayList<>();
+        CssBundler bundler = new CssBundler(StandardCharsets.UTF_8);
+        bundler.setErrorReporter(new ErrorReporter() {
+            public void warning(String message, String sourceName, int line, String lineSource, int lineOffset) {
+                messages.add(message);
+            }
+
+            public void error(String message, String sourceName, int line, String lineSource, int lineOffset) {
+            }
+
+            public EvaluatorException runtimeError(String message, String sourceName, int line, String lineSource,
+                                                   int lineOffset) {
+                return new EvaluatorException(message);
+            }
+        });
+
+        // The last copy of a stylesheet imported again is the one that applies
+        Files.writeString(dir.resolve("repeated.css"), "@import \"a.css\";\n@import \"b.css\";\n@import \"a.css\";");
+        assertEquals(".x{color:blue}.x{color:red}", bundle(bundler, dir.resolve("repeated.css")));
+        assertEquals(3, bundler.getInlined());
+
+        Files.writeString(dir.resolve("diamond.css"), "@import \"left.css\";\n@import \"right.css\";");
+        assertEquals(".l{top:0}.c{color:red}.r{top:0}", bundle(bundler, dir.resolve("diamond.css")));
+        assertEquals(4, bundler.getInlined());
+        assertTrue(messages.isEmpty(), messages.toString());
+
+        // A remote stylesheet imported after a local one still comes after it
+        Files.writeString(dir.resolve("after.css"), "@import \"a.css\";\n@import url(http://cdn/x.css);\n.y { top: 0 }");
+        assertEquals("@import url(\"a.css\");@import url(\"http://cdn/x.css\");.y{top:0}",
+                bundle(bundler, dir.resolve("after.css")));
+        assertEquals(0, bundler.getInlined());
+        assertEquals(1, messages.size());
+
+        // A stylesheet keeping an import is imported, with its media query
+        Files.writeString(dir.resolve("nested.css"), "@import \"c.css\";\n@import \"remote.css\" screen;\n.m { top: 0 }");
+        assertEquals("@import url(\"c.css\");@import url(\"remote.css\") screen;.m{top:0}",
+                bundle(bundler, dir.resolve("nested.css")));
+        assertEquals(0, bundler.getInlined());
+        assertEquals(3, messages.size());
+    }
+
+    private static String bundle(CssBundler bundler, Path file) throws IOException {
+        CssCompressor compressor = new CssCompressor(new StringReader(bundler.bundle(file)));
+        compressor.setRemoveDuplicateRules(true);
+        StringWriter out = new StringWriter();
+        compressor.compress(out, -1);
+        return out.toString();
+    }
+}
@@ -0,0 +1,269 @@
+package com.yahoo.platform.yui.compressor;
+
+import org.junit.jupiter.api.Test;
+import org.mozilla.javascript.ErrorReporter;
+import org.mozilla.javascript.EvaluatorException;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JavaScriptCompressorTest {
+
+    private final List<String> warnings = new ArrayList<>();
+
+    private final ErrorReporter reporter = new ErrorReporter() {
+        public void warning(String message, String sourceName, int line, String lineSource, int lineOffset) {
+            warnings.add(message);
+        }
+
+        public void error(String message, String sourceName, int line, String lineSource, int lineOffset) {
+            throw new EvaluatorException(message);
+        }
+
+        public EvaluatorException runtimeError(String message, String sourceName, int line, String lineSource, int lineOffset) {
+            return new EvaluatorException(message);
+        }
+    };
+
+    private String compress(JavaScriptCompressor compressor, String js) throws IOException {
+        compressor.reset(new StringReader(js), reporter);
+        StringWriter out = new StringWriter();
+        compressor.compress(out, null, -1, true, false, false, false, false);
+        return out.toString();
+    }
+
+    private String compress(String js, boolean parallel) throws IOException {
+        JavaScriptCompressor compressor = new JavaScriptCompressor();
+        compressor.setParallel(parallel);
+        return compress(compressor, js);
+    }
+
+    // A statement long enough for the functions made of it to be printed on
+    // a separate thread
+    private static String statements(int count, String statement) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            sb.append(statement.replace("#", Integer.toString(i))).append('\n');
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testParallelMungeAndPrint() throws IOException {
+        String js = "var top = 1;\n"
+                + "function first(alpha, beta) {\n"
+                + statements(60, "var local# = function (gamma) { return alpha + beta * gamma + #; };")
+                + " return function (delta) { return local0(delta) + local59(top) } }\n"
+                + "function second(alpha) {\n"
+                + statements(60, "var other# = alpha[#] || function (x) { var y = x * #; return y };")
+                + " eval('other0'); return other1 }\n"
+                + "function third(object) {\n"
+                + statements(60, "var value# = object.value# + object.count * #;")
+                + " with (object) { value0 = value1 } return function () { return value2 } }\n"
+                + "var fourth = function (alpha) {\n"
+                + statements(60, "alpha = (function (beta) { return beta + #; })(alpha);")
+                + " return alpha };\n";
+
+        String sequential = compress(js, false);
+        assertEquals(sequential, compress(js, true));
+        // Munged around eval and with the same way as in sequential mode
+        assertFalse(sequential.contains("local0") || sequential.contains("alpha+beta"), sequential);
+        assertTrue(sequential.contains("function second(alpha){var other0=alpha[0]||"), sequential);
+        assertTrue(sequential.contains("function third(object){var value0=object.value0+object.count*0;"), sequential);
+    }
+
+    // Statements that a split at the wrong semicolon would break
+    private static final String SPLIT_STATEMENTS = "var r = /;[;\\/]/g, q = a / b / c;\n"
+            + "var s = \"a;b\" + 'c;d' + \"\\\";\";\n"
+            + "if (x) y();\nelse z();\n"
+            + "do x++;\nwhile (x < 3);\n"
+            + "f(function () { g(); h(); });\n";
+
+    @Test
+    public void testSplitPoints() {
+        String js = SPLIT_STATEMENTS.strip();
+        int[] expected = {0, js.indexOf("var s"), js.indexOf("if"), js.indexOf("do"), js.indexOf("f(")};
+        int[] starts = JavaScriptSplitter.split(js, 1);
+        for (int i = 0; i < starts.length; i++) {
+            // The chunks start after the semicolon, before the line break
+            starts[i] += starts[i] > 0 ? 1 : 0;
+        }
+        assertArrayEquals(expected, starts);
+    }
+
+    @Test
+    public void testParallelParse() throws IOException {
+        // Large enough to be cut into several chunks
+        String js = statements(2000, SPLIT_STATEMENTS.replace("x", "x#"));
+        assertTrue(JavaScriptSplitter.split(js, 64 * 1024).length > 1);
+        assertEquals(compress(js, false), compress(js, true));
+
+        // The error of a chunk is reported by parsing the whole script again
+        String broken = js + "var t = ;\n" + js;
+        List<String> errors = new ArrayList<>();
+        for (boolean parallel : new boolean[]{false, true}) {
+            JavaScriptCompressor compressor = new JavaScriptCompressor();
+            compressor.setParallel(parallel);
+            assertThrows(EvaluatorException.class, () -> compressor.reset(new StringReader(broken),
+                    new ErrorReporter() {
+                        public void warning(String message, String sourceName, int line, String lineSource, int lineOffset) {
+                        }
+
+                        public void error(String message, String sourceName, int line, String lineSource, int lineOffset) {
+                            errors.add(line + ": " + message);
+                        }
+
+                        public EvaluatorException runtimeError(String message, String sourceName, int line,
+                                                               String lineSource, int lineOffset) {
+                            return new EvaluatorException(message);
+                        }
+                    }));
+        }
+        assertEquals(2, errors.size());
+        assertEquals(errors.get(0), errors.get(1));
+        assertTrue(errors.get(0).startsWith((js.split("\n", -1).length) + ": "), errors.get(0));
+    }
+
+    @Test
+    public void testDefines() throws IOException {
+        JavaScriptCompressor compressor = new JavaScriptCompressor();
+        compressor.setDefines(Map.of("DEBUG", "false", "LEVEL", "2", "N", "-1.5"));
+
+        assertEquals("function f(a){go();if(a){b()}two();return{DEBUG:false,d:a.DEBUG}};",
+                compress(compressor, "function f(x) { if (DEBUG) { log(x) } else { go() } DEBUG && log(1);"
+                        + " if (!DEBUG && x) { b() } if (LEVEL === 2) two(); else more();"
+                        + " return { DEBUG: DEBUG, d: x.DEBUG } }"));
+        assertEquals("f((-1.5).toFixed(1),a- -1.5);", compress(compressor, "f(N.toFixed(1), a - N);"));
+        assertEquals("for(;false;){}for(;;){};", compress(compressor, "for (; DEBUG;) {} for (;;) { DEBUG; }"));
+
+        assertTrue(warnings.isEmpty());
+        assertEquals("var DEBUG=true;if(DEBUG){log()};", compress(compressor, "var DEBUG = true; if (DEBUG) { log() }"));
+        assertEquals(1, warnings.size());
+
+        assertThrows(IllegalArgumentException.class, () -> compressor.setDefines(Map.of("DEBUG", "debug()")));
+    }
+
+    @Test
+    public void testStripCalls() throws IOException {
+        JavaScriptCompressor compressor = new JavaScriptCompressor();
+        compressor.setStripCalls(List.of("console.log", "assert"));
+
+        assertEquals("function f(a){if(a){}for(;console.log(a);){}var b=a&&console.log(a);"
+                        + "switch(a){case 1:;default:}console.error(a);return b};",
+                compress(compressor, "function f(x) { console.log('f', x); if (x) { assert(x > 0) }"
+                        + " for (; console.log(x);) {} var y = x && console.log(x);"
+                        + " switch (x) { case 1: console.log(1); default: assert(x++) } console.error(x); return y }"));
+        assertEquals(4, compressor.getStrippedCalls());
+        assertEquals(1, warnings.size());
+
+        assertThrows(IllegalArgumentException.class, () -> compressor.setStripCalls(List.of("console.log()")));
+    }
+
+    @Test
+    public void testRemoveUnused() throws IOException {
+        JavaScriptCompressor compressor = new JavaScriptCompressor();
+        compressor.setRemoveUnused(true);
+
+        assertEquals("var g=1;function top(){}(function(d){var a=f();function e(){}for(var c=0;;){break}return e()})();"
+                        + "function withEval(){var u=1;eval(\"u\")};",
+                compress(compressor, "var g = 1; function top() {} (function (p) { var a = 1, b = f(), c, d = [a, {k: p}],"
+                        + " e = function () { return h() }; function h() { return i() } function i() { return 1 }"
+                        + " function kept() {} for (var j = 0; ; ) { break } return kept() })();"
+                        + " function withEval() { var u = 1; eval('u') }"));
+        assertEquals(6, compressor.getRemovedDeclarations());
+    }
+
+    @Test
+    public void testSymbolMap() throws IOException {
+        String before = "function f(alpha, beta) { var gamma = alpha + beta;"
+                + " return function (delta) { return gamma * delta } }";
+        String after = "function f(alpha, beta) { var zeta = g(), gamma = alpha + beta;"
+                + " return function (delta) { return gamma * delta + zeta } }";
+        JavaScriptCompressor compressor = new JavaScriptCompressor();
+        JavaScriptSymbolMap symbolMap = new JavaScriptSymbolMap();
+        compressor.setSymbolMap(symbolMap, "f.js");
+        String first = compress(compressor, before);
+        assertEquals("function f(c,b){var a=c+b;return function(d){return a*d}};", first);
+        assertEquals(4, symbolMap.size());
+
+        StringWriter saved = new StringWriter();
+        symbolMap.write(saved);
+        symbolMap = new JavaScriptSymbolMap();
+        symbolMap.read(new StringReader(saved.toString()));
+        compressor.setSymbolMap(symbolMap, "f.js");
+
+        assertEquals(first, compress(compressor, before));
+        assertEquals("function f(d,c){var b=g(),a=d+c;return function(e){return a*e+b}};",
+                compress(new JavaScriptCompressor(), after));
+        // The new variable takes the first free name, away from the inner function
+        assertEquals("function f(c,b){var d=g(),a=c+b;return function(e){return a*e+d}};",
+                compress(compressor, after));
+        assertEquals(5, symbolMap.size());
+    }
+
+    @Test
+    public void testEvalScopeChain() throws IOException {
+        // Only the scopes eval can see keep their names
+        assertEquals("(function(){var shared=1;function evaluator(code){function helper(a){return a}return eval(code)}"
+                        + "function sibling(b){var a=b+shared;return a}window.x=[evaluator,sibling]})();",
+                compress(new JavaScriptCompressor(), "(function () { var shared = 1;"
+                        + " function evaluator(code) { function helper(deep) { return deep } return eval(code) }"
+                        + " function sibling(param) { var inner = param + shared; return inner }"
+                        + " window.x = [evaluator, sibling] })();"));
+    }
+
+    @Test
+    public void testMangleProperties() throws IOException {
+        JavaScriptCompressor compressor = new JavaScriptCompressor();
+        compressor.setMangleProperties(Pattern.compile("^_"), List.of("_keep"));
+
+        assertEquals("function C(){this.c=0;this._keep=1}C.prototype={d:function(){return ++this.c},"
+                        + "get e(){return this.c},a:1,b:function(){return this._q+o._q}};",
+                compress(compressor, "function C() { this._count = 0; this._keep = 1 } C.prototype = {"
+                        + " _inc: function () { return ++this._count }, get _total() { return this._count },"
+                        + " a: 1, b: function () { return this._q + o['_q'] } };"));
+        assertEquals("x.c=x.d()+x.f;", compress(compressor, "x._count = x._inc() + x._other;"));
+        assertEquals(Map.of("_count", "c", "_inc", "d", "_total", "e", "_other", "f"),
+                compressor.getMangledProperties());
+
+        assertTrue(warnings.isEmpty());
+        compress(compressor, "x['_count'] = 1;");
+        assertEquals(1, warnings.size());
+    }
+
+    @Test
+    public void testPeepholes() throws IOException {
+        JavaScriptCompressor compressor = new JavaScriptCompressor();
+        compressor.setPeepholes(JavaScriptPeephole.defaultPeepholes());
+
+        assertEquals("var a=!0,b=!1,c=void 0,o={undefined:1};f(1e3,.5,1e21,(1e3).toFixed(),true.toString());"
+                        + "var s=\"abc\",t=x*\"a\"+1;",
+                compress(compressor, "var a = true, b = false, c = undefined, o = {undefined: 1};"
+                        + " f(1000, 0.5, 1e21, (1000).toFixed(), true.toString());"
+                        + " var s = (\"a\" + \"b\") + \"c\", t = x * \"a\" + 1;"));
+        assertEquals("function f(a){return a};", compress(compressor, "function f(undefined) { return undefined }"));
+
+        List<Long> saved = new ArrayList<>();
+        for (JavaScriptPeephole pass : compressor.getPeepholes()) {
+            saved.add(pass.getSaved());
+        }
+        assertEquals(List.of(5L, 3L, 8L), saved);
+
+        assertEquals("f(1e3,.5,255,1e21,15e-8,.30000000000000004,17976931348623157e292,0xfffffffffffff);",
+                compress(new JavaScriptCompressor(), "f(1000, 0.50, 0xff, 1e21, 1.5e-7, 0.30000000000000004,"
+                        + " 1.7976931348623157e308, 4503599627370495);"));
+        assertEquals("f(.5,12.75,1e-4,.0012,1e3,123e3,65536,1e13,0xfffffffffff);",
+                compress(new JavaScriptCompressor(), "f(0.5, 12.750, 0.0001, 0.0012, 1000, 123000, 65536, 10000000000000, 17592186044415);"));
+        assertEquals("1e3", JavaScriptCompressor.shortestNumber("1000"));
+        assertEquals("15e-8", JavaScriptCompressor.shortestNumber("1.5e-7"));
+        assertEquals("0xfffffffffffff", JavaScriptCompressor.shortestNumber("4503599627370495"));
+        assertEquals("100", JavaScriptCompressor.shortestNumber("100"));
+    }
+}
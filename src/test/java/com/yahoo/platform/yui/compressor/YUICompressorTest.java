@@ -1,6 +1,7 @@
 package com.yahoo.platform.yui.compressor;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -84,6 +85,56 @@ class YUICompressorTest {
         assertEquals(4, files.size());
     }
 
+    @Test
+    public void splitFilesIntoShardsAndMergeTheirManifests(@TempDir Path dir) throws IOException {
+        Path input = Path.of(BASE_DIR_JS_FILES + "testdir");
+        var files = YUICompressor.collectFiles(input, "js");
+        for (boolean bySize : new boolean[]{false, true}) {
+            var first = YUICompressor.selectShard(files, input, 0, 2, bySize);
+            var second = YUICompressor.selectShard(files, input, 1, 2, bySize);
+            assertEquals(files.size(), first.size() + second.size());
+            assertTrue(first.stream().noneMatch(second::contains));
+            assertEquals(first, YUICompressor.selectShard(files, input, 0, 2, bySize));
+        }
+
+        for (int i = 1; i <= 2; i++) {
+            YUICompressor.main(new String[]{"--type", "js", "-i", input.toString(), "-o", dir.resolve("out").toString(),
+                    "--shard", i + "/2", "--shard-by-size", "--manifest", dir.resolve("shard" + i + ".tsv").toString()});
+        }
+        YUICompressor.main(new String[]{"--merge-manifests", dir.resolve("shard1.tsv") + "," + dir.resolve("shard2.tsv"),
+                "--manifest", dir.resolve("all.tsv").toString()});
+
+        var lines = Files.readAllLines(dir.resolve("all.tsv"));
+        assertEquals(4, lines.stream().filter(line -> !line.startsWith("@")).count());
+        assertTrue(lines.contains("@files\t4"));
+        assertEquals(4, YUICompressor.collectFiles(dir.resolve("out"), "js").size());
+
+        assertThrows(RuntimeException.class, () -> YUICompressor.main(new String[]{"--merge-manifests",
+                dir.resolve("all.tsv") + "," + dir.resolve("shard1.tsv"), "--manifest", dir.resolve("twice.tsv").toString()}));
+    }
+
+    @Test
+    public void rejectNewNamesInShards(@TempDir Path dir) throws IOException {
+        String input = BASE_DIR_JS_FILES + "testdir";
+        for (String[] option : new String[][]{{"--symbol-map", dir.resolve("symbols.map").toString()},
+                {"--mangle-props", "^_"}, {"--css-names", "^js-"}}) {
+            assertThrows(IllegalArgumentException.class, () -> YUICompressor.main(new String[]{"--type", "js", "-i", input,
+                    "-o", dir.resolve("out").toString(), "--shard", "1/2", option[0], option[1]}));
+        }
+
+        // A map the shards only read is left as it is
+        Path map = dir.resolve("names.map");
+        Files.writeString(map, "js-menu\ta\n");
+        Files.createDirectories(dir.resolve("in"));
+        Files.writeString(dir.resolve("in/a.css"), ".js-menu{color:red}");
+        for (int i = 1; i <= 2; i++) {
+            YUICompressor.main(new String[]{"--type", "css", "-i", dir.resolve("in").toString(), "-o", dir.resolve("out").toString(),
+                    "--shard", i + "/2", "--css-names-map", map.toString()});
+        }
+        assertEquals("js-menu\ta\n", Files.readString(map));
+        assertEquals(".a{color:red}", Files.readString(dir.resolve("out/a.css")));
+    }
+
     @Test
     public void throwAnExceptionWhenNoTypeIsGiven() {
         assertThrows(IllegalArgumentException.class, () -> YUICompressor.collectFiles(Path.of(BASE_DIR_JS_FILES), null));